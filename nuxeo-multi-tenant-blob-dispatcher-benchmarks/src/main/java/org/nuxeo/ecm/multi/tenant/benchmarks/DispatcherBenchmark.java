@@ -0,0 +1,186 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link MultiTenantBlobDispatcher#getProviderId} for various rule sets and folder depths.
+ * <p>
+ * Each rule set has {@code ruleCount} rules of the same clause type, plus the default rule:
+ * <ul>
+ * <li>{@code blob}: {@code blob:mime-type=type/<i>}</li>
+ * <li>{@code document}: {@code dc:format=format<i>}</li>
+ * <li>{@code tenant}: {@code ecm:tenant=tenant<i>}</li>
+ * <li>{@code mixed}: the three kinds in turn</li>
+ * </ul>
+ * Documents are created {@code depth} levels below one tenant root per rule, and every call to {@code getParent} costs
+ * {@code parentLatencyMicros}. Each invocation dispatches a blob of the next document, cycling over all of them.
+ * <p>
+ * Run with for instance:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar DispatcherBenchmark -p ruleCount=10,5000 -p clauseType=tenant
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+
+    protected static final int DOCUMENTS = 4096;
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int ruleCount;
+
+    @Param({ "blob", "document", "tenant", "mixed" })
+    public String clauseType;
+
+    @Param({ "1", "10", "30" })
+    public int depth;
+
+    @Param({ "0", "20" })
+    public int parentLatencyMicros;
+
+    @Param({ "10000", "0" })
+    public int tenantCacheSize;
+
+    @Param({ "true", "false" })
+    public boolean compileRules;
+
+    protected MultiTenantBlobDispatcher dispatcher;
+
+    protected Document[] docs;
+
+    protected Blob[] blobs;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        protected int next;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            next = (int) Thread.currentThread().getId() * 7919;
+        }
+    }
+
+    protected String clauseType(int i) {
+        if (!"mixed".equals(clauseType)) {
+            return clauseType;
+        }
+        switch (i % 3) {
+        case 0:
+            return "blob";
+        case 1:
+            return "document";
+        default:
+            return "tenant";
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < ruleCount; i++) {
+            switch (clauseType(i)) {
+            case "blob":
+                properties.put("blob:mime-type=type/" + i, "provider" + i);
+                break;
+            case "document":
+                properties.put("dc:format=format" + i, "provider" + i);
+                break;
+            default:
+                properties.put("ecm:tenant=tenant" + i, "provider" + i);
+            }
+        }
+        properties.put(MultiTenantBlobDispatcher.OPTION_TENANT_CACHE_SIZE, String.valueOf(tenantCacheSize));
+        properties.put(MultiTenantBlobDispatcher.OPTION_COMPILE_RULES, String.valueOf(compileRules));
+        properties.put("default", "default");
+        dispatcher = new MultiTenantBlobDispatcher();
+        dispatcher.initialize(properties);
+
+        long latency = TimeUnit.MICROSECONDS.toNanos(parentLatencyMicros);
+        Document root = StandInDocument.create(null, "", latency, Collections.emptyMap());
+        Document[] tenantRoots = new Document[ruleCount];
+        for (int i = 0; i < ruleCount; i++) {
+            tenantRoots[i] = StandInDocument.create(root, "tenant" + i, latency,
+                    Collections.singletonMap("tenantconfig:tenantId", "tenant" + i));
+        }
+        // rules matched uniformly, including the last ones, and some blobs going to the default provider
+        Random random = new Random(1234);
+        docs = new Document[DOCUMENTS];
+        blobs = new Blob[DOCUMENTS];
+        for (int d = 0; d < DOCUMENTS; d++) {
+            int i = random.nextInt(ruleCount + ruleCount / 10 + 1);
+            boolean matching = i < ruleCount;
+            int tenant = matching ? i : random.nextInt(ruleCount);
+            Document parent = tenantRoots[tenant];
+            for (int level = 1; level < depth; level++) {
+                parent = StandInDocument.create(parent, "folder" + (d % 16) + "-" + level, latency,
+                        Collections.emptyMap());
+            }
+            Map<String, Object> values = new HashMap<>();
+            values.put("dc:format", matching ? "format" + i : "unknown");
+            docs[d] = StandInDocument.create(parent, "doc" + d, latency, values);
+            blobs[d] = StandInBlob.create("file" + d, matching ? "type/" + i : "unknown/unknown", "digest" + d,
+                    1024 * d);
+        }
+    }
+
+    protected String dispatch(Cursor cursor) {
+        int i = (cursor.next++ & Integer.MAX_VALUE) % DOCUMENTS;
+        return dispatcher.getProviderId(docs[i], blobs[i], "content");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String getProviderId(Cursor cursor) {
+        return dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String getProviderIdContended(Cursor cursor) {
+        return dispatch(cursor);
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant.benchmarks;
+
+import java.lang.reflect.Proxy;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * In-memory stand-in for a {@link Blob}, implementing only the metadata used by blob dispatch.
+ */
+public class StandInBlob {
+
+    private StandInBlob() {
+        // utility class
+    }
+
+    public static Blob create(String filename, String mimeType, String digest, long length) {
+        return (Blob) Proxy.newProxyInstance(Blob.class.getClassLoader(), new Class<?>[] { Blob.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getFilename":
+                        return filename;
+                    case "getMimeType":
+                        return mimeType;
+                    case "getEncoding":
+                        return null;
+                    case "getDigest":
+                        return digest;
+                    case "getLength":
+                        return length;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return filename;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+/**
+ * Records the downloads of the blobs of the hot providers of the last initialized dispatcher, if configured for
+ * tiering, so that blobs still read don't move to the cold provider of their tenant, and so that the tenant providers
+ * still read from are not closed as idle.
+ */
+public class BlobAccessListener implements EventListener {
+
+    public static final String DOWNLOAD_EVENT = "download";
+
+    protected static final String EXTENDED_INFOS = "extendedInfos";
+
+    protected static final String BLOB_XPATH = "blobXPath";
+
+    protected static final String DEFAULT_BLOB_XPATH = "file:content";
+
+    @Override
+    public void handleEvent(Event event) {
+        EventContext context = event.getContext();
+        if (!(context instanceof DocumentEventContext)) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) context).getSourceDocument();
+        if (doc == null) {
+            return;
+        }
+        String key = getBlobKey(doc, getBlobXPath(context));
+        MultiTenantBlobDispatcher dispatcher = MultiTenantBlobDispatcher.getLatestInstance();
+        if (key != null && dispatcher != null) {
+            dispatcher.recordAccess(key);
+        }
+    }
+
+    protected String getBlobXPath(EventContext context) {
+        Serializable xpath = context.getProperty(BLOB_XPATH);
+        if (xpath == null) {
+            Serializable infos = context.getProperty(EXTENDED_INFOS);
+            if (infos instanceof Map) {
+                xpath = (Serializable) ((Map<?, ?>) infos).get(BLOB_XPATH);
+            }
+        }
+        return xpath == null ? DEFAULT_BLOB_XPATH : xpath.toString();
+    }
+
+    protected String getBlobKey(DocumentModel doc, String xpath) {
+        Object blob;
+        try {
+            blob = doc.getPropertyValue(xpath);
+        } catch (PropertyException e) {
+            // blob not stored on the document
+            return null;
+        }
+        return blob instanceof ManagedBlob ? ((ManagedBlob) blob).getKey() : null;
+    }
+
+}
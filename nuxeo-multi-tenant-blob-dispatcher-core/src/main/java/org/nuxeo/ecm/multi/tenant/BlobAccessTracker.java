@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Records when the blobs of the hot providers of a {@link MultiTenantBlobDispatcher} are read, so that the tiering
+ * can tell the blobs not read for a while.
+ * <p>
+ * Reads are collected in memory, a blob read many times being recorded once, and written in batches to a key-value
+ * store shared by the cluster by the {@link DispatcherMaintenance} thread, every {@value #FLUSH_INTERVAL_SECONDS}
+ * seconds or as soon as {@link #BATCH_SIZE} blobs are pending, and when the runtime stops. A reading thread never
+ * writes to the store. Each entry expires after the idle time of its provider, so a blob has an entry exactly when it
+ * was read during that time, at the latest {@value #FLUSH_INTERVAL_SECONDS} seconds after the read.
+ */
+public class BlobAccessTracker {
+
+    private static final Log log = LogFactory.getLog(BlobAccessTracker.class);
+
+    protected static final String KEY_PREFIX = "multitenant.access.";
+
+    public static final long FLUSH_INTERVAL_SECONDS = 60;
+
+    protected static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(FLUSH_INTERVAL_SECONDS);
+
+    protected static final int BATCH_SIZE = 1000;
+
+    protected final String storeName;
+
+    /** Time to live in seconds of the entries to write, by blob key. */
+    protected final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+    protected final AtomicLong nextFlush = new AtomicLong(System.nanoTime() + FLUSH_INTERVAL);
+
+    /** Set while a flush of a full batch is queued on the maintenance thread. */
+    protected final AtomicBoolean batchFlush = new AtomicBoolean();
+
+    /**
+     * @param storeName the key-value store holding the last read of the blobs
+     */
+    public BlobAccessTracker(String storeName) {
+        this.storeName = storeName;
+    }
+
+    /**
+     * Records that a blob was read.
+     *
+     * @param key the blob key, with its provider prefix
+     * @param ttlSeconds the time after which the read is forgotten
+     */
+    public void recordAccess(String key, long ttlSeconds) {
+        pending.put(key, Long.valueOf(ttlSeconds));
+        if (pending.size() >= BATCH_SIZE && batchFlush.compareAndSet(false, true)
+                && !DispatcherMaintenance.execute(this::flushBatch)) {
+            // no maintenance thread yet
+            batchFlush.set(false);
+        }
+    }
+
+    protected void flushBatch() {
+        try {
+            flush();
+        } finally {
+            batchFlush.set(false);
+        }
+    }
+
+    /**
+     * Writes the pending reads if the flush interval elapsed.
+     */
+    public void flushIfDue() {
+        long now = System.nanoTime();
+        long next = nextFlush.get();
+        if (now - next >= 0 && nextFlush.compareAndSet(next, now + FLUSH_INTERVAL)) {
+            flush();
+        }
+    }
+
+    /**
+     * Checks whether a blob was read within the time to live of its last recorded read.
+     */
+    public boolean isRecentlyAccessed(String key) {
+        return pending.containsKey(key) || getKeyValueStore().getString(KEY_PREFIX + key) != null;
+    }
+
+    /**
+     * Writes the pending reads to the key-value store.
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        KeyValueStore store = getKeyValueStore();
+        String now = String.valueOf(System.currentTimeMillis());
+        int n = 0;
+        for (String key : pending.keySet()) {
+            Long ttl = pending.get(key);
+            if (ttl != null) {
+                store.put(KEY_PREFIX + key, now, ttl.longValue());
+                // kept pending until stored
+                pending.remove(key, ttl);
+                n++;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Recorded the read of " + n + " blobs");
+        }
+    }
+
+    protected KeyValueStore getKeyValueStore() {
+        return Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+    }
+
+}
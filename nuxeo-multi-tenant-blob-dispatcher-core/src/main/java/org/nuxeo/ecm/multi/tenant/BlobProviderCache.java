@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.nuxeo.ecm.core.blob.BlobProvider;
+
+/**
+ * Cache of the blob provider instances by id, to find the replicas of a {@link ReplicatedBlobProvider} when reading.
+ * <p>
+ * The provider id prefixing a key ({@code providerId:digest}) is looked up in an open-addressing table directly from
+ * the characters of the key, without extracting it, so a hit costs one hash of the prefix and one probe, and allocates
+ * nothing, however many tenant providers there are. The table is never modified once published: a miss loads the
+ * provider and publishes a copy of the table holding it, so readers never lock.
+ * <p>
+ * Like the {@link TenantCache}, every invalidation bumps a generation number, and a provider loaded before an
+ * invalidation is not stored, so that a provider closed while being loaded is not cached.
+ */
+public class BlobProviderCache {
+
+    protected static final int INITIAL_CAPACITY = 64;
+
+    protected static final char PREFIX_SEPARATOR = ':';
+
+    protected final Function<String, BlobProvider> loader;
+
+    protected final AtomicReference<Table> table = new AtomicReference<>(new Table(INITIAL_CAPACITY, 0));
+
+    /**
+     * An immutable table of providers, at most half full.
+     */
+    protected static final class Table {
+
+        protected final String[] ids;
+
+        protected final BlobProvider[] providers;
+
+        protected final int size;
+
+        protected final long generation;
+
+        protected Table(int capacity, long generation) {
+            ids = new String[capacity];
+            providers = new BlobProvider[capacity];
+            size = 0;
+            this.generation = generation;
+        }
+
+        /**
+         * Copies a table, replacing or removing (if {@code provider} is {@code null}) a provider.
+         */
+        protected Table(Table table, String id, BlobProvider provider, long generation) {
+            int capacity = table.ids.length;
+            while ((table.size + 1) * 2 > capacity) {
+                capacity *= 2;
+            }
+            ids = new String[capacity];
+            providers = new BlobProvider[capacity];
+            int n = 0;
+            for (int i = 0; i < table.ids.length; i++) {
+                String other = table.ids[i];
+                if (other != null && !other.equals(id)) {
+                    insert(other, table.providers[i]);
+                    n++;
+                }
+            }
+            if (provider != null) {
+                insert(id, provider);
+                n++;
+            }
+            size = n;
+            this.generation = generation;
+        }
+
+        protected void insert(String id, BlobProvider provider) {
+            int mask = ids.length - 1;
+            int i = hash(id, id.length()) & mask;
+            while (ids[i] != null) {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            providers[i] = provider;
+        }
+
+        /**
+         * Finds the provider whose id is the first {@code length} characters of {@code key}.
+         */
+        protected BlobProvider find(String key, int length) {
+            int mask = ids.length - 1;
+            for (int i = hash(key, length) & mask;; i = (i + 1) & mask) {
+                String id = ids[i];
+                if (id == null) {
+                    return null;
+                }
+                if (id.length() == length && key.regionMatches(0, id, 0, length)) {
+                    return providers[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * @param loader gets a provider instance by id, or {@code null} if there is none
+     */
+    public BlobProviderCache(Function<String, BlobProvider> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Same as {@link String#hashCode} of the prefix, spread like in {@link TenantCache}.
+     */
+    protected static int hash(String key, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Gets the provider of a blob key of the form {@code providerId:digest}.
+     *
+     * @return the provider, or {@code null} if the key has no provider prefix or the provider does not exist
+     */
+    public BlobProvider getBlobProviderForKey(String key) {
+        int colon = key.indexOf(PREFIX_SEPARATOR);
+        return colon <= 0 ? null : get(key, colon);
+    }
+
+    /**
+     * Gets a provider by id.
+     *
+     * @return the provider, or {@code null} if it does not exist
+     */
+    public BlobProvider getBlobProvider(String providerId) {
+        return get(providerId, providerId.length());
+    }
+
+    protected BlobProvider get(String key, int length) {
+        Table t = table.get();
+        BlobProvider provider = t.find(key, length);
+        if (provider != null) {
+            return provider;
+        }
+        String id = key.substring(0, length);
+        provider = loader.apply(id);
+        if (provider != null) {
+            put(id, provider, t.generation);
+        }
+        return provider;
+    }
+
+    protected void put(String id, BlobProvider provider, long generation) {
+        for (;;) {
+            Table t = table.get();
+            if (t.generation != generation || t.find(id, id.length()) != null) {
+                return;
+            }
+            if (table.compareAndSet(t, new Table(t, id, provider, generation))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops a provider, typically because it was closed or replaced.
+     */
+    public void invalidate(String providerId) {
+        for (;;) {
+            Table t = table.get();
+            if (table.compareAndSet(t, new Table(t, providerId, null, t.generation + 1))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops all the providers.
+     */
+    public void invalidateAll() {
+        for (;;) {
+            Table t = table.get();
+            if (table.compareAndSet(t, new Table(INITIAL_CAPACITY, t.generation + 1))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached providers.
+     */
+    public int size() {
+        return table.get().size;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of bytes per second processed by all the threads sharing it.
+ * <p>
+ * Each caller reserves a slot after the previous reservations and sleeps until it starts, so bytes are spread evenly
+ * over time without bursts.
+ */
+public class ByteRateLimiter {
+
+    protected long next = System.nanoTime();
+
+    /**
+     * Waits until {@code bytes} may be processed at the given rate.
+     *
+     * @param bytesPerSecond the rate, 0 or less for no limit
+     */
+    public void acquire(long bytes, long bytesPerSecond) throws InterruptedException {
+        long wait = reserve(bytes, bytesPerSecond, Long.MAX_VALUE);
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Reserves a slot to process {@code bytes} at the given rate, unless it would start after {@code maxWaitNanos}.
+     * The caller must then wait for the returned delay before processing them.
+     *
+     * @param bytesPerSecond the rate, 0 or less for no limit
+     * @return the number of nanoseconds to wait, or -1 if nothing was reserved because the wait would be too long
+     */
+    public long reserve(long bytes, long bytesPerSecond, long maxWaitNanos) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, next);
+            long wait = start - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            next = start + cost(bytes, bytesPerSecond);
+            return wait;
+        }
+    }
+
+    /**
+     * Takes the slot to process {@code bytes} at the given rate without waiting, allowing bursts: the bytes are accepted
+     * if nothing is pending, or if they fit with the pending ones within {@code burstNanos} of the rate.
+     *
+     * @param bytesPerSecond the rate, 0 or less for no limit
+     * @return {@code true} if the bytes may be processed now, {@code false} if nothing was taken
+     */
+    public boolean tryAcquire(long bytes, long bytesPerSecond, long burstNanos) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return true;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, next);
+            long end = start + cost(bytes, bytesPerSecond);
+            if (start > now && end - now > burstNanos) {
+                return false;
+            }
+            next = end;
+            return true;
+        }
+    }
+
+    protected static long cost(long bytes, long bytesPerSecond) {
+        return (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+}
@@ -0,0 +1,506 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.multi.tenant.RuleEvaluator.NO_MATCH;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.model.Document;
+
+/**
+ * Dispatch rules compiled into a decision structure, giving the same result as evaluating them in order.
+ * <p>
+ * The property tested by the most {@code =} and {@code ~} clauses is indexed: rules with an equality clause on it are
+ * found through a hash lookup of its value, and rules with a glob on it are preselected by a {@link PrefixTrie} of the
+ * literal prefixes of the globs, then confirmed by a precompiled {@link GlobMatcher} unless the glob is a plain prefix
+ * like {@code /tenants/acme/*}. A value like a document path is thus matched against thousands of subtree globs in a
+ * single descent of its characters. Only the preselected rules and the rules not testing that property are then evaluated, in their
+ * original order, each with the semantics of {@link org.nuxeo.ecm.core.blob.DefaultBlobDispatcher}.
+ * <p>
+ * The indexed value is only computed once the first rule testing it is reached, so that a blob matched by an earlier
+ * rule, for instance on its MIME type, never resolves an indexed {@code ecm:tenant}. When the indexed value is not a
+ * string, the remaining rules are evaluated in order.
+ * <p>
+ * Within each rule, the ANDed clauses are evaluated cheapest first, so that a rule is usually rejected before its
+ * expensive clauses are computed: {@code blob:*} clauses and, in the rules preselected by it, the indexed property,
+ * already known, come first, then
+ * the document properties, and last {@code ecm:tenant} and the globs on {@code ecm:path}. As a clause has no side
+ * effect, the order does not change which rules match; should a reordered rule fail, it is evaluated again in its
+ * original order so that the outcome is exactly that of the original rules.
+ */
+public class CompiledRules {
+
+    protected static final Pattern CLAUSE_PATTERN = Pattern.compile("([^=!<>~^]+)(=|!=|<=|>=|<|>|~|\\^)(.*)");
+
+    protected static final String EQ = "=";
+
+    protected static final String GLOB = "~";
+
+    protected static final String NULL = "null";
+
+    protected static final String PREFIX = "^";
+
+    protected static final String BLOB_PREFIX = "blob:";
+
+    protected static final String ECM_PATH = "ecm:path";
+
+    /** Cost of a clause whose value is already known or read from the blob. */
+    protected static final int COST_FREE = 0;
+
+    /** Cost of a clause reading a document property. */
+    protected static final int COST_CHEAP = 1;
+
+    /** Cost of a clause resolving the tenant or matching a path glob. */
+    protected static final int COST_EXPENSIVE = 2;
+
+    protected final MultiTenantBlobDispatcher dispatcher;
+
+    /** All the rules, for a plain evaluation in order. */
+    protected final RuleEvaluator allRules;
+
+    /** The rules and their provider, by rule index. */
+    protected final String[] ruleKeys;
+
+    protected final String[] providerIds;
+
+    /** Evaluator of each rule as written, when not compiled, created on first use of {@link #getMatchingRule}. */
+    protected volatile RuleEvaluator[] plainEvaluators;
+
+    /** Evaluator of each rule with its clauses ordered by cost, by rule index, or {@code null} if not compiled. */
+    protected final RuleEvaluator[] evaluators;
+
+    /** The indexed property, or {@code null} if nothing is indexed. */
+    protected final String indexXPath;
+
+    /** Rules with an equality clause on the indexed property, by value. */
+    protected final Map<String, int[]> equalityIndex;
+
+    /** Rules with a glob on the indexed property. */
+    protected final int[] globRules;
+
+    protected final GlobMatcher[] globMatchers;
+
+    /** Literal prefixes of the globs on the indexed property, to glob index. */
+    protected final PrefixTrie globPrefixes;
+
+    /** Globs fully matched by their literal prefix. */
+    protected final BitSet prefixGlobs;
+
+    /** Rules not testing the indexed property. */
+    protected final BitSet unindexed;
+
+    /** Value of the indexed property for the dispatch in progress in this thread: document, blob, xpath, value. */
+    protected final ThreadLocal<Object[]> indexValue = new ThreadLocal<>();
+
+    /**
+     * A parsed clause of a rule.
+     */
+    public static class ParsedClause {
+
+        public final String xpath;
+
+        public final String op;
+
+        public final String value;
+
+        public ParsedClause(String xpath, String op, String value) {
+            this.xpath = xpath;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return xpath + op + value;
+        }
+    }
+
+    /**
+     * Parses the comma-separated clauses of a rule.
+     *
+     * @return the clauses, or {@code null} if the rule is not made of clauses (like {@code records})
+     */
+    public static List<ParsedClause> parseClauses(String clauses) {
+        List<ParsedClause> parsed = new ArrayList<>();
+        for (String clause : clauses.split(",")) {
+            Matcher m = CLAUSE_PATTERN.matcher(clause);
+            if (!m.matches()) {
+                return null;
+            }
+            parsed.add(new ParsedClause(m.group(1), m.group(2), m.group(3)));
+        }
+        return parsed;
+    }
+
+    /**
+     * Compiles rules given as a map of clauses to provider id, in order. A {@code default} entry is ignored.
+     *
+     * @param index {@code false} to only evaluate the rules in order
+     */
+    public CompiledRules(MultiTenantBlobDispatcher dispatcher, Map<String, String> rules, boolean index) {
+        this.dispatcher = dispatcher;
+        Map<String, String> ordered = new LinkedHashMap<>(rules);
+        ordered.remove(RuleEvaluator.DEFAULT);
+        allRules = new RuleEvaluator(dispatcher, ordered);
+
+        List<Entry<String, String>> entries = new ArrayList<>(ordered.entrySet());
+        ruleKeys = ordered.keySet().toArray(new String[0]);
+        providerIds = ordered.values().toArray(new String[0]);
+        List<List<ParsedClause>> parsed = new ArrayList<>();
+        Map<String, Integer> counts = new HashMap<>();
+        String best = null;
+        for (int i = 0; i < entries.size(); i++) {
+            List<ParsedClause> clauses = parseClauses(entries.get(i).getKey());
+            if (clauses != null && !allRules.isParsedAs(i, clauses)) {
+                // split differently by the inherited parser: neither indexed nor reordered
+                clauses = null;
+            }
+            parsed.add(clauses);
+            if (clauses == null) {
+                continue;
+            }
+            for (ParsedClause clause : clauses) {
+                if (isIndexable(clause)) {
+                    int count = counts.merge(clause.xpath, 1, Integer::sum);
+                    if (best == null || count > counts.get(best)) {
+                        best = clause.xpath;
+                    }
+                }
+            }
+        }
+        if (!index) {
+            indexXPath = null;
+            evaluators = null;
+            equalityIndex = null;
+            globRules = null;
+            globMatchers = null;
+            globPrefixes = null;
+            prefixGlobs = null;
+            unindexed = null;
+            return;
+        }
+        indexXPath = best;
+
+        int n = entries.size();
+        evaluators = new RuleEvaluator[n];
+        for (int i = 0; i < n; i++) {
+            Entry<String, String> en = entries.get(i);
+            String key = en.getKey();
+            String orderedKey = orderByCost(parsed.get(i), key, getIndexClause(parsed.get(i)) != null);
+            IndexedRuleEvaluator original = new IndexedRuleEvaluator(Collections.singletonMap(key, en.getValue()), null);
+            evaluators[i] = orderedKey.equals(key) ? original
+                    : new IndexedRuleEvaluator(Collections.singletonMap(orderedKey, en.getValue()), original);
+        }
+        if (best == null) {
+            equalityIndex = null;
+            globRules = null;
+            globMatchers = null;
+            globPrefixes = null;
+            prefixGlobs = null;
+            unindexed = null;
+            return;
+        }
+
+        unindexed = new BitSet(n);
+        Map<String, List<Integer>> equalities = new HashMap<>();
+        List<Integer> globs = new ArrayList<>();
+        List<GlobMatcher> matchers = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ParsedClause clause = getIndexClause(parsed.get(i));
+            if (clause == null) {
+                unindexed.set(i);
+            } else if (clause.op.equals(EQ)) {
+                equalities.computeIfAbsent(clause.value, k -> new ArrayList<>()).add(i);
+            } else {
+                globs.add(i);
+                matchers.add(new GlobMatcher(clause.value));
+            }
+        }
+        equalityIndex = new HashMap<>();
+        for (Entry<String, List<Integer>> en : equalities.entrySet()) {
+            equalityIndex.put(en.getKey(), en.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        globRules = globs.stream().mapToInt(Integer::intValue).toArray();
+        globMatchers = matchers.toArray(new GlobMatcher[0]);
+        globPrefixes = new PrefixTrie();
+        prefixGlobs = new BitSet(globMatchers.length);
+        for (int g = 0; g < globMatchers.length; g++) {
+            globPrefixes.add(globMatchers[g].getLiteralPrefix(), g);
+            if (globMatchers[g].isPrefixGlob()) {
+                prefixGlobs.set(g);
+            }
+        }
+    }
+
+    protected static boolean isIndexable(ParsedClause clause) {
+        return (clause.op.equals(EQ) && !clause.value.equals(NULL)) || clause.op.equals(GLOB);
+    }
+
+    /**
+     * Gets the cost class of evaluating a clause.
+     *
+     * @param indexed whether the rule is preselected by the indexed property, whose value is then already known
+     */
+    protected int getCost(ParsedClause clause, boolean indexed) {
+        String xpath = clause.xpath;
+        if (xpath.startsWith(BLOB_PREFIX) || (indexed && xpath.equals(indexXPath))) {
+            return COST_FREE;
+        }
+        if (xpath.equals(MultiTenantBlobDispatcher.TENANT_NAME)
+                || (xpath.equals(ECM_PATH) && (clause.op.equals(GLOB) || clause.op.equals(PREFIX)))) {
+            return COST_EXPENSIVE;
+        }
+        return COST_CHEAP;
+    }
+
+    /**
+     * Rewrites the clauses of a rule cheapest first, keeping the original order among clauses of the same cost.
+     *
+     * @return the rewritten rule, or {@code key} itself if it is not made of clauses
+     */
+    protected String orderByCost(List<ParsedClause> clauses, String key, boolean indexed) {
+        if (clauses == null || clauses.size() < 2) {
+            return key;
+        }
+        List<ParsedClause> sorted = new ArrayList<>(clauses);
+        sorted.sort(Comparator.comparingInt(clause -> getCost(clause, indexed))); // stable
+        StringBuilder sb = new StringBuilder();
+        for (ParsedClause clause : sorted) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(clause);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Finds the clause of a rule to index on, preferring an equality.
+     */
+    protected ParsedClause getIndexClause(List<ParsedClause> clauses) {
+        if (clauses == null) {
+            return null;
+        }
+        ParsedClause glob = null;
+        for (ParsedClause clause : clauses) {
+            if (clause.xpath.equals(indexXPath) && isIndexable(clause)) {
+                if (clause.op.equals(EQ)) {
+                    return clause;
+                }
+                if (glob == null) {
+                    glob = clause;
+                }
+            }
+        }
+        return glob;
+    }
+
+    /**
+     * Gets the provider of the first matching rule, or {@link RuleEvaluator#NO_MATCH}.
+     */
+    public String getProviderId(Document doc, Blob blob, String blobXPath) {
+        if (evaluators == null) {
+            return allRules.evaluate(doc, blob, blobXPath);
+        }
+        int i = match(doc, blob, blobXPath);
+        return i < 0 ? NO_MATCH : providerIds[i];
+    }
+
+    /**
+     * Gets the index of the first matching rule, or -1 if none matches.
+     */
+    public int getMatchingRule(Document doc, Blob blob, String blobXPath) {
+        if (evaluators != null) {
+            return match(doc, blob, blobXPath);
+        }
+        RuleEvaluator[] plain = getPlainEvaluators();
+        for (int i = 0; i < plain.length; i++) {
+            if (!NO_MATCH.equals(plain[i].evaluate(doc, blob, blobXPath))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets a rule, by index.
+     */
+    public String getRule(int i) {
+        return ruleKeys[i];
+    }
+
+    /**
+     * Gets the provider of a rule, by index.
+     */
+    public String getRuleProviderId(int i) {
+        return providerIds[i];
+    }
+
+    protected RuleEvaluator[] getPlainEvaluators() {
+        RuleEvaluator[] plain = plainEvaluators;
+        if (plain == null) {
+            plain = new RuleEvaluator[ruleKeys.length];
+            for (int i = 0; i < plain.length; i++) {
+                plain[i] = new RuleEvaluator(dispatcher, Collections.singletonMap(ruleKeys[i], providerIds[i]));
+            }
+            plainEvaluators = plain;
+        }
+        return plain;
+    }
+
+    protected int match(Document doc, Blob blob, String blobXPath) {
+        if (indexXPath == null) {
+            return matchFrom(0, doc, blob, blobXPath);
+        }
+        BitSet candidates = null;
+        try {
+            for (int i = 0; i < evaluators.length; i++) {
+                if (!unindexed.get(i)) {
+                    if (candidates == null) {
+                        // first rule testing the indexed property: compute its value now
+                        candidates = getCandidates(doc, blob, blobXPath);
+                        if (candidates == null) {
+                            return matchFrom(i, doc, blob, blobXPath);
+                        }
+                    }
+                    if (!candidates.get(i)) {
+                        continue;
+                    }
+                }
+                if (!NO_MATCH.equals(evaluators[i].evaluate(doc, blob, blobXPath))) {
+                    return i;
+                }
+            }
+        } finally {
+            if (candidates != null) {
+                indexValue.remove();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the value of the indexed property and preselects the rules testing it that may match.
+     *
+     * @return the preselected rules, or {@code null} if the value is not a string or cannot be computed
+     */
+    protected BitSet getCandidates(Document doc, Blob blob, String blobXPath) {
+        Object value;
+        try {
+            value = allRules.getValue(doc, blob, blobXPath, indexXPath);
+        } catch (PropertyException | IllegalArgumentException e) {
+            return null;
+        }
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String string = (String) value;
+        BitSet candidates = new BitSet(evaluators.length);
+        int[] equal = equalityIndex.get(string);
+        if (equal != null) {
+            for (int i : equal) {
+                candidates.set(i);
+            }
+        }
+        if (isMultiLine(string)) {
+            // how a glob matches across lines is left to the evaluation of the rule itself
+            for (int i : globRules) {
+                candidates.set(i);
+            }
+        } else {
+            globPrefixes.forEachPrefixOf(string, g -> {
+                if (prefixGlobs.get(g) || globMatchers[g].matches(string)) {
+                    candidates.set(globRules[g]);
+                }
+            });
+        }
+        indexValue.set(new Object[] { doc, blob, blobXPath, value });
+        return candidates;
+    }
+
+    protected static boolean isMultiLine(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the first matching rule by evaluating the rules in order from the given one, without preselection.
+     */
+    protected int matchFrom(int start, Document doc, Blob blob, String blobXPath) {
+        for (int i = start; i < evaluators.length; i++) {
+            if (!NO_MATCH.equals(evaluators[i].evaluate(doc, blob, blobXPath))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Evaluator of a single rule, reusing the value of the indexed property already computed for this dispatch.
+     */
+    protected class IndexedRuleEvaluator extends RuleEvaluator {
+
+        /** The rule with its clauses in their original order, if they were reordered. */
+        protected final RuleEvaluator original;
+
+        protected IndexedRuleEvaluator(Map<String, String> rules, RuleEvaluator original) {
+            super(CompiledRules.this.dispatcher, rules);
+            this.original = original;
+        }
+
+        @Override
+        public String evaluate(Document doc, Blob blob, String blobXPath) {
+            if (original == null) {
+                return super.evaluate(doc, blob, blobXPath);
+            }
+            try {
+                return super.evaluate(doc, blob, blobXPath);
+            } catch (RuntimeException e) {
+                // a clause skipped in the original order may have failed: the original order decides
+                return original.evaluate(doc, blob, blobXPath);
+            }
+        }
+
+        @Override
+        protected Object getValue(Document doc, Blob blob, String blobXPath, Clause clause) {
+            Object[] known = indexValue.get();
+            if (known != null && known[0] == doc && known[1] == blob && known[2] == blobXPath
+                    && clause.xpath.equals(indexXPath)) {
+                return known[3];
+            }
+            return super.getValue(doc, blob, blobXPath, clause);
+        }
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.transaction.Synchronization;
+
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Memoizes, for the duration of one document save, the values of the document-level properties tested by the dispatch
+ * rules, so that a document with many blobs evaluates them once instead of once per blob.
+ * <p>
+ * The context is bound to the current thread. It is opened and closed around document creation and modification
+ * within a transaction by {@link DispatchContextListener}, and can be opened explicitly, with a {@code try/finally},
+ * around other code dispatching many blobs of the same documents. Values are keyed by {@link Document} instance, so a context left open by a failed save never serves values
+ * to another document.
+ * <p>
+ * Contexts nest: a document saved during the save of another one, for instance by a listener, gets a fresh context,
+ * and the outer one is restored with its values and resources when the inner one ends. The contexts still open on a
+ * thread when its transaction completes, left by a failed save, are then discarded.
+ * <p>
+ * Only document-level properties are memoized; {@code blob:*} properties are evaluated for each blob.
+ * <p>
+ * Resources held for the duration of the save, like the write permits of a {@link TenantBulkhead}, are released when
+ * the context is closed. A resource held by an outer context counts as held by the nested ones.
+ */
+public class DispatchContext {
+
+    protected static final ThreadLocal<DispatchContext> CONTEXT = new ThreadLocal<>();
+
+    protected static final Object NULL = new Object();
+
+    protected final Map<Document, Map<String, Object>> values = new IdentityHashMap<>();
+
+    /** Releases of the resources held until the end of the context, by key. */
+    protected final Map<Object, Runnable> releases = new HashMap<>();
+
+    protected boolean tiering;
+
+    /** The context this one is nested in, restored when this one ends. */
+    protected final DispatchContext parent;
+
+    protected DispatchContext(DispatchContext parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Opens a fresh context on the current thread, nested in the current one if any.
+     */
+    public static void begin() {
+        DispatchContext parent = CONTEXT.get();
+        DispatchContext context = new DispatchContext(parent);
+        CONTEXT.set(context);
+        if (parent == null && TransactionHelper.isTransactionActive()) {
+            TransactionHelper.registerSynchronization(new Cleanup(context));
+        }
+    }
+
+    /**
+     * Opens a context on the current thread unless one is already open.
+     *
+     * @return {@code true} if a context was opened, in which case the caller must {@link #end} it
+     */
+    public static boolean beginIfAbsent() {
+        if (CONTEXT.get() != null) {
+            return false;
+        }
+        begin();
+        return true;
+    }
+
+    /**
+     * Closes the context of the current thread, if any, restoring the one it was nested in.
+     */
+    public static void end() {
+        DispatchContext context = CONTEXT.get();
+        if (context == null) {
+            return;
+        }
+        if (context.parent == null) {
+            CONTEXT.remove();
+        } else {
+            CONTEXT.set(context.parent);
+        }
+        context.release();
+    }
+
+    /**
+     * Gets the context of the current thread, or {@code null} if none is open.
+     */
+    public static DispatchContext current() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * Gets the memoized value of a property of a document, computing it the first time. A computation failing with an
+     * exception is not memoized.
+     */
+    public Object getValue(Document doc, String xpath, Function<String, Object> compute) {
+        Map<String, Object> docValues = values.computeIfAbsent(doc, d -> new HashMap<>());
+        Object value = docValues.get(xpath);
+        if (value == null) {
+            value = compute.apply(xpath);
+            docValues.put(xpath, value == null ? NULL : value);
+            return value;
+        }
+        return value == NULL ? null : value;
+    }
+
+    /**
+     * Memoizes the value of a property of a document computed elsewhere, for instance for many documents at once.
+     */
+    public void putValue(Document doc, String xpath, Object value) {
+        values.computeIfAbsent(doc, d -> new HashMap<>()).put(xpath, value == null ? NULL : value);
+    }
+
+    /**
+     * Forgets the values memoized for a document, in this context and the ones it is nested in, for instance once its
+     * properties have changed.
+     */
+    public void forget(Document doc) {
+        for (DispatchContext context = this; context != null; context = context.parent) {
+            context.values.remove(doc);
+        }
+    }
+
+    /**
+     * Checks whether a resource is held until the end of this context or of one it is nested in.
+     */
+    public boolean holds(Object key) {
+        for (DispatchContext context = this; context != null; context = context.parent) {
+            if (context.releases.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers the release of a resource held until the end of this context.
+     */
+    public void hold(Object key, Runnable release) {
+        releases.put(key, release);
+    }
+
+    /**
+     * Marks the blobs dispatched in this context as candidates for a move to the cold provider of their tenant.
+     */
+    public void setTiering(boolean tiering) {
+        this.tiering = tiering;
+    }
+
+    public boolean isTiering() {
+        return tiering;
+    }
+
+    protected void release() {
+        for (Runnable release : releases.values()) {
+            release.run();
+        }
+        releases.clear();
+    }
+
+    /**
+     * Discards the contexts left open on a thread when its transaction completes.
+     */
+    protected static class Cleanup implements Synchronization {
+
+        protected final DispatchContext root;
+
+        protected final Thread thread = Thread.currentThread();
+
+        protected Cleanup(DispatchContext root) {
+            this.root = root;
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // nothing
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            if (Thread.currentThread() != thread) {
+                return;
+            }
+            DispatchContext context = CONTEXT.get();
+            DispatchContext outermost = context;
+            while (outermost != null && outermost.parent != null) {
+                outermost = outermost.parent;
+            }
+            if (outermost != root) {
+                // already closed, and maybe replaced by another transaction
+                return;
+            }
+            CONTEXT.remove();
+            for (; context != null; context = context.parent) {
+                context.release();
+            }
+        }
+    }
+
+}
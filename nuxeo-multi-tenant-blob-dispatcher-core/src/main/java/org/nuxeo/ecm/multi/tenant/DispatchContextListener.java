@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_CREATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Opens a {@link DispatchContext} before a document is created or modified, and closes it once its blobs have been
+ * written.
+ * <p>
+ * This is only done within a transaction, whose completion discards the context if the save fails before closing it.
+ * Outside of a transaction nothing would, and the context would stay on the pooled thread with its write permits.
+ */
+public class DispatchContextListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+        if (!TransactionHelper.isTransactionActive()) {
+            return;
+        }
+        switch (event.getName()) {
+        case ABOUT_TO_CREATE:
+        case BEFORE_DOC_UPDATE:
+            DispatchContext.begin();
+            break;
+        default:
+            DispatchContext.end();
+        }
+    }
+
+}
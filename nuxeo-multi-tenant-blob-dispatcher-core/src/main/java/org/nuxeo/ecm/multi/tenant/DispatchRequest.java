@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+
+/**
+ * A blob to dispatch, for {@link MultiTenantBlobDispatcher#getProviderIds}.
+ */
+public class DispatchRequest {
+
+    public final Document doc;
+
+    public final Blob blob;
+
+    public final String xpath;
+
+    public DispatchRequest(Document doc, Blob blob, String xpath) {
+        this.doc = doc;
+        this.blob = blob;
+        this.xpath = xpath;
+    }
+
+}
@@ -0,0 +1,513 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
+import org.nuxeo.ecm.core.model.Document;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Replays a recorded corpus of documents and blobs through a candidate dispatcher configuration, without any
+ * repository nor storage, to see where its blobs would go and what it costs before deploying it.
+ * <p>
+ * The corpus is read as a stream of JSON objects, one per document, for instance one per line:
+ *
+ * <pre>
+ * {"id": "doc1", "path": "/tenants/acme/folder/doc1", "repository": "default", "facets": ["Versionable"],
+ *  "properties": {"dc:format": "video"},
+ *  "ancestors": [{"id": "folder", "path": "/tenants/acme/folder"}, {"id": "acme", "tenant": "acme"}],
+ *  "blobs": [{"xpath": "file:content", "name": "a.mp4", "mimeType": "video/mp4", "digest": "...", "length": 1234}]}
+ * </pre>
+ *
+ * Ancestors are given nearest first; {@code tenant} is a shortcut for a {@code TenantConfig} facet with that
+ * {@code tenantconfig:tenantId}. Each document is dispatched in its own {@link DispatchContext}, like during a save,
+ * and ancestors with the same id share the tenant cache entries, like in a live repository.
+ * <p>
+ * The report gives the number of blobs per provider, the number of blobs matched by each rule, the blobs whose provider
+ * differs from a baseline configuration, and percentiles of the time taken to dispatch each blob.
+ * <p>
+ * Options needing a live server ({@code multitenant.tenantProviderClass}, {@code multitenant.rulesFile},
+ * {@code multitenant.rulesKey}, {@code multitenant.warmup}) are ignored, and tenants are resolved by parent.
+ */
+public class DispatchSimulator {
+
+    public static final String TENANT_MAPPING = "(tenant mapping)";
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static final int LATENCY_SAMPLES = 100_000;
+
+    protected final SimulatedDispatcher candidate;
+
+    protected final SimulatedDispatcher baseline;
+
+    /**
+     * A dispatcher isolated from the live ones: private metrics, and not found by {@link #getInstances}.
+     */
+    protected static class SimulatedDispatcher extends MultiTenantBlobDispatcher {
+
+        @Override
+        protected DispatcherMetrics newMetrics() {
+            return new DispatcherMetrics(new MetricRegistry());
+        }
+
+        @Override
+        public void initialize(Map<String, String> properties) {
+            Map<String, String> simulated = new LinkedHashMap<>(properties);
+            simulated.remove(OPTION_TENANT_PROVIDER_CLASS);
+            simulated.remove(OPTION_RULES_FILE);
+            simulated.remove(OPTION_RULES_KEY);
+            simulated.remove(OPTION_WARMUP);
+            simulated.remove(OPTION_USAGE);
+            simulated.put(OPTION_TENANT_RESOLUTION, TENANT_RESOLUTION_PARENT);
+            super.initialize(simulated, false);
+        }
+
+        /** The rule that chose the provider of the last blob dispatched. */
+        protected String ruleLabel;
+
+        @Override
+        protected void registerReplicas(RuleSet rs, String providerId) {
+            // nothing is written
+        }
+
+        @Override
+        public String chooseProviderId(Document doc, Blob blob, String blobXPath) {
+            ruleLabel = DEFAULT;
+            return super.chooseProviderId(doc, blob, blobXPath);
+        }
+
+        /**
+         * Gets the target like the live dispatcher, evaluating the rules once, and records the rule that chose it.
+         */
+        @Override
+        protected String getTarget(RuleSet rs, Document doc, Blob blob, String blobXPath) {
+            int rule = rs.compiledRules.getMatchingRule(doc, blob, blobXPath);
+            if (rule >= 0) {
+                ruleLabel = rs.compiledRules.getRule(rule);
+                return rs.compiledRules.getRuleProviderId(rule);
+            }
+            if (rs.mapTenantProviders) {
+                String providerId = getTenantProviderId(rs, doc);
+                if (providerId != null) {
+                    ruleLabel = TENANT_MAPPING;
+                    return providerId;
+                }
+            }
+            return rs.fallbackProviderId;
+        }
+    }
+
+    /**
+     * A blob of the corpus: its metadata, without content.
+     */
+    protected static class SimulatedBlob extends AbstractBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final long length;
+
+        protected SimulatedBlob(String filename, String mimeType, String encoding, String digest, long length) {
+            this.filename = filename;
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.digest = digest;
+            this.length = length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getStream() {
+            // the content is not recorded
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    /**
+     * A document of the corpus, or one of its ancestors. The methods not covered by the corpus return a neutral value:
+     * {@code null}, {@code false}, 0 or an empty collection, and do nothing.
+     */
+    protected static class SimulatedDocument implements InvocationHandler {
+
+        protected final String id;
+
+        protected final String path;
+
+        protected final String repositoryName;
+
+        protected final Document parent;
+
+        protected final Set<String> facets;
+
+        protected final Map<String, Object> values;
+
+        protected SimulatedDocument(String id, String path, String repositoryName, Document parent,
+                Set<String> facets, Map<String, Object> values) {
+            this.id = id;
+            this.path = path;
+            this.repositoryName = repositoryName;
+            this.parent = parent;
+            this.facets = facets;
+            this.values = values;
+        }
+
+        protected static Document create(String id, String path, String repositoryName, Document parent,
+                Set<String> facets, Map<String, Object> values) {
+            return (Document) Proxy.newProxyInstance(Document.class.getClassLoader(),
+                    new Class<?>[] { Document.class },
+                    new SimulatedDocument(id, path, repositoryName, parent, facets, values));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getUUID":
+                return id;
+            case "getPath":
+                return path;
+            case "getParent":
+                return parent;
+            case "getRepositoryName":
+                return repositoryName;
+            case "hasFacet":
+                return Boolean.valueOf(facets.contains(args[0]));
+            case "getFacets":
+                return new HashSet<>(facets);
+            case "getValue":
+            case "getPropertyValue":
+                return values.get(args[0]);
+            case "hashCode":
+                return Integer.valueOf(System.identityHashCode(proxy));
+            case "equals":
+                return Boolean.valueOf(proxy == args[0]);
+            case "toString":
+                return path == null ? id : path;
+            default:
+                return neutralValue(method.getReturnType());
+            }
+        }
+
+        protected static Object neutralValue(Class<?> type) {
+            if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == int.class) {
+                return Integer.valueOf(0);
+            } else if (type == long.class) {
+                return Long.valueOf(0);
+            } else if (type == short.class) {
+                return Short.valueOf((short) 0);
+            } else if (type == byte.class) {
+                return Byte.valueOf((byte) 0);
+            } else if (type == char.class) {
+                return Character.valueOf((char) 0);
+            } else if (type == double.class) {
+                return Double.valueOf(0);
+            } else if (type == float.class) {
+                return Float.valueOf(0);
+            } else if (type == List.class || type == Collection.class) {
+                return Collections.emptyList();
+            } else if (type == Set.class) {
+                return Collections.emptySet();
+            } else if (type == Map.class) {
+                return Collections.emptyMap();
+            } else if (type.isArray()) {
+                return Array.newInstance(type.getComponentType(), 0);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The result of a simulation.
+     */
+    public static class Report {
+
+        protected long documents;
+
+        protected long blobs;
+
+        protected final Map<String, Long> providers = new HashMap<>();
+
+        protected final Map<String, Long> rules = new HashMap<>();
+
+        protected long changed;
+
+        protected final Map<String, Long> changes = new HashMap<>();
+
+        protected final Histogram latency = new Histogram(new UniformReservoir(LATENCY_SAMPLES));
+
+        protected long totalNanos;
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        public long getBlobs() {
+            return blobs;
+        }
+
+        /** Number of blobs per provider. */
+        public Map<String, Long> getProviders() {
+            return providers;
+        }
+
+        /** Number of blobs per matching rule, {@value #TENANT_MAPPING} or {@code default}. */
+        public Map<String, Long> getRules() {
+            return rules;
+        }
+
+        /** Number of blobs going to another provider than with the baseline. */
+        public long getChanged() {
+            return changed;
+        }
+
+        /** Number of blobs going to another provider than with the baseline, by {@code baseline -> candidate}. */
+        public Map<String, Long> getChanges() {
+            return changes;
+        }
+
+        /**
+         * Gets the report as a map, for JSON serialization. Counts are sorted by decreasing count, and latencies are in
+         * microseconds.
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("documents", Long.valueOf(documents));
+            map.put("blobs", Long.valueOf(blobs));
+            map.put("providers", sorted(providers));
+            map.put("rules", sorted(rules));
+            map.put("changed", Long.valueOf(changed));
+            map.put("changes", sorted(changes));
+            Snapshot snapshot = latency.getSnapshot();
+            Map<String, Object> micros = new LinkedHashMap<>();
+            micros.put("mean", micros(blobs == 0 ? 0 : totalNanos / (double) blobs));
+            micros.put("p50", micros(snapshot.getMedian()));
+            micros.put("p90", micros(snapshot.getValue(0.90)));
+            micros.put("p99", micros(snapshot.get99thPercentile()));
+            micros.put("p999", micros(snapshot.get999thPercentile()));
+            micros.put("max", micros(snapshot.getMax()));
+            map.put("latencyMicros", micros);
+            return map;
+        }
+
+        protected static Map<String, Long> sorted(Map<String, Long> counts) {
+            List<Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort(Entry.<String, Long> comparingByValue().reversed());
+            Map<String, Long> map = new LinkedHashMap<>();
+            entries.forEach(en -> map.put(en.getKey(), en.getValue()));
+            return map;
+        }
+
+        protected static Double micros(double nanos) {
+            return Double.valueOf(Math.round(nanos / 10) / 100d);
+        }
+
+        public String toJson() throws IOException {
+            return MAPPER.writer(SerializationFeature.INDENT_OUTPUT).writeValueAsString(toMap());
+        }
+    }
+
+    /**
+     * Creates a simulator.
+     *
+     * @param candidate the rules and options to evaluate
+     * @param baseline the rules and options to compare with, or {@code null}
+     */
+    public DispatchSimulator(Map<String, String> candidate, Map<String, String> baseline) {
+        this.candidate = new SimulatedDispatcher();
+        this.candidate.initialize(candidate);
+        if (baseline == null) {
+            this.baseline = null;
+        } else {
+            this.baseline = new SimulatedDispatcher();
+            this.baseline.initialize(baseline);
+        }
+    }
+
+    /**
+     * Replays a corpus, reading it as a stream.
+     */
+    public Report simulate(InputStream corpus) throws IOException {
+        Report report = new Report();
+        try (MappingIterator<Map<String, Object>> it = MAPPER.readerFor(Map.class).readValues(corpus)) {
+            while (it.hasNext()) {
+                simulate(it.next(), report);
+            }
+        }
+        return report;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void simulate(Map<String, Object> record, Report report) {
+        String repositoryName = string(record.get("repository"), "default");
+        Document parent = null;
+        List<Map<String, Object>> ancestors = (List<Map<String, Object>>) record.get("ancestors");
+        if (ancestors != null) {
+            for (int i = ancestors.size() - 1; i >= 0; i--) {
+                parent = document(ancestors.get(i), repositoryName, parent);
+            }
+        }
+        Document doc = document(record, repositoryName, parent);
+        List<Map<String, Object>> blobs = (List<Map<String, Object>>) record.get("blobs");
+        if (blobs == null) {
+            blobs = Collections.emptyList();
+        }
+        report.documents++;
+        List<Blob> docBlobs = new ArrayList<>();
+        List<String> xpaths = new ArrayList<>();
+        for (Map<String, Object> b : blobs) {
+            Object length = b.get("length");
+            docBlobs.add(new SimulatedBlob(string(b.get("name"), null), string(b.get("mimeType"), null),
+                    string(b.get("encoding"), null), string(b.get("digest"), null),
+                    length instanceof Number ? ((Number) length).longValue() : 0));
+            xpaths.add(string(b.get("xpath"), "file:content"));
+        }
+        List<String> providerIds = new ArrayList<>();
+        DispatchContext.begin();
+        try {
+            for (int i = 0; i < docBlobs.size(); i++) {
+                long start = System.nanoTime();
+                String providerId = candidate.chooseProviderId(doc, docBlobs.get(i), xpaths.get(i));
+                long nanos = System.nanoTime() - start;
+                report.latency.update(nanos);
+                report.totalNanos += nanos;
+                report.blobs++;
+                providerIds.add(providerId);
+                report.providers.merge(String.valueOf(providerId), 1L, Long::sum);
+                report.rules.merge(candidate.ruleLabel, 1L, Long::sum);
+            }
+        } finally {
+            DispatchContext.end();
+        }
+        if (baseline == null) {
+            return;
+        }
+        DispatchContext.begin();
+        try {
+            for (int i = 0; i < docBlobs.size(); i++) {
+                String previous = baseline.chooseProviderId(doc, docBlobs.get(i), xpaths.get(i));
+                String providerId = providerIds.get(i);
+                if (providerId == null ? previous != null : !providerId.equals(previous)) {
+                    report.changed++;
+                    report.changes.merge(previous + " -> " + providerId, 1L, Long::sum);
+                }
+            }
+        } finally {
+            DispatchContext.end();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Document document(Map<String, Object> record, String repositoryName, Document parent) {
+        Map<String, Object> values = new HashMap<>();
+        Object properties = record.get("properties");
+        if (properties instanceof Map) {
+            ((Map<String, Object>) properties).forEach((k, v) -> values.put(k, value(v)));
+        }
+        Set<String> facets = new HashSet<>();
+        Object recordFacets = record.get("facets");
+        if (recordFacets instanceof Collection) {
+            ((Collection<?>) recordFacets).forEach(f -> facets.add(String.valueOf(f)));
+        }
+        Object tenant = record.get("tenant");
+        if (tenant != null) {
+            facets.add(MultiTenantBlobDispatcher.TENANT_FACET);
+            values.put(MultiTenantBlobDispatcher.TENANT_XPATH, value(tenant));
+        }
+        String id = string(record.get("id"), null);
+        String path = string(record.get("path"), null);
+        return SimulatedDocument.create(id, path, repositoryName, parent, facets, values);
+    }
+
+    /**
+     * Converts a JSON value to the type the repository would return.
+     */
+    protected static Serializable value(Object value) {
+        if (value instanceof Integer) {
+            return Long.valueOf(((Integer) value).longValue());
+        }
+        if (value instanceof List) {
+            ArrayList<Serializable> list = new ArrayList<>();
+            ((List<?>) value).forEach(v -> list.add(value(v)));
+            return list;
+        }
+        return (Serializable) value;
+    }
+
+    protected static String string(Object value, String defaultValue) {
+        return value == null ? defaultValue : value.toString();
+    }
+
+    /**
+     * Runs a simulation from the command line, printing the report as JSON.
+     * <p>
+     * Arguments: the candidate rules and options as a JSON object file, the corpus file, and optionally the baseline
+     * rules and options as a JSON object file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: DispatchSimulator <candidate.json> <corpus.json> [<baseline.json>]");
+            System.exit(2);
+        }
+        Map<String, String> candidate = readProperties(args[0]);
+        Map<String, String> baseline = args.length > 2 ? readProperties(args[2]) : null;
+        DispatchSimulator simulator = new DispatchSimulator(candidate, baseline);
+        Report report;
+        try (InputStream in = Files.newInputStream(Paths.get(args[1]))) {
+            report = simulator.simulate(in);
+        }
+        System.out.println(report.toJson());
+    }
+
+    protected static Map<String, String> readProperties(String file) throws IOException {
+        return RuleSource.parse(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Runs the periodic work of the live dispatchers on a background thread, so that a dispatch never pays for it, and
+ * writes out what they hold in memory when the runtime stops.
+ * <p>
+ * Every second, {@link MultiTenantBlobDispatcher#runMaintenance} is called on each dispatcher, and
+ * {@link ReplicatedBlobProvider#runMaintenance} on each replicated provider, which do what is due.
+ * Other one-off tasks can be run on the same thread with {@link #execute} and {@link #schedule}. Until the runtime is
+ * started, and in unit tests, there is no background thread and these methods return {@code false}.
+ */
+public class DispatcherMaintenance extends DefaultComponent {
+
+    private static final Log log = LogFactory.getLog(DispatcherMaintenance.class);
+
+    protected static final long PERIOD_SECONDS = 1;
+
+    protected static ScheduledExecutorService executor;
+
+    /**
+     * Runs a task on the maintenance thread.
+     *
+     * @return {@code false} if there is no maintenance thread, in which case the task was not run
+     */
+    public static boolean execute(Runnable task) {
+        return schedule(task, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Runs a task on the maintenance thread after a delay.
+     *
+     * @return {@code false} if there is no maintenance thread, in which case the task was not scheduled
+     */
+    public static synchronized boolean schedule(Runnable task, long delay, TimeUnit unit) {
+        if (executor == null) {
+            return false;
+        }
+        try {
+            executor.schedule(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Multi-tenant blob dispatcher maintenance task failed", e);
+                }
+            }, delay, unit);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int getApplicationStartedOrder() {
+        // after the repositories and blob providers
+        return 1000;
+    }
+
+    @Override
+    public void start(ComponentContext context) {
+        synchronized (DispatcherMaintenance.class) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "multi-tenant-blob-dispatcher-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(DispatcherMaintenance::runMaintenance, PERIOD_SECONDS, PERIOD_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        ScheduledExecutorService stopped;
+        synchronized (DispatcherMaintenance.class) {
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            stopped.shutdownNow();
+            stopped.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        for (MultiTenantBlobDispatcher dispatcher : MultiTenantBlobDispatcher.getInstances()) {
+            try {
+                dispatcher.flush();
+            } catch (RuntimeException e) {
+                log.error("Cannot flush multi-tenant blob dispatcher", e);
+            }
+        }
+        for (ReplicatedBlobProvider provider : ReplicatedBlobProvider.getInstances()) {
+            try {
+                provider.flush();
+            } catch (RuntimeException e) {
+                log.error("Cannot flush replicated blob provider", e);
+            }
+        }
+    }
+
+    protected static void runMaintenance() {
+        if (TenantStamp.isEnabled()) {
+            try {
+                TenantStamp.refreshPendingFolders();
+            } catch (RuntimeException e) {
+                log.error("Cannot refresh the folders whose descendants are stamped again", e);
+            }
+        }
+        for (MultiTenantBlobDispatcher dispatcher : MultiTenantBlobDispatcher.getInstances()) {
+            try {
+                dispatcher.runMaintenance();
+            } catch (RuntimeException e) {
+                log.error("Multi-tenant blob dispatcher maintenance failed", e);
+            }
+        }
+        for (ReplicatedBlobProvider provider : ReplicatedBlobProvider.getInstances()) {
+            try {
+                provider.runMaintenance();
+            } catch (RuntimeException e) {
+                log.error("Replicated blob provider maintenance failed", e);
+            }
+        }
+    }
+
+}
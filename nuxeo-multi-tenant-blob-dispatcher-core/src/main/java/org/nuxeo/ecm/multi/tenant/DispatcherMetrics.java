@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.runtime.metrics.MetricsService;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the {@link MultiTenantBlobDispatcher}, registered in the Nuxeo metric registry:
+ * <ul>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.dispatch}: timer of {@code getProviderId}</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.provider.<providerId>}: how many blobs were dispatched to each
+ * provider, that is how often each rule was chosen</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.tenant.depth}: histogram of the number of ancestors examined to
+ * resolve a tenant</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.tenant.notfound}: how often no tenant was found</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.redispatch.blobs} and {@code .redispatch.bytes}: blobs copied to
+ * another provider by the {@link RedispatchAction}</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.bulkhead.queued}: blob writes that waited for the limits of their
+ * tenant</li>
+ * <li>{@code nuxeo.blobs.dispatcher.multitenant.bulkhead.rejected} and {@code .bulkhead.rejected.<tenantId>}: blob
+ * writes rejected by the limits of their tenant, see {@link TenantBulkhead}</li>
+ * </ul>
+ * Counters are backed by {@link java.util.concurrent.atomic.LongAdder}s, and the per-provider counters are looked up
+ * in a concurrent map, so that the dispatch path doesn't contend on them.
+ */
+public class DispatcherMetrics {
+
+    public static final String PREFIX = "nuxeo.blobs.dispatcher.multitenant";
+
+    protected final MetricRegistry registry;
+
+    protected final Timer dispatchTimer;
+
+    protected final Histogram tenantDepth;
+
+    protected final Counter tenantNotFound;
+
+    protected final Counter redispatchBlobs;
+
+    protected final Counter redispatchBytes;
+
+    protected final Counter writeQueued;
+
+    protected final Counter writeRejected;
+
+    protected final Map<String, Counter> providerCounters = new ConcurrentHashMap<>();
+
+    protected final Map<Object, Counter> tenantRejectedCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the metrics in the Nuxeo metric registry.
+     */
+    public DispatcherMetrics() {
+        this(SharedMetricRegistries.getOrCreate(MetricsService.class.getName()));
+    }
+
+    /**
+     * Creates the metrics in the given registry, for instance a private one for a simulation.
+     */
+    public DispatcherMetrics(MetricRegistry registry) {
+        this.registry = registry;
+        dispatchTimer = registry.timer(MetricRegistry.name(PREFIX, "dispatch"));
+        tenantDepth = registry.histogram(MetricRegistry.name(PREFIX, "tenant", "depth"));
+        tenantNotFound = registry.counter(MetricRegistry.name(PREFIX, "tenant", "notfound"));
+        redispatchBlobs = registry.counter(MetricRegistry.name(PREFIX, "redispatch", "blobs"));
+        redispatchBytes = registry.counter(MetricRegistry.name(PREFIX, "redispatch", "bytes"));
+        writeQueued = registry.counter(MetricRegistry.name(PREFIX, "bulkhead", "queued"));
+        writeRejected = registry.counter(MetricRegistry.name(PREFIX, "bulkhead", "rejected"));
+    }
+
+    public long startDispatch() {
+        return System.nanoTime();
+    }
+
+    public void endDispatch(long start, String providerId) {
+        dispatchTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (providerId != null) {
+            providerCounters.computeIfAbsent(providerId,
+                    id -> registry.counter(MetricRegistry.name(PREFIX, "provider", id))).inc();
+        }
+    }
+
+    public void tenantResolved(int depth) {
+        tenantDepth.update(depth);
+    }
+
+    public void tenantNotFound() {
+        tenantNotFound.inc();
+    }
+
+    public void blobRedispatched(long length) {
+        redispatchBlobs.inc();
+        if (length > 0) {
+            redispatchBytes.inc(length);
+        }
+    }
+
+    public void writeQueued() {
+        writeQueued.inc();
+    }
+
+    public void writeRejected(Object tenant) {
+        writeRejected.inc();
+        tenantRejectedCounters.computeIfAbsent(tenant,
+                t -> registry.counter(MetricRegistry.name(PREFIX, "bulkhead", "rejected", t.toString()))).inc();
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Returns as JSON the number of blobs and bytes of each tenant in each provider counted by the dispatcher, see
+ * {@link TenantUsage}, without scanning the repository.
+ */
+@Operation(id = GetTenantUsage.ID, category = Constants.CAT_BLOB, label = "Get Multi-Tenant Usage", description = "Returns the number of blobs and bytes of each tenant, or of the given tenant, in each provider, as counted by the multi-tenant blob dispatcher across the cluster. Requires the multitenant.usage option. Administrators only.")
+public class GetTenantUsage {
+
+    public static final String ID = "MultiTenant.GetUsage";
+
+    @Context
+    protected CoreSession session;
+
+    /** The tenant to get, or all of them. The blobs of documents without tenant are under the empty tenant. */
+    @Param(name = "tenant", required = false)
+    protected String tenant;
+
+    @OperationMethod
+    public Blob run() throws IOException {
+        NuxeoPrincipal principal = session.getPrincipal();
+        if (!principal.isAdministrator()) {
+            throw new NuxeoException("Only administrators can get the tenant usage", 403);
+        }
+        TenantUsage usage = RedispatchAction.getDispatcher().getUsage();
+        if (usage == null) {
+            throw new NuxeoException(
+                    "Tenant usage is not counted, set the " + MultiTenantBlobDispatcher.OPTION_USAGE + " option", 404);
+        }
+        Map<String, Map<String, Map<String, Long>>> result = usage.getUsage(tenant);
+        return Blobs.createJSONBlob(new ObjectMapper().writeValueAsString(result));
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.regex.Pattern;
+
+/**
+ * Precompiled glob, where {@code ?} matches a single arbitrary character and {@code *} any number of characters
+ * (including none).
+ * <p>
+ * Globs without {@code ?} are matched with plain string comparisons of their literal parts; other globs use a regular
+ * expression compiled once.
+ */
+public class GlobMatcher {
+
+    protected final String glob;
+
+    /** Literal parts between the {@code *}, or {@code null} if a regular expression is needed. */
+    protected final String[] parts;
+
+    protected final Pattern pattern;
+
+    public GlobMatcher(String glob) {
+        this.glob = glob;
+        if (glob.indexOf('?') < 0) {
+            parts = glob.split("\\*", -1);
+            pattern = null;
+        } else {
+            parts = null;
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '?' || c == '*') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '?' ? "." : ".*");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            pattern = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        }
+    }
+
+    /**
+     * Gets the literal prefix of the glob, before its first wildcard.
+     */
+    public String getLiteralPrefix() {
+        int i = 0;
+        while (i < glob.length() && glob.charAt(i) != '*' && glob.charAt(i) != '?') {
+            i++;
+        }
+        return glob.substring(0, i);
+    }
+
+    /**
+     * Checks whether the glob is a literal prefix followed by a single final {@code *}, in which case any string
+     * starting with {@link #getLiteralPrefix} matches.
+     */
+    public boolean isPrefixGlob() {
+        return parts != null && parts.length == 2 && parts[1].isEmpty();
+    }
+
+    public boolean matches(String string) {
+        if (pattern != null) {
+            return pattern.matcher(string).matches();
+        }
+        if (parts.length == 1) {
+            return string.equals(parts[0]);
+        }
+        String first = parts[0];
+        String last = parts[parts.length - 1];
+        if (string.length() < first.length() + last.length() || !string.startsWith(first)
+                || !string.endsWith(last)) {
+            return false;
+        }
+        int start = first.length();
+        int end = string.length() - last.length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            String part = parts[i];
+            int found = string.indexOf(part, start);
+            if (found < 0 || found + part.length() > end) {
+                return false;
+            }
+            start = found + part.length();
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return glob;
+    }
+
+}
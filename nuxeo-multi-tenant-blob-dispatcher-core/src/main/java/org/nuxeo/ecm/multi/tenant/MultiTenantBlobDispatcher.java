@@ -19,11 +19,40 @@
  */
 package org.nuxeo.ecm.multi.tenant;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.model.PropertyException;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobProvider;
 import org.nuxeo.ecm.core.blob.DefaultBlobDispatcher;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
 import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.api.Framework;
 
 /**
  * Multi-Tenant blob dispatcher, that uses the repository name as the blob provider.
@@ -39,6 +68,75 @@ import org.nuxeo.ecm.core.model.Document;
  * <p>
  * Binaries may be stored by tenant with use of the {@code ecm:tenant} property. Tenant name is case sensitive.
  * <p>
+ * Properties whose name starts with {@value #OPTION_PREFIX} are not rules but options of the dispatcher itself:
+ * <ul>
+ * <li>{@code multitenant.tenantCacheSize}: maximum number of folders whose resolved tenant is cached (default
+ * {@value #DEFAULT_TENANT_CACHE_SIZE}, 0 to disable the cache). The cache is invalidated when a {@code TenantConfig}
+ * facet is added, removed or changed, and when a folder is moved or removed.</li>
+ * <li>{@code multitenant.tenantCacheTtl}: number of seconds during which the tenant found for a folder is remembered,
+ * so that changes made on another cluster node are eventually seen (default {@value #DEFAULT_TENANT_CACHE_TTL}, 0 to
+ * keep it until evicted or invalidated).</li>
+ * <li>{@code multitenant.noTenantCacheTtl}: number of seconds during which a folder found to have no tenant is
+ * remembered as such (default {@value #DEFAULT_NO_TENANT_CACHE_TTL}, 0 to always walk up again).</li>
+ * <li>{@code multitenant.tenantNotFoundReportInterval}: minimum number of seconds between two warnings about documents
+ * whose tenant is not found; the warning gives their count and a few sample documents (default
+ * {@value #DEFAULT_TENANT_NOT_FOUND_REPORT_INTERVAL}, 0 to log each of them).</li>
+ * <li>{@code multitenant.tenantResolution}: {@code parent} (default) to resolve the tenant by walking up the parents one
+ * at a time, or {@code path} to derive all the ancestors from the document path and find the nearest one holding the
+ * {@code TenantConfig} facet with a single query.</li>
+ * <li>{@code multitenant.tenantStamp}: {@code true} to stamp documents with their tenant when they are created, copied
+ * or moved, and read that stamp instead of walking up the ancestors, see {@link TenantStamp} (default
+ * {@code false}).</li>
+ * <li>{@code multitenant.tenantProvider}: template of the provider used for the documents of a tenant, for instance
+ * {@code tenant-${tenantId}}, and {@code multitenant.tenantProvider.<tenantId>}: explicit provider for a given tenant.
+ * When present, the tenant is resolved once when no rule matches, and mapped to its provider with a hash lookup before
+ * falling back to the default provider. This replaces one {@code ecm:tenant=...} rule per tenant.</li>
+ * <li>{@code multitenant.tenantProviderClass} and {@code multitenant.tenantProviderProperty.<name>}: class and
+ * properties of the providers produced by the {@code multitenant.tenantProvider} template, which are then registered on
+ * first use by a {@link TenantProviderFactory} instead of being declared; {@code multitenant.tenantProviderIdleTimeout}:
+ * number of seconds after which a provider neither written to nor read from is closed (default
+ * {@value #DEFAULT_TENANT_PROVIDER_IDLE_TIMEOUT}, 0 to never close them).</li>
+ * <li>{@code multitenant.asyncRedispatch}: {@code true} to move the blobs of a document whose changes affect their
+ * dispatch in a {@link RedispatchWork} after commit, instead of during the save (default {@code false}).</li>
+ * <li>{@code multitenant.rulesFile}, or {@code multitenant.rulesKey} and {@code multitenant.rulesKeyValueStore}: JSON
+ * file, or key-value store entry, from which the rules and tenant provider mappings are reloaded when they change,
+ * checked every {@code multitenant.rulesReloadInterval} seconds (default {@value #DEFAULT_RULES_RELOAD_INTERVAL}) by
+ * the {@link DispatcherMaintenance} thread, see {@link #reload}.</li>
+ * <li>{@code multitenant.tenantMaxConcurrentWrites} and {@code multitenant.tenantMaxBytesPerSecond}: default limits
+ * on the concurrent saves writing blobs of a tenant and on its write rate, overridden for a tenant by
+ * {@code multitenant.tenantMaxConcurrentWrites.<tenantId>} and {@code multitenant.tenantMaxBytesPerSecond.<tenantId>}
+ * (0 for no limit, the default); {@code multitenant.tenantWriteTimeout}: number of seconds a write may wait for these
+ * limits before being rejected (default {@value #DEFAULT_TENANT_WRITE_TIMEOUT}, rejected without waiting), see
+ * {@link TenantBulkhead}.</li>
+ * <li>{@code multitenant.replicaQuorum}: number of replicas of a {@link ReplicaTarget} that must store a blob before
+ * its write is acknowledged (default 0, for all of them); {@code multitenant.replicaWriteTimeout}: number of seconds to
+ * wait for them (default {@value #DEFAULT_REPLICA_WRITE_TIMEOUT}).</li>
+ * <li>{@code multitenant.coldProvider.<providerId>}: provider to which the blobs of a hot provider move when they have
+ * not been read for {@code multitenant.coldAfterDays} days (default {@value #DEFAULT_COLD_AFTER_DAYS}), or
+ * {@code multitenant.coldAfterDays.<providerId>} for that provider; reads are recorded by a {@link BlobAccessTracker}
+ * in the key-value store {@code multitenant.accessKeyValueStore} (default {@code default}), and the blobs are moved by
+ * the scheduled {@link TieringListener}.</li>
+ * <li>{@code multitenant.usage}: {@code true} to count the blobs and bytes of each tenant in each provider, see
+ * {@link TenantUsage} (default {@code false}); the totals are kept in the key-value store
+ * {@code multitenant.usageKeyValueStore} (default {@code default}), updated by the maintenance thread every
+ * {@code multitenant.usageFlushInterval} seconds (default {@value #DEFAULT_USAGE_FLUSH_INTERVAL}) and at shutdown.
+ * The blobs are counted once the transaction storing or removing them commits.</li>
+ * <li>{@code multitenant.warmup}: {@code true} to fill the tenant cache from all the tenant roots and check the
+ * providers in the background at startup, see {@link TenantWarmup} (default {@code false}).</li>
+ * <li>{@code multitenant.compileRules}: {@code true} (default) to compile the rules at initialization into a
+ * {@link CompiledRules} decision structure, {@code false} to evaluate them one by one.</li>
+ * </ul>
+ * <p>
+ * While a {@link DispatchContext} is open, typically during a document save, the document-level properties tested by
+ * the rules and the tenant are computed once per document instead of once per blob.
+ * <p>
+ * The provider of a rule or tenant mapping can be a {@link ShardTarget} like {@code acme-shard[0..7]}, to spread the
+ * blobs over several providers by a stable hash of their document id, or a {@link ReplicaTarget} like
+ * {@code acme-local+acme-s3}, to store each blob in all of them.
+ * <p>
+ * Dispatch latency, provider choices, tenant resolution depth and tenants not found are reported through
+ * {@link DispatcherMetrics}.
+ * <p>
  * Available operators between property and value are =, !=, &lt, > and ~. The operators &lt; and > work with integer
  * values. The operator ~ does glob matching using {@code ?} to match a single arbitrary character, and {@code *} to
  * match any number of characters (including none).
@@ -69,12 +167,1245 @@ public class MultiTenantBlobDispatcher extends DefaultBlobDispatcher {
 
     protected static final String TENANT_XPATH = "tenantconfig:tenantId";
 
+    protected static final String BLOB_PREFIX = "blob:";
+
+    public static final String OPTION_PREFIX = "multitenant.";
+
+    public static final String OPTION_TENANT_CACHE_SIZE = OPTION_PREFIX + "tenantCacheSize";
+
+    public static final int DEFAULT_TENANT_CACHE_SIZE = 10_000;
+
+    public static final String OPTION_TENANT_CACHE_TTL = OPTION_PREFIX + "tenantCacheTtl";
+
+    public static final int DEFAULT_TENANT_CACHE_TTL = 600;
+
+    public static final String OPTION_NO_TENANT_CACHE_TTL = OPTION_PREFIX + "noTenantCacheTtl";
+
+    public static final int DEFAULT_NO_TENANT_CACHE_TTL = 60;
+
+    public static final String OPTION_TENANT_NOT_FOUND_REPORT_INTERVAL = OPTION_PREFIX
+            + "tenantNotFoundReportInterval";
+
+    public static final int DEFAULT_TENANT_NOT_FOUND_REPORT_INTERVAL = 60;
+
+    public static final String OPTION_TENANT_RESOLUTION = OPTION_PREFIX + "tenantResolution";
+
+    public static final String TENANT_RESOLUTION_PARENT = "parent";
+
+    public static final String TENANT_RESOLUTION_PATH = "path";
+
+    public static final String OPTION_TENANT_STAMP = OPTION_PREFIX + "tenantStamp";
+
+    public static final String OPTION_TENANT_PROVIDER = OPTION_PREFIX + "tenantProvider";
+
+    public static final String TENANT_ID_PLACEHOLDER = "${tenantId}";
+
+    public static final String OPTION_TENANT_PROVIDER_CLASS = OPTION_PREFIX + "tenantProviderClass";
+
+    public static final String OPTION_TENANT_PROVIDER_PROPERTY = OPTION_PREFIX + "tenantProviderProperty";
+
+    public static final String OPTION_TENANT_PROVIDER_IDLE_TIMEOUT = OPTION_PREFIX + "tenantProviderIdleTimeout";
+
+    public static final int DEFAULT_TENANT_PROVIDER_IDLE_TIMEOUT = 1800;
+
+    public static final String OPTION_COMPILE_RULES = OPTION_PREFIX + "compileRules";
+
+    public static final String OPTION_ASYNC_REDISPATCH = OPTION_PREFIX + "asyncRedispatch";
+
+    public static final String OPTION_RULES_FILE = OPTION_PREFIX + "rulesFile";
+
+    public static final String OPTION_RULES_KEY = OPTION_PREFIX + "rulesKey";
+
+    public static final String OPTION_RULES_KEY_VALUE_STORE = OPTION_PREFIX + "rulesKeyValueStore";
+
+    public static final String DEFAULT_RULES_KEY_VALUE_STORE = "default";
+
+    public static final String OPTION_RULES_RELOAD_INTERVAL = OPTION_PREFIX + "rulesReloadInterval";
+
+    public static final int DEFAULT_RULES_RELOAD_INTERVAL = 30;
+
+    public static final String OPTION_TENANT_MAX_CONCURRENT_WRITES = OPTION_PREFIX + "tenantMaxConcurrentWrites";
+
+    public static final String OPTION_TENANT_MAX_BYTES_PER_SECOND = OPTION_PREFIX + "tenantMaxBytesPerSecond";
+
+    public static final String OPTION_TENANT_WRITE_TIMEOUT = OPTION_PREFIX + "tenantWriteTimeout";
+
+    public static final int DEFAULT_TENANT_WRITE_TIMEOUT = 0;
+
+    public static final String OPTION_WARMUP = OPTION_PREFIX + "warmup";
+
+    public static final String OPTION_REPLICA_QUORUM = OPTION_PREFIX + "replicaQuorum";
+
+    public static final String OPTION_REPLICA_WRITE_TIMEOUT = OPTION_PREFIX + "replicaWriteTimeout";
+
+    public static final int DEFAULT_REPLICA_WRITE_TIMEOUT = ReplicatedBlobProvider.DEFAULT_WRITE_TIMEOUT;
+
+    public static final String OPTION_COLD_PROVIDER = OPTION_PREFIX + "coldProvider";
+
+    public static final String OPTION_COLD_AFTER_DAYS = OPTION_PREFIX + "coldAfterDays";
+
+    public static final int DEFAULT_COLD_AFTER_DAYS = 90;
+
+    public static final String OPTION_ACCESS_KEY_VALUE_STORE = OPTION_PREFIX + "accessKeyValueStore";
+
+    public static final String OPTION_USAGE = OPTION_PREFIX + "usage";
+
+    public static final String OPTION_USAGE_KEY_VALUE_STORE = OPTION_PREFIX + "usageKeyValueStore";
+
+    public static final String OPTION_USAGE_FLUSH_INTERVAL = OPTION_PREFIX + "usageFlushInterval";
+
+    public static final int DEFAULT_USAGE_FLUSH_INTERVAL = 60;
+
+    protected static final String DC_MODIFIED = "dc:modified";
+
+    /** Maximum number of paths in one query fetching tenant roots. */
+    protected static final int FETCH_BATCH_SIZE = 200;
+
+    protected static final String DEFAULT = "default";
+
+    /** Live dispatchers, so that event listeners can reach their caches. */
+    protected static final Set<MultiTenantBlobDispatcher> INSTANCES = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    protected static final AtomicLong INITIALIZATIONS = new AtomicLong();
+
+    /** The order of initialization of this dispatcher, the last one replacing the previous ones on reload. */
+    protected long initialization;
+
+    protected Map<String, String> options;
+
+    protected TenantCache tenantCache;
+
+    protected TenantNotFoundReporter tenantNotFoundReporter;
+
+    protected boolean resolveTenantByPath;
+
+    protected boolean tenantStamp;
+
+    protected boolean asyncRedispatch;
+
+    /** Per-tenant write limits, or {@code null} if there are none. */
+    protected TenantBulkhead bulkhead;
+
+    /** Cold provider of each hot provider, empty if there is no tiering. */
+    protected Map<String, String> coldProviders;
+
+    protected Map<String, Integer> coldAfterDays;
+
+    protected int defaultColdAfterDays;
+
+    /** Reads of the blobs of the hot providers, or {@code null} if there is no tiering. */
+    protected BlobAccessTracker accessTracker;
+
+    /** Blobs and bytes by tenant and provider, or {@code null} if not counted. */
+    protected TenantUsage usage;
+
+    protected final DispatcherMetrics metrics = newMetrics();
+
+    /** The current rules, replaced as a whole when reloaded. */
+    protected volatile RuleSet ruleSet;
+
+    /** Where the rules are reloaded from, or {@code null}. */
+    protected RuleSource ruleSource;
+
+    protected long reloadIntervalNanos;
+
+    protected final AtomicLong nextReloadCheck = new AtomicLong();
+
+    /** Registers the providers produced by the template, kept across reloads, or {@code null}. */
+    protected TenantProviderFactory tenantProviderFactory;
+
+    /**
+     * The rules and tenant provider mappings in effect. Never modified once published, except for the tenants mapped
+     * through the template as they are encountered.
+     */
+    protected static class RuleSet {
+
+        /** The rules, or {@code null} when dispatching by repository name. */
+        protected CompiledRules compiledRules;
+
+        /** The rules and options these rules were built from. */
+        protected Map<String, String> properties;
+
+        /** The provider of the {@code default} rule. */
+        protected String fallbackProviderId;
+
+        /** The providers of the rules, or {@code null} when dispatching by repository name. */
+        protected Set<String> ruleProviderIds;
+
+        /** The document properties tested by the rules. */
+        protected Set<String> ruleXPaths;
+
+        protected boolean mapTenantProviders;
+
+        /** Explicitly mapped tenants, then tenants mapped through the template. */
+        protected Map<Object, String> tenantProviders;
+
+        protected Set<String> tenantProviderIds;
+
+        protected String tenantProviderTemplate;
+
+        protected String tenantProviderPrefix;
+
+        protected String tenantProviderSuffix;
+
+        /** Registers the providers produced by the template, or {@code null} if they are declared. */
+        protected TenantProviderFactory tenantProviderFactory;
+
+        /** The targets of the rules and tenant mappings spreading blobs over several providers. */
+        protected Map<String, ShardTarget> shardTargets;
+
+        /** The targets of the rules and tenant mappings storing blobs in several providers, by provider id. */
+        protected Map<String, ReplicaTarget> replicaTargets;
+
+        protected int replicaQuorum;
+
+        protected int replicaWriteTimeout;
+
+        /** The providers found by {@link #getBlobProviderInstance}, dropped with these rules when they are reloaded. */
+        protected BlobProviderCache providerCache;
+
+        /** The view returned by {@link #getBlobProviderIds}, created on first use. */
+        protected Collection<String> blobProviderIds;
+
+        /**
+         * Adds the providers of a rule or tenant mapping target, which may be a {@link ShardTarget}.
+         */
+        protected void addProviderIds(Collection<String> providerIds, String target) {
+            ShardTarget shards = ShardTarget.parse(target);
+            if (shards == null) {
+                addProviderId(providerIds, target);
+            } else {
+                shardTargets.put(target, shards);
+                shards.getProviderIds().forEach(id -> addProviderId(providerIds, id));
+            }
+        }
+
+        protected void addProviderId(Collection<String> providerIds, String providerId) {
+            ReplicaTarget replicas = ReplicaTarget.parse(providerId);
+            if (replicas != null) {
+                replicaTargets.put(providerId, replicas);
+            }
+            providerIds.add(providerId);
+        }
+
+        /**
+         * Registers the replicated provider of a {@link ReplicaTarget}, if the given provider is one.
+         */
+        protected void registerReplicas(String providerId) {
+            if (providerId != null && !replicaTargets.isEmpty()) {
+                ReplicaTarget replicas = replicaTargets.get(providerId);
+                if (replicas != null) {
+                    replicas.register(replicaQuorum, replicaWriteTimeout);
+                }
+            }
+        }
+
+        /**
+         * Checks whether a provider id is produced by the tenant provider template.
+         */
+        protected boolean isTenantProviderId(String providerId) {
+            return tenantProviderTemplate != null
+                    && providerId.length() > tenantProviderPrefix.length() + tenantProviderSuffix.length()
+                    && providerId.startsWith(tenantProviderPrefix) && providerId.endsWith(tenantProviderSuffix);
+        }
+
+        /**
+         * Makes available the provider produced by the template for a tenant not yet seen, given its id.
+         */
+        protected void registerTemplateProviderId(String providerId) {
+            if (tenantProviderFactory != null) {
+                getTemplateProviderId(providerId.substring(tenantProviderPrefix.length(),
+                        providerId.length() - tenantProviderSuffix.length()));
+            }
+        }
+
+        /**
+         * Gets the provider produced by the template for a tenant, registering it if needed.
+         */
+        protected String getTemplateProviderId(Object tenant) {
+            return tenantProviders.computeIfAbsent(tenant, t -> {
+                String id = tenantProviderPrefix + t + tenantProviderSuffix;
+                if (tenantProviderFactory != null) {
+                    tenantProviderFactory.register(id, t);
+                }
+                tenantProviderIds.add(id);
+                return id;
+            });
+        }
+    }
+
+    /**
+     * Creates the metrics of this dispatcher, in the Nuxeo metric registry.
+     */
+    protected DispatcherMetrics newMetrics() {
+        return new DispatcherMetrics();
+    }
+
+    /**
+     * Creates the tracker of the reads of the blobs of the hot providers.
+     */
+    protected BlobAccessTracker newAccessTracker(String storeName) {
+        return new BlobAccessTracker(storeName);
+    }
+
+    /**
+     * Creates the count of the blobs and bytes of each tenant in each provider.
+     */
+    protected TenantUsage newUsage(String storeName, long flushIntervalSeconds) {
+        return new TenantUsage(storeName, flushIntervalSeconds);
+    }
+
+    /**
+     * Gets the dispatchers currently initialized.
+     */
+    public static Collection<MultiTenantBlobDispatcher> getInstances() {
+        synchronized (INSTANCES) {
+            return new ArrayList<>(INSTANCES);
+        }
+    }
+
+    /**
+     * Gets the last initialized dispatcher, whose rules are the live ones: a dispatcher replaced by a reload may not be
+     * garbage collected yet.
+     *
+     * @return the dispatcher, or {@code null} if there is none
+     */
+    public static MultiTenantBlobDispatcher getLatestInstance() {
+        MultiTenantBlobDispatcher latest = null;
+        synchronized (INSTANCES) {
+            for (MultiTenantBlobDispatcher dispatcher : INSTANCES) {
+                if (latest == null || dispatcher.initialization > latest.initialization) {
+                    latest = dispatcher;
+                }
+            }
+        }
+        return latest;
+    }
+
+    @Override
+    public void initialize(Map<String, String> properties) {
+        initialize(properties, true);
+    }
+
+    /**
+     * Initializes this dispatcher, adding it to the {@linkplain #getInstances instances} used by the listeners and
+     * the blob lookups only if {@code register} is {@code true}.
+     */
+    protected void initialize(Map<String, String> properties, boolean register) {
+        Map<String, String> rules = new LinkedHashMap<>();
+        options = new HashMap<>();
+        splitProperties(properties, rules, options);
+        super.initialize(rules);
+        tenantCache = new TenantCache(getIntOption(OPTION_TENANT_CACHE_SIZE, DEFAULT_TENANT_CACHE_SIZE),
+                getIntOption(OPTION_TENANT_CACHE_TTL, DEFAULT_TENANT_CACHE_TTL),
+                getIntOption(OPTION_NO_TENANT_CACHE_TTL, DEFAULT_NO_TENANT_CACHE_TTL));
+        tenantNotFoundReporter = new TenantNotFoundReporter(
+                getIntOption(OPTION_TENANT_NOT_FOUND_REPORT_INTERVAL, DEFAULT_TENANT_NOT_FOUND_REPORT_INTERVAL));
+        String resolution = getOption(OPTION_TENANT_RESOLUTION, TENANT_RESOLUTION_PARENT);
+        if (!resolution.equals(TENANT_RESOLUTION_PARENT) && !resolution.equals(TENANT_RESOLUTION_PATH)) {
+            log.error("Invalid value for dispatcher option " + OPTION_TENANT_RESOLUTION + ": " + resolution);
+        }
+        resolveTenantByPath = resolution.equals(TENANT_RESOLUTION_PATH);
+        tenantStamp = getBooleanOption(OPTION_TENANT_STAMP, false);
+        asyncRedispatch = getBooleanOption(OPTION_ASYNC_REDISPATCH, false);
+        int maxConcurrentWrites = getIntOption(OPTION_TENANT_MAX_CONCURRENT_WRITES, 0);
+        long maxBytesPerSecond = getLongOption(options, OPTION_TENANT_MAX_BYTES_PER_SECOND, 0);
+        Map<String, Integer> maxConcurrentWritesByTenant = TenantBulkhead.getOverrides(options,
+                OPTION_TENANT_MAX_CONCURRENT_WRITES, Integer::valueOf);
+        Map<String, Long> maxBytesPerSecondByTenant = TenantBulkhead.getOverrides(options,
+                OPTION_TENANT_MAX_BYTES_PER_SECOND, Long::valueOf);
+        if (maxConcurrentWrites > 0 || maxBytesPerSecond > 0 || !maxConcurrentWritesByTenant.isEmpty()
+                || !maxBytesPerSecondByTenant.isEmpty()) {
+            bulkhead = new TenantBulkhead(maxConcurrentWrites, maxConcurrentWritesByTenant, maxBytesPerSecond,
+                    maxBytesPerSecondByTenant, getIntOption(OPTION_TENANT_WRITE_TIMEOUT, DEFAULT_TENANT_WRITE_TIMEOUT),
+                    metrics);
+        }
+        coldProviders = TenantBulkhead.getOverrides(options, OPTION_COLD_PROVIDER, String::valueOf);
+        coldAfterDays = TenantBulkhead.getOverrides(options, OPTION_COLD_AFTER_DAYS, Integer::valueOf);
+        defaultColdAfterDays = getIntOption(OPTION_COLD_AFTER_DAYS, DEFAULT_COLD_AFTER_DAYS);
+        if (!coldProviders.isEmpty()) {
+            accessTracker = newAccessTracker(getOption(OPTION_ACCESS_KEY_VALUE_STORE, DEFAULT_RULES_KEY_VALUE_STORE));
+        }
+        if (getBooleanOption(OPTION_USAGE, false)) {
+            usage = newUsage(getOption(OPTION_USAGE_KEY_VALUE_STORE, DEFAULT_RULES_KEY_VALUE_STORE),
+                    getIntOption(OPTION_USAGE_FLUSH_INTERVAL, DEFAULT_USAGE_FLUSH_INTERVAL));
+        }
+        ruleSet = newRuleSet(rules, options);
+        registerReplicaTargets(ruleSet);
+        String rulesFile = getOption(OPTION_RULES_FILE, null);
+        String rulesKey = getOption(OPTION_RULES_KEY, null);
+        if (rulesFile != null) {
+            ruleSource = RuleSource.fromFile(Paths.get(rulesFile));
+        } else if (rulesKey != null) {
+            ruleSource = RuleSource.fromKeyValueStore(
+                    getOption(OPTION_RULES_KEY_VALUE_STORE, DEFAULT_RULES_KEY_VALUE_STORE), rulesKey);
+        }
+        reloadIntervalNanos = TimeUnit.SECONDS.toNanos(
+                getIntOption(OPTION_RULES_RELOAD_INTERVAL, DEFAULT_RULES_RELOAD_INTERVAL));
+        nextReloadCheck.set(System.nanoTime());
+        if (register) {
+            initialization = INITIALIZATIONS.incrementAndGet();
+            INSTANCES.add(this);
+        }
+        if (getBooleanOption(OPTION_WARMUP, false)) {
+            TenantWarmup.schedule(this);
+        }
+    }
+
+    protected static void splitProperties(Map<String, String> properties, Map<String, String> rules,
+            Map<String, String> options) {
+        for (Entry<String, String> en : properties.entrySet()) {
+            if (en.getKey().startsWith(OPTION_PREFIX)) {
+                options.put(en.getKey(), en.getValue());
+            } else {
+                rules.put(en.getKey(), en.getValue());
+            }
+        }
+    }
+
+    /**
+     * Builds the rules and tenant provider mappings, without publishing them.
+     */
+    protected RuleSet newRuleSet(Map<String, String> rules, Map<String, String> options) {
+        RuleSet rs = new RuleSet();
+        rs.properties = new LinkedHashMap<>(rules);
+        rs.properties.putAll(options);
+        rs.fallbackProviderId = rules.get(DEFAULT);
+        rs.shardTargets = new HashMap<>();
+        rs.replicaTargets = new ConcurrentHashMap<>();
+        rs.replicaQuorum = getIntOption(options, OPTION_REPLICA_QUORUM, 0);
+        rs.replicaWriteTimeout = getIntOption(options, OPTION_REPLICA_WRITE_TIMEOUT, DEFAULT_REPLICA_WRITE_TIMEOUT);
+        rs.providerCache = new BlobProviderCache(id -> loadBlobProvider(rs, id));
+        if (!rules.isEmpty()) {
+            rs.compiledRules = new CompiledRules(this, rules,
+                    getBooleanOption(options, OPTION_COMPILE_RULES, true));
+            rs.ruleProviderIds = new LinkedHashSet<>();
+            rules.values().forEach(target -> rs.addProviderIds(rs.ruleProviderIds, target));
+            if (coldProviders != null) {
+                coldProviders.values().forEach(target -> rs.addProviderId(rs.ruleProviderIds, target));
+            }
+        }
+        rs.ruleXPaths = new HashSet<>();
+        for (String rule : rules.keySet()) {
+            List<CompiledRules.ParsedClause> clauses = CompiledRules.parseClauses(rule);
+            if (clauses != null) {
+                clauses.forEach(clause -> rs.ruleXPaths.add(clause.xpath));
+            }
+        }
+        rs.tenantProviders = new ConcurrentHashMap<>();
+        rs.tenantProviderIds = ConcurrentHashMap.newKeySet();
+        String explicitPrefix = OPTION_TENANT_PROVIDER + '.';
+        for (Entry<String, String> en : options.entrySet()) {
+            if (en.getKey().startsWith(explicitPrefix)) {
+                rs.tenantProviders.put(en.getKey().substring(explicitPrefix.length()), en.getValue().trim());
+                rs.addProviderIds(rs.tenantProviderIds, en.getValue().trim());
+            }
+        }
+        String template = getOption(options, OPTION_TENANT_PROVIDER, null);
+        if (template != null) {
+            int i = template.indexOf(TENANT_ID_PLACEHOLDER);
+            if (i < 0) {
+                log.error("Invalid value for dispatcher option " + OPTION_TENANT_PROVIDER + ", missing "
+                        + TENANT_ID_PLACEHOLDER + ": " + template);
+            } else {
+                rs.tenantProviderTemplate = template;
+                rs.tenantProviderPrefix = template.substring(0, i);
+                rs.tenantProviderSuffix = template.substring(i + TENANT_ID_PLACEHOLDER.length());
+            }
+        }
+        String providerClass = getOption(options, OPTION_TENANT_PROVIDER_CLASS, null);
+        if (providerClass != null && rs.tenantProviderTemplate != null) {
+            try {
+                Map<String, String> providerProperties = new HashMap<>();
+                String propertyPrefix = OPTION_TENANT_PROVIDER_PROPERTY + '.';
+                for (Entry<String, String> en : options.entrySet()) {
+                    if (en.getKey().startsWith(propertyPrefix)) {
+                        providerProperties.put(en.getKey().substring(propertyPrefix.length()), en.getValue().trim());
+                    }
+                }
+                rs.tenantProviderFactory = getTenantProviderFactory(
+                        Class.forName(providerClass).asSubclass(BlobProvider.class), providerProperties,
+                        getIntOption(options, OPTION_TENANT_PROVIDER_IDLE_TIMEOUT,
+                                DEFAULT_TENANT_PROVIDER_IDLE_TIMEOUT));
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                log.error("Invalid value for dispatcher option " + OPTION_TENANT_PROVIDER_CLASS + ": " + providerClass,
+                        e);
+            }
+        }
+        rs.mapTenantProviders = !rs.tenantProviders.isEmpty() || rs.tenantProviderTemplate != null;
+        return rs;
+    }
+
+    /**
+     * Gets the factory of the tenant providers, keeping the current one if its class and properties are unchanged.
+     * Otherwise the providers it registered are registered again by the new one, so that they are neither left behind
+     * with their previous configuration nor registered twice.
+     */
+    protected synchronized TenantProviderFactory getTenantProviderFactory(Class<? extends BlobProvider> klass,
+            Map<String, String> properties, long idleTimeoutSeconds) {
+        TenantProviderFactory factory = tenantProviderFactory;
+        if (factory != null && factory.produces(klass, properties)) {
+            factory.setIdleTimeout(idleTimeoutSeconds);
+            return factory;
+        }
+        TenantProviderFactory newFactory = newTenantProviderFactory(klass, properties, idleTimeoutSeconds);
+        if (factory != null) {
+            newFactory.takeOver(factory);
+        }
+        tenantProviderFactory = newFactory;
+        return newFactory;
+    }
+
+    protected TenantProviderFactory newTenantProviderFactory(Class<? extends BlobProvider> klass,
+            Map<String, String> properties, long idleTimeoutSeconds) {
+        return new TenantProviderFactory(klass, properties, idleTimeoutSeconds, this::providerClosed);
+    }
+
+    /**
+     * Drops a closed provider from the provider cache of the current rules.
+     */
+    protected void providerClosed(String providerId) {
+        RuleSet rs = ruleSet;
+        if (rs != null) {
+            rs.providerCache.invalidate(providerId);
+        }
+    }
+
+    /**
+     * Replaces the rules and tenant provider mappings. The other options keep their initial value.
+     * <p>
+     * The new rules are built aside and published at once, so a concurrent dispatch uses either the previous rules or
+     * the new ones.
+     *
+     * @param properties the rules, and the {@value #OPTION_TENANT_PROVIDER} options
+     * @throws IllegalArgumentException if there is no {@value #DEFAULT} rule
+     */
+    public void reload(Map<String, String> properties) {
+        Map<String, String> rules = new LinkedHashMap<>();
+        Map<String, String> tenantOptions = new HashMap<>();
+        splitProperties(properties, rules, tenantOptions);
+        if (!rules.containsKey(DEFAULT)) {
+            throw new IllegalArgumentException("Missing " + DEFAULT + " rule");
+        }
+        Map<String, String> reloadedOptions = new HashMap<>(options);
+        reloadedOptions.keySet().removeIf(key -> key.startsWith(OPTION_TENANT_PROVIDER));
+        tenantOptions.forEach((key, value) -> {
+            if (key.startsWith(OPTION_TENANT_PROVIDER)) {
+                reloadedOptions.put(key, value);
+            } else {
+                log.warn("Ignoring dispatcher option, it cannot be reloaded: " + key);
+            }
+        });
+        RuleSet rs = newRuleSet(rules, reloadedOptions);
+        ruleSet = rs;
+        registerReplicaTargets(rs);
+    }
+
+    /**
+     * Registers the replicated providers of the rules, so that their blobs can be read before any is written.
+     */
+    protected void registerReplicaTargets(RuleSet rs) {
+        rs.replicaTargets.keySet().forEach(providerId -> registerReplicas(rs, providerId));
+    }
+
+    protected void registerReplicas(RuleSet rs, String providerId) {
+        rs.registerReplicas(providerId);
+    }
+
+    /**
+     * Reloads the rules from the configured source if it changed.
+     *
+     * @return {@code true} if the rules were reloaded
+     */
+    public synchronized boolean reloadIfChanged() {
+        if (ruleSource == null) {
+            return false;
+        }
+        try {
+            Map<String, String> properties = ruleSource.readIfChanged();
+            if (properties == null) {
+                return false;
+            }
+            reload(properties);
+            log.info("Reloaded blob dispatch rules from " + ruleSource);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("Cannot reload blob dispatch rules from " + ruleSource + ", keeping the current ones", e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks the rule source at most once per reload interval. Called from the maintenance thread, so that a dispatch
+     * never reads nor compiles rules, and only uses the ones last published.
+     */
+    protected void reloadIfDue() {
+        if (ruleSource == null || reloadIntervalNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextReloadCheck.get();
+        if (now - next >= 0 && nextReloadCheck.compareAndSet(next, now + reloadIntervalNanos)) {
+            reloadIfChanged();
+        }
+    }
+
+    protected String getOption(String name, String defaultValue) {
+        return getOption(options, name, defaultValue);
+    }
+
+    protected boolean getBooleanOption(String name, boolean defaultValue) {
+        return getBooleanOption(options, name, defaultValue);
+    }
+
+    protected int getIntOption(String name, int defaultValue) {
+        return getIntOption(options, name, defaultValue);
+    }
+
+    protected static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    protected static boolean getBooleanOption(Map<String, String> options, String name, boolean defaultValue) {
+        String value = getOption(options, name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    protected static int getIntOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for dispatcher option " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    protected static long getLongOption(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for dispatcher option " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets the rules and options currently in effect, as they would be passed to {@link #initialize}.
+     */
+    public Map<String, String> getProperties() {
+        return new LinkedHashMap<>(ruleSet.properties);
+    }
+
+    public TenantCache getTenantCache() {
+        return tenantCache;
+    }
+
+    public DispatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs the periodic work of this dispatcher, called every second by the {@link DispatcherMaintenance} so that it
+     * never delays a dispatch.
+     */
+    public void runMaintenance() {
+        reloadIfDue();
+        tenantNotFoundReporter.flushIfDue();
+        TenantProviderFactory factory = tenantProviderFactory;
+        if (factory != null) {
+            factory.closeIdleIfDue();
+        }
+        if (accessTracker != null) {
+            accessTracker.flushIfDue();
+        }
+        if (usage != null) {
+            usage.flushIfDue();
+        }
+    }
+
+    /**
+     * Writes out what this dispatcher holds in memory, called when the runtime stops.
+     */
+    public void flush() {
+        tenantNotFoundReporter.flush();
+        if (accessTracker != null) {
+            accessTracker.flush();
+        }
+        if (usage != null) {
+            usage.flush();
+        }
+    }
+
+    /**
+     * Checks whether this dispatcher reads the tenant stamped on documents.
+     */
+    public boolean isTenantStamp() {
+        return tenantStamp;
+    }
+
+    /**
+     * Gets the provider of a blob about to be written, after admitting the write through the per-tenant limits.
+     */
+    @Override
+    public String getProviderId(Document doc, Blob blob, String blobXPath) {
+        String providerId = chooseProviderId(doc, blob, blobXPath);
+        if (bulkhead != null) {
+            admitWrite(doc, blob, providerId);
+        }
+        return providerId;
+    }
+
+    /**
+     * Adds a blob stored by a document to the usage of its tenant, once the current transaction commits.
+     */
+    public void countWrite(Document doc, String providerId, long length) {
+        if (usage != null) {
+            usage.blobWritten(resolveTenant(doc), providerId, Math.max(length, 0));
+        }
+    }
+
+    /**
+     * Removes a blob no longer stored by a document from the usage of its tenant, once the current transaction
+     * commits.
+     */
+    public void countRemoval(Document doc, String providerId, long length) {
+        if (usage != null) {
+            usage.blobRemoved(resolveTenant(doc), providerId, Math.max(length, 0));
+        }
+    }
+
+    /**
+     * Gets the blobs and bytes counted by tenant and provider, or {@code null} if they are not counted.
+     */
+    public TenantUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Gets the provider chosen for a blob, without applying the per-tenant write limits.
+     */
+    public String chooseProviderId(Document doc, Blob blob, String blobXPath) {
+        long start = metrics.startDispatch();
+        String providerId = null;
+        try {
+            providerId = dispatch(ruleSet, doc, blob, blobXPath);
+            return providerId;
+        } finally {
+            metrics.endDispatch(start, providerId);
+        }
+    }
+
+    /**
+     * Records a tenant root found at startup: its tenant is cached for its children, and the provider produced by the
+     * tenant provider template for it is registered, so that its blobs can be read before any is written.
+     *
+     * @param generation the generation of the tenant cache read before querying the root, so that the root is not
+     *            cached if the cache was invalidated since
+     */
+    public void warmUpTenantRoot(String id, String path, Object tenant, long generation) {
+        tenantCache.putTenantRoot(id, tenant, generation);
+        // the tenant of the children of the root
+        tenantCache.put(id, tenant, generation);
+        if (resolveTenantByPath && path != null) {
+            tenantCache.put(path, tenant, generation);
+        }
+        RuleSet rs = ruleSet;
+        if (rs.tenantProviderTemplate != null && !rs.tenantProviders.containsKey(tenant)) {
+            rs.getTemplateProviderId(tenant);
+        }
+    }
+
+    /**
+     * Gets the providers of many blobs at once, typically for a bulk import.
+     * <p>
+     * The tenants of their documents are resolved together by {@link #prefetchTenants}, and the document-level values
+     * are computed once per document. To also keep the write permits of the per-tenant limits until the blobs are
+     * written, open a {@link DispatchContext} around this call and the writes.
+     *
+     * @return the providers, in the order of the requests
+     */
+    public List<String> getProviderIds(List<DispatchRequest> requests) {
+        boolean opened = DispatchContext.beginIfAbsent();
+        try {
+            RuleSet rs = ruleSet;
+            if (rs.ruleXPaths.contains(TENANT_NAME) || rs.mapTenantProviders || bulkhead != null) {
+                List<Document> docs = new ArrayList<>(requests.size());
+                for (DispatchRequest request : requests) {
+                    docs.add(request.doc);
+                }
+                prefetchTenants(docs);
+            }
+            List<String> providerIds = new ArrayList<>(requests.size());
+            for (DispatchRequest request : requests) {
+                providerIds.add(getProviderId(request.doc, request.blob, request.xpath));
+            }
+            return providerIds;
+        } finally {
+            if (opened) {
+                DispatchContext.end();
+            }
+        }
+    }
+
+    /**
+     * Resolves the tenants of many documents together: the tenant roots among all their ancestors are fetched with a
+     * few queries, ancestors shared by several documents being looked up once. The tenants found are put in the tenant
+     * cache, and memoized in the current {@link DispatchContext} if any, so that the blobs of these documents are then
+     * dispatched without walking up their ancestors.
+     * <p>
+     * Documents without path, or whose tenant is not found this way, are resolved as usual when dispatched.
+     */
+    public void prefetchTenants(Collection<Document> docs) {
+        Map<String, List<Document>> byRepository = new HashMap<>();
+        for (Document doc : docs) {
+            if (doc != null && doc.getPath() != null) {
+                byRepository.computeIfAbsent(doc.getRepositoryName(), k -> new ArrayList<>()).add(doc);
+            }
+        }
+        DispatchContext context = DispatchContext.current();
+        for (Entry<String, List<Document>> en : byRepository.entrySet()) {
+            Set<String> parentPaths = new HashSet<>();
+            for (Document doc : en.getValue()) {
+                String parentPath = getParentPath(doc.getPath());
+                if (parentPath != null) {
+                    parentPaths.add(parentPath);
+                }
+            }
+            long generation = tenantCache.getGeneration();
+            Map<String, Object> tenants = resolveTenantsByPath(en.getKey(), parentPaths);
+            for (Document doc : en.getValue()) {
+                Object tenant = getTenant(doc);
+                if (tenant == null && tenantStamp) {
+                    tenant = getTenantStamp(doc);
+                }
+                if (tenant == null) {
+                    String parentPath = getParentPath(doc.getPath());
+                    tenant = parentPath == null ? null : tenants.get(parentPath);
+                    Document parent = tenant == null ? null : doc.getParent();
+                    if (parent != null) {
+                        tenantCache.put(parent.getUUID(), tenant, generation);
+                    }
+                }
+                if (tenant != null && context != null) {
+                    context.putValue(doc, TENANT_NAME, tenant);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the tenants of many folders given by path, fetching the tenant roots among their ancestors not already
+     * cached with as few queries as possible.
+     *
+     * @return a map of folder path to tenant, without the folders whose tenant was not found
+     */
+    protected Map<String, Object> resolveTenantsByPath(String repositoryName, Collection<String> folderPaths) {
+        long generation = tenantCache.getGeneration();
+        Map<String, Object> tenants = new HashMap<>();
+        Map<String, List<String>> unresolved = new HashMap<>();
+        Set<String> unknownPaths = new LinkedHashSet<>();
+        for (String folderPath : folderPaths) {
+            // the folder itself, then its ancestors, nearest first
+            List<String> chain = new ArrayList<>();
+            chain.add(folderPath);
+            if (!folderPath.equals("/")) {
+                chain.addAll(getAncestorPaths(folderPath));
+            }
+            Object tenant = null;
+            int i = 0;
+            for (; i < chain.size(); i++) {
+                tenant = tenantCache.get(chain.get(i));
+                if (tenant != null) {
+                    break;
+                }
+            }
+            if (tenant == TenantCache.NO_TENANT) {
+                continue;
+            }
+            if (tenant != null) {
+                tenants.put(folderPath, tenant);
+                continue;
+            }
+            unresolved.put(folderPath, chain);
+            unknownPaths.addAll(chain);
+        }
+        if (unknownPaths.isEmpty()) {
+            return tenants;
+        }
+        Map<String, Object> roots = new HashMap<>();
+        List<String> paths = new ArrayList<>(unknownPaths);
+        for (int i = 0; i < paths.size(); i += FETCH_BATCH_SIZE) {
+            roots.putAll(fetchTenantRoots(repositoryName, paths.subList(i, Math.min(i + FETCH_BATCH_SIZE,
+                    paths.size())), generation));
+        }
+        for (Entry<String, List<String>> en : unresolved.entrySet()) {
+            List<String> chain = en.getValue();
+            for (int i = 0; i < chain.size(); i++) {
+                Object tenant = roots.get(chain.get(i));
+                if (tenant != null) {
+                    tenants.put(en.getKey(), tenant);
+                    if (resolveTenantByPath) {
+                        tenantCache.putAll(chain.subList(0, i + 1), tenant, generation);
+                    }
+                    metrics.tenantResolved(i + 1);
+                    break;
+                }
+            }
+        }
+        return tenants;
+    }
+
+    protected static String getParentPath(String path) {
+        int i = path.lastIndexOf('/');
+        if (i < 0 || path.equals("/")) {
+            return null;
+        }
+        return i == 0 ? "/" : path.substring(0, i);
+    }
+
+    /**
+     * Gets the tier of a blob of a hot provider. A blob already in the cold provider stays there; a blob of the hot
+     * provider moves to the cold one during a tiering run if neither it nor its document changed or was read for the
+     * idle time of the provider.
+     *
+     * @param providerId the provider chosen by the rules
+     */
+    protected String getTier(Document doc, Blob blob, String providerId) {
+        String cold = providerId == null ? null : coldProviders.get(providerId);
+        if (cold == null || !(blob instanceof ManagedBlob)) {
+            return providerId;
+        }
+        ManagedBlob managed = (ManagedBlob) blob;
+        String current = managed.getProviderId();
+        if (cold.equals(current)) {
+            return cold;
+        }
+        DispatchContext context = DispatchContext.current();
+        if (!providerId.equals(current) || context == null || !context.isTiering()) {
+            return providerId;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(getColdAfterDays(providerId));
+        if (isModifiedSince(doc, cutoff) || accessTracker.isRecentlyAccessed(managed.getKey())) {
+            return providerId;
+        }
+        return cold;
+    }
+
+    protected boolean isModifiedSince(Document doc, long millis) {
+        if (doc == null) {
+            return false;
+        }
+        Object modified;
+        try {
+            modified = doc.getValue(DC_MODIFIED);
+        } catch (PropertyException e) {
+            // no dublincore
+            return false;
+        }
+        return modified instanceof Calendar && ((Calendar) modified).getTimeInMillis() >= millis;
+    }
+
+    /**
+     * Gets the number of days after which a blob of a hot provider not read moves to its cold provider.
+     */
+    public int getColdAfterDays(String providerId) {
+        return coldAfterDays.getOrDefault(providerId, Integer.valueOf(defaultColdAfterDays)).intValue();
+    }
+
+    /**
+     * Gets the smallest number of days after which a blob not read moves to a cold provider, or 0 if there is no
+     * tiering.
+     */
+    public int getMinColdAfterDays() {
+        return coldProviders.keySet().stream().mapToInt(this::getColdAfterDays).min().orElse(0);
+    }
+
+    /**
+     * Checks whether the blobs of a document may move to a cold provider, from the target of the rules for the document
+     * without blob, for instance to restrict the tiering to the tenants whose root dispatches to a hot provider.
+     *
+     * @see #isTieredByBlob
+     */
+    public boolean isTiered(Document doc) {
+        if (coldProviders.isEmpty()) {
+            return false;
+        }
+        RuleSet rs = ruleSet;
+        String target = rs.compiledRules == null ? super.getProviderId(doc, null, null)
+                : getTarget(rs, doc, null, null);
+        return target != null && getTargetProviderIds(target).stream().anyMatch(coldProviders::containsKey);
+    }
+
+    /**
+     * Checks whether a rule testing the blob dispatches to a hot provider, in which case the blobs of any document may
+     * move to a cold provider, whatever {@link #isTiered} says.
+     */
+    public boolean isTieredByBlob() {
+        for (Entry<String, String> en : ruleSet.properties.entrySet()) {
+            if (en.getKey().contains(BLOB_PREFIX)
+                    && getTargetProviderIds(en.getValue()).stream().anyMatch(coldProviders::containsKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static List<String> getTargetProviderIds(String target) {
+        ShardTarget shards = ShardTarget.parse(target);
+        return shards == null ? Collections.singletonList(target) : shards.getProviderIds();
+    }
+
+    /**
+     * Records that a blob was read, for the tiering of its provider, and so that its provider, if produced by the
+     * tenant provider template, is not closed as idle.
+     *
+     * @param key the blob key, with its provider prefix
+     */
+    public void recordAccess(String key) {
+        if (key == null) {
+            return;
+        }
+        int colon = key.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String providerId = key.substring(0, colon);
+        TenantProviderFactory factory = tenantProviderFactory;
+        if (factory != null) {
+            factory.touch(providerId);
+        }
+        if (accessTracker != null && coldProviders.containsKey(providerId)) {
+            accessTracker.recordAccess(key, TimeUnit.DAYS.toSeconds(getColdAfterDays(providerId)));
+        }
+    }
+
+    /**
+     * Gets the tracker of the reads of the blobs of the hot providers, or {@code null} if there is no tiering.
+     */
+    public BlobAccessTracker getAccessTracker() {
+        return accessTracker;
+    }
+
+    /**
+     * Waits until the per-tenant limits allow a blob to be written, unless it is already stored in its provider.
+     */
+    protected void admitWrite(Document doc, Blob blob, String providerId) {
+        if (doc == null || blob == null || providerId == null) {
+            return;
+        }
+        if (blob instanceof ManagedBlob && providerId.equals(((ManagedBlob) blob).getProviderId())) {
+            // not written again
+            return;
+        }
+        Object tenant = resolveTenant(doc);
+        if (tenant != null) {
+            bulkhead.admit(tenant, blob.getLength());
+        }
+    }
+
+    protected String dispatch(RuleSet rs, Document doc, Blob blob, String blobXPath) {
+        if (rs.compiledRules == null) {
+            return super.getProviderId(doc, blob, blobXPath);
+        }
+        String target = getTarget(rs, doc, blob, blobXPath);
+        ShardTarget shards = target == null ? null : rs.shardTargets.get(target);
+        String providerId = shards == null ? target : shards.getProviderId(doc, blob);
+        if (!coldProviders.isEmpty()) {
+            providerId = getTier(doc, blob, providerId);
+        }
+        registerReplicas(rs, providerId);
+        return providerId;
+    }
+
+    /**
+     * Gets the target of the first matching rule, of the tenant mapping, or of the {@value #DEFAULT} rule.
+     */
+    protected String getTarget(RuleSet rs, Document doc, Blob blob, String blobXPath) {
+        String providerId = rs.compiledRules.getProviderId(doc, blob, blobXPath);
+        if (!RuleEvaluator.NO_MATCH.equals(providerId)) {
+            return providerId;
+        }
+        if (rs.mapTenantProviders) {
+            providerId = getTenantProviderId(rs, doc);
+            if (providerId != null) {
+                return providerId;
+            }
+        }
+        return rs.fallbackProviderId;
+    }
+
+    /**
+     * Gets the provider mapped to the tenant of the document, or {@code null} if there is none.
+     */
+    protected String getTenantProviderId(RuleSet rs, Document doc) {
+        if (doc == null) {
+            return null;
+        }
+        Object tenant = resolveTenant(doc);
+        if (tenant == null) {
+            tenantNotFound(doc, "tenant provider mapping");
+            return null;
+        }
+        String providerId = rs.tenantProviders.get(tenant);
+        if (providerId == null && rs.tenantProviderTemplate != null) {
+            providerId = rs.getTemplateProviderId(tenant);
+        }
+        if (providerId != null && rs.tenantProviderFactory != null) {
+            rs.tenantProviderFactory.touch(providerId);
+        }
+        return providerId;
+    }
+
+    /**
+     * Gets a provider by id, for instance a replica read by a {@link ReplicatedBlobProvider}.
+     * <p>
+     * The providers are cached by the current rules, so that getting one costs a single lookup, without lock nor
+     * allocation, even with thousands of tenant providers. The cache is dropped when the rules are reloaded, and a
+     * tenant provider closed after its idle timeout is dropped from it. Getting a tenant provider keeps it open.
+     *
+     * @return the provider, or {@code null} if it does not exist
+     */
+    public BlobProvider getBlobProviderInstance(String providerId) {
+        RuleSet rs = ruleSet;
+        if (rs.tenantProviderFactory != null) {
+            rs.tenantProviderFactory.touch(providerId);
+        }
+        return rs.providerCache.getBlobProvider(providerId);
+    }
+
+    /**
+     * Gets a provider by id through the last initialized dispatcher, or from the blob manager if there is none.
+     */
+    public static BlobProvider lookupBlobProvider(String providerId) {
+        MultiTenantBlobDispatcher latest = getLatestInstance();
+        if (latest == null) {
+            return Framework.getService(BlobManager.class).getBlobProvider(providerId);
+        }
+        return latest.getBlobProviderInstance(providerId);
+    }
+
+    protected BlobProvider loadBlobProvider(RuleSet rs, String providerId) {
+        if (rs.isTenantProviderId(providerId)) {
+            rs.registerTemplateProviderId(providerId);
+        }
+        registerReplicas(rs, providerId);
+        return getBlobManager().getBlobProvider(providerId);
+    }
+
+    protected BlobManager getBlobManager() {
+        return Framework.getService(BlobManager.class);
+    }
+
+    @Override
+    public Collection<String> getBlobProviderIds() {
+        RuleSet rs = ruleSet;
+        Collection<String> providerIds = rs.ruleProviderIds == null ? super.getBlobProviderIds()
+                : rs.ruleProviderIds;
+        if (!rs.mapTenantProviders) {
+            return providerIds;
+        }
+        Collection<String> view = rs.blobProviderIds;
+        if (view == null) {
+            view = newBlobProviderIds(rs, providerIds);
+            rs.blobProviderIds = view;
+        }
+        return view;
+    }
+
+    /**
+     * Creates a view of the providers of the rules and of the tenants, that also accepts the providers of the tenants
+     * not yet seen.
+     */
+    protected Collection<String> newBlobProviderIds(RuleSet rs, Collection<String> providerIds) {
+        return new AbstractCollection<String>() {
+
+            @Override
+            public boolean contains(Object o) {
+                if (providerIds.contains(o)) {
+                    return true;
+                }
+                if (rs.tenantProviderIds.contains(o)) {
+                    // looked up by the blob manager to read a blob, keep the provider open
+                    if (rs.tenantProviderFactory != null) {
+                        rs.tenantProviderFactory.touch((String) o);
+                    }
+                    return true;
+                }
+                if (!(o instanceof String) || !rs.isTenantProviderId((String) o)) {
+                    return false;
+                }
+                // make the provider of a tenant not yet seen available, for instance to read its blobs
+                rs.registerTemplateProviderId((String) o);
+                return true;
+            }
+
+            @Override
+            public Iterator<String> iterator() {
+                Set<String> ids = new LinkedHashSet<>(providerIds);
+                ids.addAll(rs.tenantProviderIds);
+                return ids.iterator();
+            }
+
+            @Override
+            public int size() {
+                Set<String> ids = new HashSet<>(providerIds);
+                ids.addAll(rs.tenantProviderIds);
+                return ids.size();
+            }
+        };
+    }
+
+    /**
+     * Moves the blobs of a document to their new provider when properties tested by the rules changed, during the save
+     * or, with {@value #OPTION_ASYNC_REDISPATCH}, after commit.
+     */
+    @Override
+    public void notifyChanges(Document doc, Set<String> xpaths) {
+        if (Collections.disjoint(ruleSet.ruleXPaths, xpaths)) {
+            return;
+        }
+        if (asyncRedispatch) {
+            scheduleRedispatch(doc);
+            return;
+        }
+        DispatchContext context = DispatchContext.current();
+        if (context != null) {
+            // the values memoized while the blobs were written may predate the changes
+            context.forget(doc);
+        }
+        RedispatchAction.redispatch(this, doc, 0);
+    }
+
+    /**
+     * Schedules the re-dispatch of the blobs of a document after commit, with a {@link RedispatchWork}.
+     */
+    protected void scheduleRedispatch(Document doc) {
+        RedispatchWork.schedule(doc.getRepositoryName(), doc.getUUID());
+    }
+
     @Override
     protected Object getValue(Document doc, Blob blob, String blobXPath, Clause clause) {
         String xpath = clause.xpath;
         if (xpath.equals(TENANT_NAME)) {
             return findTenant(doc, clause);
         }
+        DispatchContext context = DispatchContext.current();
+        if (context != null && doc != null && !xpath.startsWith(BLOB_PREFIX)) {
+            return context.getValue(doc, xpath, x -> super.getValue(doc, blob, blobXPath, clause));
+        }
         return super.getValue(doc, blob, blobXPath, clause);
     }
 
@@ -85,18 +1416,173 @@ public class MultiTenantBlobDispatcher extends DefaultBlobDispatcher {
         return null;
     }
 
+    protected Object getTenantStamp(Document doc) {
+        if (doc != null && doc.hasFacet(TenantStamp.FACET) && !TenantStamp.isStampPending(doc)) {
+            return doc.getValue(TenantStamp.XPATH);
+        }
+        return null;
+    }
+
     protected Object findTenant(Document doc, Clause clause) {
+        Object tenant = resolveTenant(doc);
+        if (tenant == null) {
+            tenantNotFound(doc, "dispatch rule: " + clause.xpath + clause.op + clause.value);
+        }
+        return tenant;
+    }
+
+    protected void tenantNotFound(Document doc, String usage) {
+        metrics.tenantNotFound();
+        tenantNotFoundReporter.report(doc == null ? null : doc.getUUID(), usage);
+    }
+
+    /**
+     * Resolves the tenant of a document, from its own tenant configuration, its tenant stamp if enabled, or the tenant
+     * configuration of its nearest ancestor.
+     *
+     * @return the tenant, or {@code null} if not found
+     */
+    protected Object resolveTenant(Document doc) {
+        DispatchContext context = DispatchContext.current();
+        if (context != null && doc != null) {
+            return context.getValue(doc, TENANT_NAME, x -> doResolveTenant(doc));
+        }
+        return doResolveTenant(doc);
+    }
+
+    protected Object doResolveTenant(Document doc) {
         Object tenant = getTenant(doc);
+        if (tenant == null && tenantStamp) {
+            tenant = getTenantStamp(doc);
+        }
+        if (tenant == null && doc != null) {
+            tenant = resolveTenantByPath ? findTenantByPath(doc) : findTenantByParents(doc);
+        }
+        return tenant;
+    }
+
+    /**
+     * Finds the tenant by walking up the parents of the document, stopping at the first cached one. When the walk
+     * finds no tenant, the visited parents are cached as having none.
+     */
+    protected Object findTenantByParents(Document doc) {
+        long generation = tenantCache.getGeneration();
+        List<String> visited = new ArrayList<>();
+        Object tenant = null;
+        int depth = 0;
         while (tenant == null && doc != null) {
             doc = doc.getParent();
+            if (doc == null) {
+                break;
+            }
+            depth++;
+            String id = doc.getUUID();
+            tenant = tenantCache.get(id);
+            if (tenant == TenantCache.NO_TENANT) {
+                tenant = null;
+                break;
+            }
+            if (tenant != null) {
+                break;
+            }
             tenant = getTenant(doc);
+            if (tenant != null) {
+                tenantCache.putTenantRoot(id, tenant, generation);
+            }
+            if (id != null) {
+                visited.add(id);
+            }
         }
-        if (tenant == null && doc == null) {
-            log.warn("Tenant configuration not found in parent path for dispatch rule: " + clause.xpath + clause.op
-                    + clause.value);
-            log.warn("Is multi-tenant properly configured?");
+        if (tenant != null) {
+            tenantCache.putAll(visited, tenant, generation);
+            metrics.tenantResolved(depth);
+        } else {
+            tenantCache.putNoTenant(visited, generation);
         }
         return tenant;
     }
 
+    /**
+     * Finds the tenant from the ancestor paths of the document: the nearest cached ancestor is used if any, otherwise
+     * all the ancestors holding a tenant configuration are fetched with one query.
+     * <p>
+     * Falls back to {@link #findTenantByParents} if the document has no path, or if the query doesn't find any tenant
+     * (the tenant root may not be visible yet to a separate session).
+     */
+    protected Object findTenantByPath(Document doc) {
+        String path = doc.getPath();
+        if (path == null) {
+            return findTenantByParents(doc);
+        }
+        List<String> ancestors = getAncestorPaths(path);
+        long generation = tenantCache.getGeneration();
+        for (int i = 0; i < ancestors.size(); i++) {
+            Object tenant = tenantCache.get(ancestors.get(i));
+            if (tenant == TenantCache.NO_TENANT) {
+                tenantCache.putNoTenant(ancestors.subList(0, i), generation);
+                return null;
+            }
+            if (tenant != null) {
+                tenantCache.putAll(ancestors.subList(0, i), tenant, generation);
+                metrics.tenantResolved(i + 1);
+                return tenant;
+            }
+        }
+        Map<String, Object> tenants = fetchTenantRoots(doc.getRepositoryName(), ancestors, generation);
+        for (int i = 0; i < ancestors.size(); i++) {
+            Object tenant = tenants.get(ancestors.get(i));
+            if (tenant != null) {
+                tenantCache.putAll(ancestors.subList(0, i + 1), tenant, generation);
+                metrics.tenantResolved(i + 1);
+                return tenant;
+            }
+        }
+        Object tenant = findTenantByParents(doc);
+        if (tenant == null) {
+            tenantCache.putNoTenant(ancestors, generation);
+        }
+        return tenant;
+    }
+
+    /**
+     * Gets the paths of the ancestors of a document, nearest first, from its path.
+     */
+    protected static List<String> getAncestorPaths(String path) {
+        List<String> ancestors = new ArrayList<>();
+        int end = path.length();
+        while ((end = path.lastIndexOf('/', end - 1)) > 0) {
+            ancestors.add(path.substring(0, end));
+        }
+        ancestors.add("/");
+        return ancestors;
+    }
+
+    /**
+     * Fetches the tenant of the documents holding a tenant configuration among the given paths, in one query.
+     *
+     * @return a map of path to tenant
+     */
+    protected Map<String, Object> fetchTenantRoots(String repositoryName, List<String> paths, long generation) {
+        StringBuilder query = new StringBuilder("SELECT * FROM Document WHERE ecm:mixinType = '");
+        query.append(TENANT_FACET).append("' AND ecm:isProxy = 0 AND (");
+        for (int i = 0; i < paths.size(); i++) {
+            if (i > 0) {
+                query.append(" OR ");
+            }
+            query.append("ecm:path = ").append(NXQL.escapeString(paths.get(i)));
+        }
+        query.append(')');
+        return CoreInstance.doPrivileged(repositoryName, session -> {
+            Map<String, Object> tenants = new HashMap<>();
+            for (DocumentModel root : session.query(query.toString())) {
+                Object tenant = root.getPropertyValue(TENANT_XPATH);
+                if (tenant != null) {
+                    tenants.put(root.getPathAsString(), tenant);
+                    tenantCache.putTenantRoot(root.getId(), tenant, generation);
+                }
+            }
+            return tenants;
+        });
+    }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Trie of string prefixes, each associated with int values, finding all the prefixes of a string
+ * in a single descent of its characters.
+ * <p>
+ * Children are kept in sorted arrays searched by binary search, so that lookups do not allocate.
+ */
+public class PrefixTrie {
+
+    protected static final char[] NO_KEYS = new char[0];
+
+    protected static final Node[] NO_CHILDREN = new Node[0];
+
+    protected static final int[] NO_VALUES = new int[0];
+
+    protected static final class Node {
+
+        protected char[] keys = NO_KEYS;
+
+        protected Node[] children = NO_CHILDREN;
+
+        protected int[] values = NO_VALUES;
+
+        protected Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+
+        protected Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            int n = keys.length;
+            char[] newKeys = new char[n + 1];
+            Node[] newChildren = new Node[n + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(keys, i, newKeys, i + 1, n - i);
+            System.arraycopy(children, i, newChildren, i + 1, n - i);
+            Node child = new Node();
+            newKeys[i] = c;
+            newChildren[i] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+
+    protected final Node root = new Node();
+
+    protected int size;
+
+    /**
+     * Associates a value with a prefix. A prefix may have several values.
+     */
+    public void add(String prefix, int value) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.addChild(prefix.charAt(i));
+        }
+        node.values = Arrays.copyOf(node.values, node.values.length + 1);
+        node.values[node.values.length - 1] = value;
+        size++;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Passes to the consumer the values of all the prefixes of the given string (including the empty prefix and the
+     * string itself), shortest prefixes first.
+     */
+    public void forEachPrefixOf(String string, IntConsumer consumer) {
+        Node node = root;
+        for (int i = 0;; i++) {
+            for (int value : node.values) {
+                consumer.accept(value);
+            }
+            if (i == string.length()) {
+                return;
+            }
+            node = node.child(string.charAt(i));
+            if (node == null) {
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.AbstractSession;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentNotFoundException;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.model.Session;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Bulk action moving the blobs of documents to the provider the dispatcher currently chooses for them, after the rules
+ * or tenant mappings changed, or after documents moved to another tenant.
+ * <p>
+ * For each blob stored in a provider other than the one returned by
+ * {@link MultiTenantBlobDispatcher#chooseProviderId}, the blob is written again, which makes the blob manager copy it to
+ * the new provider and update its key. Blobs already in the right provider are left untouched, so the action is
+ * idempotent: after a failure or an interruption, running it again on the same scope resumes where it stopped. Blobs
+ * left in the previous provider are removed by the orphan blob garbage collection.
+ * <p>
+ * Blobs are written at the storage level, without document events, versioning nor modification date update. The
+ * concurrency is the one of the {@value #ACTION_NAME} stream processor, and the copy is throttled per node to the
+ * {@value #PARAM_BYTES_PER_SECOND} parameter, or the {@value #BYTES_PER_SECOND_PROPERTY} configuration property.
+ * <p>
+ * With the {@value #PARAM_TIERING} parameter, the blobs not read for a while also move to the cold provider of their
+ * tenant, see {@link #submitTiering}.
+ */
+public class RedispatchAction implements StreamProcessorTopology {
+
+    private static final Log log = LogFactory.getLog(RedispatchAction.class);
+
+    public static final String ACTION_NAME = "multiTenantRedispatch";
+
+    public static final String PARAM_BYTES_PER_SECOND = "bytesPerSecond";
+
+    public static final String PARAM_TIERING = "tiering";
+
+    public static final String BYTES_PER_SECOND_PROPERTY = "nuxeo.multitenant.redispatch.bytesPerSecond";
+
+    /** Maximum number of tenant roots in the query of a tiering command. */
+    protected static final int TIERING_TENANTS_PER_COMMAND = 100;
+
+    /** Cutoff of the last tiering of a repository, in milliseconds. */
+    protected static final String TIERING_CHECKPOINT_KEY = "multitenant.tiering.checkpoint.";
+
+    /** Time of the last tiering of a repository considering all the documents, in milliseconds. */
+    protected static final String TIERING_SWEEP_KEY = "multitenant.tiering.sweep.";
+
+    protected static final ByteRateLimiter RATE_LIMITER = new ByteRateLimiter();
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(RedispatchComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    /**
+     * Submits the re-dispatch of the blobs of the documents matching a query.
+     *
+     * @param bytesPerSecond the maximum copy rate per node, 0 for the configured default
+     * @return the bulk command id
+     */
+    public static String submit(String repositoryName, String query, long bytesPerSecond) {
+        BulkCommand.Builder builder = new BulkCommand.Builder(ACTION_NAME, query);
+        builder.repository(repositoryName).user(SecurityConstants.SYSTEM_USERNAME);
+        if (bytesPerSecond > 0) {
+            builder.param(PARAM_BYTES_PER_SECOND, Long.valueOf(bytesPerSecond));
+        }
+        return Framework.getService(BulkService.class).submit(builder.build());
+    }
+
+    /**
+     * Submits the re-dispatch of the blobs of all the documents of a tenant, for instance to rebalance them after a
+     * change of its tenant mapping or of the number of shards of its {@link ShardTarget}.
+     *
+     * @param bytesPerSecond the maximum copy rate per node, 0 for the configured default
+     * @return the bulk command id, or {@code null} if the tenant has no document
+     */
+    public static String submitTenant(String repositoryName, String tenantId, long bytesPerSecond) {
+        List<String> rootIds = CoreInstance.doPrivileged(repositoryName, session -> {
+            List<String> ids = new ArrayList<>();
+            String query = "SELECT ecm:uuid FROM Document WHERE ecm:mixinType = '"
+                    + MultiTenantBlobDispatcher.TENANT_FACET + "' AND ecm:isProxy = 0 AND "
+                    + MultiTenantBlobDispatcher.TENANT_XPATH + " = " + NXQL.escapeString(tenantId);
+            try (IterableQueryResult result = session.queryAndFetch(query, NXQL.NXQL)) {
+                result.forEach(row -> ids.add((String) row.get(NXQL.ECM_UUID)));
+            }
+            return ids;
+        });
+        if (rootIds.isEmpty()) {
+            return null;
+        }
+        StringBuilder query = new StringBuilder("SELECT * FROM Document WHERE ecm:isProxy = 0 AND (");
+        for (int i = 0; i < rootIds.size(); i++) {
+            String id = NXQL.escapeString(rootIds.get(i));
+            if (i > 0) {
+                query.append(" OR ");
+            }
+            query.append("ecm:uuid = ").append(id).append(" OR ecm:ancestorId = ").append(id);
+        }
+        query.append(')');
+        return submit(repositoryName, query.toString(), bytesPerSecond);
+    }
+
+    /**
+     * Submits the move to their cold provider of the blobs not read for a while, among the documents not modified for
+     * {@code days} days.
+     * <p>
+     * Only the documents of the tenants whose root dispatches to a hot provider are considered, see
+     * {@link MultiTenantBlobDispatcher#isTiered}, in commands of at most {@value #TIERING_TENANTS_PER_COMMAND} tenants.
+     * The cutoff of each run is kept in the key-value store, and the next run only considers the documents whose last
+     * modification is between the previous cutoff and the new one. Every {@code days} days all the documents not
+     * modified since the cutoff are considered again, for the blobs that stayed in the hot provider because they were
+     * read.
+     *
+     * @return the bulk command ids
+     */
+    public static List<String> submitTiering(MultiTenantBlobDispatcher dispatcher, String repositoryName, int days,
+            KeyValueStore store) {
+        long now = System.currentTimeMillis();
+        long cutoff = now - TimeUnit.DAYS.toMillis(days);
+        String checkpointKey = TIERING_CHECKPOINT_KEY + repositoryName;
+        String sweepKey = TIERING_SWEEP_KEY + repositoryName;
+        String previous = store.getString(checkpointKey);
+        String lastSweep = store.getString(sweepKey);
+        boolean sweep = previous == null || lastSweep == null
+                || now - Long.parseLong(lastSweep) >= TimeUnit.DAYS.toMillis(days);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        String range = MultiTenantBlobDispatcher.DC_MODIFIED + " < DATE '" + format.format(new Date(cutoff)) + "'";
+        if (!sweep) {
+            range += " AND " + MultiTenantBlobDispatcher.DC_MODIFIED + " >= DATE '"
+                    + format.format(new Date(Long.parseLong(previous))) + "'";
+        }
+        List<String> queries = new ArrayList<>();
+        List<String> rootIds = getTieredRootIds(dispatcher, repositoryName);
+        if (rootIds == null) {
+            queries.add("SELECT * FROM Document WHERE ecm:isProxy = 0 AND " + range);
+        } else {
+            for (int i = 0; i < rootIds.size(); i += TIERING_TENANTS_PER_COMMAND) {
+                StringBuilder query = new StringBuilder("SELECT * FROM Document WHERE ecm:isProxy = 0 AND ");
+                query.append(range).append(" AND (");
+                for (int j = i; j < Math.min(i + TIERING_TENANTS_PER_COMMAND, rootIds.size()); j++) {
+                    String id = NXQL.escapeString(rootIds.get(j));
+                    if (j > i) {
+                        query.append(" OR ");
+                    }
+                    query.append("ecm:uuid = ").append(id).append(" OR ecm:ancestorId = ").append(id);
+                }
+                queries.add(query.append(')').toString());
+            }
+        }
+        List<String> commandIds = new ArrayList<>();
+        for (String query : queries) {
+            BulkCommand command = new BulkCommand.Builder(ACTION_NAME, query).repository(repositoryName)
+                                                                               .user(SecurityConstants.SYSTEM_USERNAME)
+                                                                               .param(PARAM_TIERING, Boolean.TRUE)
+                                                                               .build();
+            commandIds.add(Framework.getService(BulkService.class).submit(command));
+        }
+        store.put(checkpointKey, String.valueOf(cutoff));
+        if (sweep) {
+            store.put(sweepKey, String.valueOf(now));
+        }
+        return commandIds;
+    }
+
+    /**
+     * Gets the roots of the tenants whose blobs may move to a cold provider.
+     *
+     * @return the root ids, or {@code null} if the documents outside of these tenants may move too
+     */
+    protected static List<String> getTieredRootIds(MultiTenantBlobDispatcher dispatcher, String repositoryName) {
+        if (dispatcher.isTieredByBlob()) {
+            return null;
+        }
+        return TransactionHelper.runInTransaction(() -> CoreInstance.doPrivileged(repositoryName, session -> {
+            Session storage = ((AbstractSession) session).getSession();
+            if (dispatcher.isTiered(storage.getRootDocument())) {
+                // documents outside of the tenants
+                return null;
+            }
+            List<String> ids = new ArrayList<>();
+            String query = "SELECT ecm:uuid FROM Document WHERE ecm:mixinType = '"
+                    + MultiTenantBlobDispatcher.TENANT_FACET + "' AND ecm:isProxy = 0";
+            try (IterableQueryResult result = session.queryAndFetch(query, NXQL.NXQL)) {
+                for (Map<String, Serializable> row : result) {
+                    String id = (String) row.get(NXQL.ECM_UUID);
+                    try {
+                        if (dispatcher.isTiered(storage.getDocumentByUUID(id))) {
+                            ids.add(id);
+                        }
+                    } catch (DocumentNotFoundException e) {
+                        // removed since the query
+                    }
+                }
+            }
+            return ids;
+        }));
+    }
+
+    /**
+     * Gets the dispatcher used to compute the expected providers, the last initialized one.
+     */
+    protected static MultiTenantBlobDispatcher getDispatcher() {
+        MultiTenantBlobDispatcher dispatcher = MultiTenantBlobDispatcher.getLatestInstance();
+        if (dispatcher == null) {
+            throw new NuxeoException("No multi-tenant blob dispatcher is configured");
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Writes again the blobs of a document that are not in the provider the dispatcher chooses for them.
+     */
+    public static void redispatch(MultiTenantBlobDispatcher dispatcher, Document doc, long bytesPerSecond) {
+        boolean opened = DispatchContext.beginIfAbsent();
+        try {
+            doc.visitBlobs(accessor -> {
+                Blob blob = accessor.getBlob();
+                if (!(blob instanceof ManagedBlob)) {
+                    return;
+                }
+                String providerId = dispatcher.chooseProviderId(doc, blob, accessor.getXPath());
+                if (providerId == null || providerId.equals(((ManagedBlob) blob).getProviderId())) {
+                    return;
+                }
+                try {
+                    RATE_LIMITER.acquire(blob.getLength(), bytesPerSecond);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NuxeoException(e);
+                }
+                accessor.setBlob(blob);
+                // the blob is still the one of the previous provider
+                dispatcher.countRemoval(doc, ((ManagedBlob) blob).getProviderId(), blob.getLength());
+                dispatcher.countWrite(doc, providerId, blob.getLength());
+                dispatcher.getMetrics().blobRedispatched(blob.getLength());
+            });
+        } finally {
+            if (opened) {
+                DispatchContext.end();
+            }
+        }
+    }
+
+    protected static long getBytesPerSecond(Map<String, Serializable> properties) {
+        Serializable value = properties == null ? null : properties.get(PARAM_BYTES_PER_SECOND);
+        if (value == null) {
+            value = Framework.getProperty(BYTES_PER_SECOND_PROPERTY, "0");
+        }
+        try {
+            return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for " + PARAM_BYTES_PER_SECOND + ": " + value);
+            return 0;
+        }
+    }
+
+    public static class RedispatchComputation extends AbstractBulkComputation {
+
+        public RedispatchComputation() {
+            super(ACTION_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+            MultiTenantBlobDispatcher dispatcher = getDispatcher();
+            long bytesPerSecond = getBytesPerSecond(properties);
+            boolean tiering = properties != null && Boolean.TRUE.equals(properties.get(PARAM_TIERING));
+            CoreInstance.doPrivileged(session.getRepositoryName(), s -> {
+                Session storage = ((AbstractSession) s).getSession();
+                List<Document> docs = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    try {
+                        Document doc = storage.getDocumentByUUID(id);
+                        if (!doc.isProxy()) {
+                            docs.add(doc);
+                        }
+                    } catch (DocumentNotFoundException e) {
+                        // removed since the scroll
+                    }
+                }
+                DispatchContext.begin();
+                DispatchContext.current().setTiering(tiering);
+                try {
+                    // resolve the tenants of the whole batch together
+                    dispatcher.prefetchTenants(docs);
+                    for (Document doc : docs) {
+                        redispatch(dispatcher, doc, bytesPerSecond);
+                    }
+                } finally {
+                    DispatchContext.end();
+                }
+                s.save();
+                return null;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import org.nuxeo.ecm.core.api.AbstractSession;
+import org.nuxeo.ecm.core.api.DocumentNotFoundException;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Moves the blobs of a document to the provider the dispatcher now chooses for them, after the transaction that
+ * changed the document committed.
+ * <p>
+ * Until this work commits, the blobs keep their previous key and are read from their previous provider.
+ *
+ * @see MultiTenantBlobDispatcher#OPTION_ASYNC_REDISPATCH
+ */
+public class RedispatchWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CATEGORY = "multiTenantRedispatch";
+
+    /**
+     * Schedules the re-dispatch of the blobs of a document after commit, unless already scheduled.
+     */
+    public static void schedule(String repositoryName, String docId) {
+        Framework.getService(WorkManager.class).schedule(new RedispatchWork(repositoryName, docId),
+                Scheduling.IF_NOT_SCHEDULED, true);
+    }
+
+    public RedispatchWork(String repositoryName, String docId) {
+        super(CATEGORY + ':' + repositoryName + ':' + docId);
+        setDocument(repositoryName, docId);
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "Blob re-dispatch: " + docId;
+    }
+
+    @Override
+    public void work() {
+        openSystemSession();
+        Document doc;
+        try {
+            doc = ((AbstractSession) session).getSession().getDocumentByUUID(docId);
+        } catch (DocumentNotFoundException e) {
+            // removed in the meantime
+            return;
+        }
+        RedispatchAction.redispatch(RedispatchAction.getDispatcher(), doc,
+                RedispatchAction.getBytesPerSecond(null));
+        session.save();
+    }
+
+}
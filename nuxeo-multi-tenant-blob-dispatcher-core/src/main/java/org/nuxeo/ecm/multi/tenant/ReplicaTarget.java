@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobManagerComponent;
+import org.nuxeo.ecm.core.blob.BlobProviderDescriptor;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Dispatch target storing blobs in several providers, written {@code first+second}, for instance
+ * {@code acme-local+acme-s3}.
+ * <p>
+ * The target is itself the id of a {@link ReplicatedBlobProvider}, registered on first use like the providers created
+ * by {@link TenantProviderFactory}, so that the blobs written through it keep its id as key prefix and are read back
+ * through it.
+ */
+public class ReplicaTarget {
+
+    private static final Log log = LogFactory.getLog(ReplicaTarget.class);
+
+    public static final char SEPARATOR = '+';
+
+    /**
+     * Properties of the replicated providers registered by this node, by id, for each blob manager instance so that
+     * they are registered again in a reloaded blob manager.
+     */
+    protected static final Map<BlobManager, Map<String, Map<String, String>>> REGISTERED = new WeakHashMap<>();
+
+    protected final String target;
+
+    protected final List<String> providerIds;
+
+    protected ReplicaTarget(String target, List<String> providerIds) {
+        this.target = target;
+        this.providerIds = Collections.unmodifiableList(providerIds);
+    }
+
+    /**
+     * Parses a replica target.
+     *
+     * @return the replica target, or {@code null} if this is a plain provider id
+     * @throws IllegalArgumentException if a replica is empty
+     */
+    public static ReplicaTarget parse(String target) {
+        if (target.indexOf(SEPARATOR) < 0) {
+            return null;
+        }
+        List<String> providerIds = new ArrayList<>();
+        for (String id : target.split("\\" + SEPARATOR, -1)) {
+            if (id.trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid replica target: " + target);
+            }
+            providerIds.add(id.trim());
+        }
+        return new ReplicaTarget(target, providerIds);
+    }
+
+    /**
+     * Gets the providers of the replicas.
+     */
+    public List<String> getProviderIds() {
+        return providerIds;
+    }
+
+    /**
+     * Gets the properties of the {@link ReplicatedBlobProvider} for this target.
+     *
+     * @param quorum the number of replicas acknowledging a write, 0 for all
+     * @param writeTimeout the maximum time in seconds to reach the quorum
+     */
+    public Map<String, String> getProperties(int quorum, int writeTimeout) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(ReplicatedBlobProvider.PROP_REPLICAS, String.join(",", providerIds));
+        properties.put(ReplicatedBlobProvider.PROP_QUORUM, String.valueOf(quorum));
+        properties.put(ReplicatedBlobProvider.PROP_WRITE_TIMEOUT, String.valueOf(writeTimeout));
+        return properties;
+    }
+
+    /**
+     * Registers the replicated provider for this target, unless already registered with the same properties.
+     */
+    public void register(int quorum, int writeTimeout) {
+        Map<String, String> properties = getProperties(quorum, writeTimeout);
+        BlobManagerComponent blobManager = (BlobManagerComponent) Framework.getService(BlobManager.class);
+        if (blobManager == null) {
+            log.warn("Cannot register replicated blob provider " + target + ", no blob manager");
+            return;
+        }
+        synchronized (REGISTERED) {
+            Map<String, Map<String, String>> registered = REGISTERED.computeIfAbsent(blobManager,
+                    k -> new HashMap<>());
+            Map<String, String> previous = registered.get(target);
+            if (properties.equals(previous)) {
+                return;
+            }
+            BlobProviderDescriptor descriptor = new BlobProviderDescriptor();
+            descriptor.name = target;
+            descriptor.klass = ReplicatedBlobProvider.class;
+            if (previous != null) {
+                // the rules were reloaded with another quorum or timeout
+                descriptor.properties = new HashMap<>(previous);
+                blobManager.unregisterBlobProvider(descriptor);
+            }
+            descriptor.properties = new HashMap<>(properties);
+            blobManager.registerBlobProvider(descriptor);
+            registered.put(target, properties);
+            log.debug("Registered replicated blob provider: " + target);
+        }
+    }
+
+}
@@ -0,0 +1,1019 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
+import org.nuxeo.ecm.core.blob.AbstractBlobProvider;
+import org.nuxeo.ecm.core.blob.BlobInfo;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.blob.binary.BinaryGarbageCollector;
+import org.nuxeo.ecm.core.blob.binary.BinaryManager;
+import org.nuxeo.ecm.core.blob.binary.BinaryManagerStatus;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Blob provider storing each blob in several other providers, its replicas, registered for the dispatch targets
+ * written {@code first+second}, for instance {@code acme-local+acme-s3}.
+ * <p>
+ * A blob is written to all the replicas concurrently, its content being read once: each chunk read is handed to every
+ * replica through a small bounded queue, so that neither the whole blob nor a copy per replica is buffered. The write
+ * is acknowledged once {@value #PROP_QUORUM} replicas have stored it; the other replicas finish in the background from
+ * their queue, without reading the written blob again. A replica whose queue is full while the fastest replica has
+ * consumed half a queue more is aborted rather than slowing down the write, provided that the replicas left can still
+ * reach the quorum; otherwise the write waits for it. A replica failing, aborted, or not done within
+ * {@value #PROP_WRITE_TIMEOUT} seconds, does not fail the write as long as the quorum is reached.
+ * <p>
+ * The blobs missing from a replica, because its write failed or was aborted after the quorum acknowledged it, are
+ * recorded in a key-value store, and copied to it from another replica by {@link #repair}, run every few seconds by
+ * {@link DispatcherMaintenance}, on a thread of its own. The replicas are written by at most {@value #PROP_MAX_THREADS}
+ * threads per provider; a replica that cannot get one is likewise repaired later.
+ * <p>
+ * A blob is read from the fastest healthy replica: the time to open a stream is tracked for each replica, and a replica
+ * failing to open one is skipped for {@link #UNHEALTHY_NANOS}, the next replica being tried instead.
+ * <p>
+ * The replicas must use the same digest algorithm, as a blob is identified by the same key in all of them. As they
+ * don't see the keys of this provider, the orphan blob garbage collection marks the blobs of this provider in the
+ * replicas, see {@link ReplicaGarbageCollector}.
+ */
+public class ReplicatedBlobProvider extends AbstractBlobProvider {
+
+    private static final Log log = LogFactory.getLog(ReplicatedBlobProvider.class);
+
+    /** The ids of the replicas, comma-separated. */
+    public static final String PROP_REPLICAS = "replicas";
+
+    /** The number of replicas that must store a blob before its write is acknowledged, 0 for all. */
+    public static final String PROP_QUORUM = "quorum";
+
+    /** The maximum time in seconds to wait for the quorum. */
+    public static final String PROP_WRITE_TIMEOUT = "writeTimeout";
+
+    public static final int DEFAULT_WRITE_TIMEOUT = 60;
+
+    /** The maximum number of threads writing to the replicas. */
+    public static final String PROP_MAX_THREADS = "maxThreads";
+
+    public static final int DEFAULT_MAX_THREADS = 32;
+
+    /** The key-value store where the blobs missing from a replica are recorded. */
+    public static final String PROP_REPAIR_KEY_VALUE_STORE = "repairKeyValueStore";
+
+    protected static final String REPAIR_KEY_PREFIX = "multitenant.replica.repair.";
+
+    /** Maximum number of missing blobs recorded for a provider, beyond which the replica must be copied by hand. */
+    protected static final int MAX_REPAIRS = 10_000;
+
+    /** Maximum number of missing blobs copied to their replica at each repair. */
+    protected static final int REPAIR_BATCH_SIZE = 100;
+
+    /** Number of repairs of a missing blob failing before giving up. */
+    protected static final int MAX_REPAIR_ATTEMPTS = 60;
+
+    protected static final long REPAIR_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    protected static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    protected static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Chunks queued for each replica, bounding the memory used by a write. */
+    protected static final int QUEUED_CHUNKS = 16;
+
+    /** Bytes a replica may be behind the fastest one before being aborted. */
+    protected static final long LAG_BYTES = (long) QUEUED_CHUNKS * CHUNK_SIZE / 2;
+
+    /** Time waited for a replica whose queue is full before checking again how far behind it is. */
+    protected static final long LAG_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    protected static final long UNHEALTHY_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /** Weight of the last measure in the moving average of the read latency, in 1/8. */
+    protected static final int LATENCY_WEIGHT = 2;
+
+    protected static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    /** Live providers, so that the maintenance thread can repair their replicas. */
+    protected static final Set<ReplicatedBlobProvider> INSTANCES = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    protected final Function<String, BlobProvider> lookup;
+
+    protected List<Replica> replicas;
+
+    protected int quorum;
+
+    protected long writeTimeoutNanos;
+
+    protected ExecutorService executor;
+
+    /** Runs the repairs, so that they never take a thread from the writes. */
+    protected ExecutorService repairExecutor;
+
+    protected final ReplicaGarbageCollector garbageCollector = new ReplicaGarbageCollector();
+
+    protected BinaryManager binaryManager;
+
+    /** Blobs found missing from a replica, as {@code replicaId key}, not yet written to the key-value store. */
+    protected final Queue<String> missing = new ConcurrentLinkedQueue<>();
+
+    /** Failed repairs of each missing blob by this node. */
+    protected final Map<String, Integer> repairAttempts = new ConcurrentHashMap<>();
+
+    protected final AtomicLong nextRepair = new AtomicLong(System.nanoTime());
+
+    protected final AtomicBoolean repairing = new AtomicBoolean();
+
+    /**
+     * A replica and its read statistics.
+     */
+    protected static class Replica {
+
+        protected final String providerId;
+
+        protected volatile long latencyNanos;
+
+        protected volatile long unhealthyUntil;
+
+        protected volatile boolean unhealthy;
+
+        protected Replica(String providerId) {
+            this.providerId = providerId;
+        }
+
+        protected boolean isHealthy(long now) {
+            return !unhealthy || now - unhealthyUntil >= 0;
+        }
+
+        protected void succeeded(long nanos) {
+            long latency = latencyNanos;
+            latencyNanos = latency == 0 ? nanos : latency + (nanos - latency) * LATENCY_WEIGHT / 8;
+            unhealthy = false;
+        }
+
+        protected void failed(long now) {
+            unhealthyUntil = now + UNHEALTHY_NANOS;
+            unhealthy = true;
+        }
+    }
+
+    /**
+     * Gets the replicas through the provider cache of the dispatcher, see
+     * {@link MultiTenantBlobDispatcher#lookupBlobProvider}.
+     */
+    public ReplicatedBlobProvider() {
+        this(MultiTenantBlobDispatcher::lookupBlobProvider);
+    }
+
+    /**
+     * @param lookup gets the provider of a replica by id
+     */
+    public ReplicatedBlobProvider(Function<String, BlobProvider> lookup) {
+        this.lookup = lookup;
+    }
+
+    @Override
+    public void initialize(String blobProviderId, Map<String, String> properties) throws IOException {
+        super.initialize(blobProviderId, properties);
+        String ids = properties.get(PROP_REPLICAS);
+        if (ids == null || ids.trim().isEmpty()) {
+            throw new IOException("Missing property " + PROP_REPLICAS + " for blob provider: " + blobProviderId);
+        }
+        replicas = new ArrayList<>();
+        for (String id : ids.split(",")) {
+            replicas.add(new Replica(id.trim()));
+        }
+        quorum = getIntProperty(PROP_QUORUM, 0);
+        if (quorum <= 0 || quorum > replicas.size()) {
+            quorum = replicas.size();
+        }
+        writeTimeoutNanos = TimeUnit.SECONDS.toNanos(getIntProperty(PROP_WRITE_TIMEOUT, DEFAULT_WRITE_TIMEOUT));
+        int maxThreads = Math.max(1, getIntProperty(PROP_MAX_THREADS, DEFAULT_MAX_THREADS));
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "ReplicatedBlobProvider-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxThreads), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        // a single repair runs at a time
+        ThreadPoolExecutor repairPool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1), threadFactory);
+        repairPool.allowCoreThreadTimeOut(true);
+        repairExecutor = repairPool;
+        binaryManager = (BinaryManager) Proxy.newProxyInstance(BinaryManager.class.getClassLoader(),
+                new Class<?>[] { BinaryManager.class }, this::invokeBinaryManager);
+        INSTANCES.add(this);
+    }
+
+    /**
+     * Gets the providers currently initialized.
+     */
+    public static Collection<ReplicatedBlobProvider> getInstances() {
+        synchronized (INSTANCES) {
+            return new ArrayList<>(INSTANCES);
+        }
+    }
+
+    protected int getIntProperty(String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value for property " + name + " of blob provider " + blobProviderId + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void close() {
+        INSTANCES.remove(this);
+        if (repairExecutor != null) {
+            repairExecutor.shutdown();
+        }
+        if (executor != null) {
+            // lets the writes beyond the quorum finish, and record their failures
+            executor.shutdown();
+            try {
+                executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                repairExecutor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Cannot record the blobs missing from the replicas of blob provider " + blobProviderId, e);
+        }
+    }
+
+    protected BlobProvider getReplicaProvider(Replica replica) throws IOException {
+        BlobProvider provider = lookup.apply(replica.providerId);
+        if (provider == null) {
+            throw new IOException("Unknown replica " + replica.providerId + " of blob provider: " + blobProviderId);
+        }
+        return provider;
+    }
+
+    @Override
+    public String writeBlob(Blob blob) throws IOException {
+        int n = replicas.size();
+        BlobProvider[] providers = new BlobProvider[n];
+        for (int i = 0; i < n; i++) {
+            providers[i] = getReplicaProvider(replicas.get(i));
+        }
+        long deadline = System.nanoTime() + writeTimeoutNanos;
+        String digest = blob.getDigest();
+        ReplicaWrite write = new ReplicaWrite();
+        ReplicaStream[] streams = new ReplicaStream[n];
+        CompletionService<String> completion = new ExecutorCompletionService<>(executor);
+        List<Future<String>> futures = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            ReplicaStream stream = new ReplicaStream();
+            streams[i] = stream;
+            BlobProvider provider = providers[i];
+            String replicaId = replicas.get(i).providerId;
+            Blob replicaBlob = new ReplicaWriteBlob(blob, stream);
+            try {
+                futures.add(completion.submit(() -> {
+                    try {
+                        return provider.writeBlob(replicaBlob);
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("Failed to write blob " + digest + " to replica " + replicaId, e);
+                        write.failed(replicaId);
+                        throw e;
+                    } finally {
+                        stream.close();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                log.warn("Too many concurrent writes to blob provider " + blobProviderId + ", replica " + replicaId
+                        + " is written later");
+                stream.abort(new IOException(e));
+                write.failed(replicaId);
+            }
+        }
+        try {
+            copy(blob, streams, deadline);
+            String key = awaitQuorum(completion, futures.size(), deadline);
+            write.acknowledged(key);
+            return key;
+        } catch (IOException | RuntimeException e) {
+            for (ReplicaStream stream : streams) {
+                stream.abort(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        }
+    }
+
+    /**
+     * The replicas failing to store a blob, recorded as missing it once the blob is acknowledged.
+     */
+    protected class ReplicaWrite {
+
+        protected String key;
+
+        protected final List<String> failed = new ArrayList<>();
+
+        protected synchronized void failed(String replicaId) {
+            if (key == null) {
+                failed.add(replicaId);
+            } else {
+                missing(replicaId, key);
+            }
+        }
+
+        protected synchronized void acknowledged(String key) {
+            this.key = key;
+            failed.forEach(replicaId -> missing(replicaId, key));
+            failed.clear();
+        }
+    }
+
+    /**
+     * Reads the content once, handing each chunk to all the replicas still reading.
+     */
+    protected void copy(Blob blob, ReplicaStream[] streams, long deadline) throws IOException {
+        try (InputStream in = blob.getStream()) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (n == 0) {
+                    continue;
+                }
+                byte[] chunk = n == buffer.length ? buffer : Arrays.copyOf(buffer, n);
+                if (!offer(streams, chunk, deadline)) {
+                    // no replica left reading this stream
+                    return;
+                }
+                if (chunk == buffer) {
+                    // the replicas keep a reference to the chunk
+                    buffer = new byte[CHUNK_SIZE];
+                }
+            }
+        }
+        offer(streams, ReplicaStream.EOF, deadline);
+    }
+
+    /**
+     * Hands a chunk to all the replicas still reading. A replica whose queue stays full is aborted once the fastest
+     * replica has consumed half a queue more, if the quorum can be reached without it, or else at the deadline.
+     *
+     * @return {@code true} if a replica is still reading
+     */
+    protected boolean offer(ReplicaStream[] streams, byte[] chunk, long deadline) {
+        boolean open = false;
+        for (ReplicaStream stream : streams) {
+            for (;;) {
+                long until = System.nanoTime() + LAG_CHECK_NANOS;
+                if (stream.offer(chunk, until - deadline > 0 ? deadline : until) || !stream.isOpen()) {
+                    break;
+                }
+                if (getLeader(streams) - stream.consumed >= LAG_BYTES && countOpen(streams) > quorum) {
+                    stream.abort(new IOException("Replica too slow"));
+                } else if (System.nanoTime() - deadline >= 0) {
+                    stream.abort(new IOException("Timeout writing to replica"));
+                }
+            }
+            open |= stream.isOpen();
+        }
+        return open;
+    }
+
+    /**
+     * Gets the bytes consumed by the fastest replica still reading.
+     */
+    protected static long getLeader(ReplicaStream[] streams) {
+        long leader = 0;
+        for (ReplicaStream stream : streams) {
+            if (stream.isOpen()) {
+                leader = Math.max(leader, stream.consumed);
+            }
+        }
+        return leader;
+    }
+
+    /**
+     * Counts the replicas still reading.
+     */
+    protected static int countOpen(ReplicaStream[] streams) {
+        int open = 0;
+        for (ReplicaStream stream : streams) {
+            if (stream.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Waits until enough replicas stored the blob.
+     *
+     * @return the key of the blob
+     */
+    protected String awaitQuorum(CompletionService<String> completion, int n, long deadline) throws IOException {
+        String key = null;
+        int written = 0;
+        int failed = 0;
+        IOException error = null;
+        while (written < quorum && n - failed >= quorum) {
+            Future<String> future;
+            try {
+                future = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (future == null) {
+                break;
+            }
+            try {
+                String replicaKey = future.get();
+                if (key == null) {
+                    key = replicaKey;
+                } else if (!key.equals(replicaKey)) {
+                    throw new IOException("Replicas of blob provider " + blobProviderId + " returned different keys: "
+                            + key + ", " + replicaKey);
+                }
+                written++;
+            } catch (ExecutionException e) {
+                failed++;
+                IOException cause = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                if (error == null) {
+                    error = cause;
+                } else {
+                    error.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        if (written < quorum) {
+            IOException e = new IOException("Blob written to " + written + " replicas of blob provider "
+                    + blobProviderId + ", quorum is " + quorum);
+            if (error != null) {
+                e.addSuppressed(error);
+            }
+            throw e;
+        }
+        return key;
+    }
+
+    @Override
+    public Blob readBlob(BlobInfo blobInfo) throws IOException {
+        return new ReplicatedBlob(blobInfo);
+    }
+
+    /**
+     * Opens a stream on the fastest healthy replica holding the blob, trying the others if it fails.
+     */
+    protected InputStream getStream(BlobInfo blobInfo) throws IOException {
+        long now = System.nanoTime();
+        Replica[] ordered = replicas.toArray(new Replica[0]);
+        Arrays.sort(ordered, Comparator.comparing((Replica r) -> !r.isHealthy(now))
+                                       .thenComparingLong(r -> r.latencyNanos));
+        IOException error = null;
+        for (Replica replica : ordered) {
+            long start = System.nanoTime();
+            try {
+                InputStream stream = getReplicaProvider(replica).readBlob(getReplicaInfo(blobInfo, replica))
+                                                                .getStream();
+                if (stream == null) {
+                    throw new IOException("Missing blob " + blobInfo.key + " in replica " + replica.providerId);
+                }
+                replica.succeeded(System.nanoTime() - start);
+                return stream;
+            } catch (IOException e) {
+                replica.failed(System.nanoTime());
+                log.debug("Cannot read blob " + blobInfo.key + " from replica " + replica.providerId, e);
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * Gets the info of a blob as known by a replica: the same key, with the prefix of the replica.
+     */
+    protected BlobInfo getReplicaInfo(BlobInfo blobInfo, Replica replica) {
+        String key = blobInfo.key;
+        int colon = key.indexOf(':');
+        BlobInfo info = new BlobInfo();
+        info.key = replica.providerId + ':' + (colon < 0 ? key : key.substring(colon + 1));
+        info.mimeType = blobInfo.mimeType;
+        info.encoding = blobInfo.encoding;
+        info.filename = blobInfo.filename;
+        info.length = blobInfo.length;
+        info.digest = blobInfo.digest;
+        return info;
+    }
+
+    /**
+     * Records that a replica misses a blob, to be copied to it by {@link #repair}.
+     */
+    protected void missing(String replicaId, String key) {
+        log.warn("Replica " + replicaId + " of blob provider " + blobProviderId + " misses blob " + key
+                + ", it will be repaired");
+        missing.add(replicaId + ' ' + key);
+    }
+
+    /**
+     * Records the missing blobs and repairs the replicas if due. Called by the maintenance thread.
+     */
+    public void runMaintenance() {
+        flush();
+        long now = System.nanoTime();
+        long next = nextRepair.get();
+        if (now - next < 0 || !nextRepair.compareAndSet(next, now + REPAIR_INTERVAL_NANOS)
+                || !repairing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            repairExecutor.execute(() -> {
+                try {
+                    repair();
+                } catch (RuntimeException e) {
+                    log.error("Cannot repair the replicas of blob provider " + blobProviderId, e);
+                } finally {
+                    repairing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // busy or closed, retried later
+            repairing.set(false);
+        }
+    }
+
+    /**
+     * Writes the blobs found missing from a replica by this node to the key-value store.
+     */
+    public void flush() {
+        List<String> entries = new ArrayList<>();
+        for (String entry; (entry = missing.poll()) != null;) {
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        try {
+            KeyValueStore store = getKeyValueStore();
+            String repairKey = REPAIR_KEY_PREFIX + blobProviderId;
+            for (;;) {
+                String value = store.getString(repairKey);
+                Set<String> repairs = parseRepairs(value);
+                int dropped = 0;
+                for (String entry : entries) {
+                    if (repairs.size() < MAX_REPAIRS) {
+                        repairs.add(entry);
+                    } else if (!repairs.contains(entry)) {
+                        dropped++;
+                    }
+                }
+                if (store.compareAndSet(repairKey, value, String.join("\n", repairs))) {
+                    if (dropped > 0) {
+                        log.error("Too many blobs missing from the replicas of blob provider " + blobProviderId + ", "
+                                + dropped + " of them will not be repaired, the replicas must be copied by hand");
+                    }
+                    return;
+                }
+            }
+        } catch (RuntimeException e) {
+            // kept for the next flush
+            missing.addAll(entries);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the blobs missing from a replica, as {@code replicaId key}.
+     */
+    public Set<String> getRepairs() {
+        return parseRepairs(getKeyValueStore().getString(REPAIR_KEY_PREFIX + blobProviderId));
+    }
+
+    protected static Set<String> parseRepairs(String value) {
+        Set<String> repairs = new LinkedHashSet<>();
+        if (value != null && !value.isEmpty()) {
+            repairs.addAll(Arrays.asList(value.split("\n")));
+        }
+        return repairs;
+    }
+
+    /**
+     * Copies the blobs missing from a replica from another replica holding them. A blob that cannot be copied is tried
+     * again at the next repair, up to {@value #MAX_REPAIR_ATTEMPTS} times.
+     */
+    public void repair() {
+        List<String> done = new ArrayList<>();
+        int n = 0;
+        for (String entry : getRepairs()) {
+            if (n++ == REPAIR_BATCH_SIZE) {
+                break;
+            }
+            int space = entry.indexOf(' ');
+            String replicaId = entry.substring(0, space);
+            String key = entry.substring(space + 1);
+            Replica target = replicas.stream().filter(r -> r.providerId.equals(replicaId)).findFirst().orElse(null);
+            if (target == null) {
+                // no longer a replica
+                done.add(entry);
+                continue;
+            }
+            try {
+                repair(target, key);
+                log.info("Repaired blob " + key + " in replica " + replicaId + " of blob provider " + blobProviderId);
+                repairAttempts.remove(entry);
+                done.add(entry);
+            } catch (IOException e) {
+                int attempts = repairAttempts.merge(entry, 1, Integer::sum);
+                if (attempts < MAX_REPAIR_ATTEMPTS) {
+                    log.debug("Cannot repair blob " + key + " in replica " + replicaId, e);
+                } else {
+                    log.error("Giving up repairing blob " + key + " in replica " + replicaId + " of blob provider "
+                            + blobProviderId, e);
+                    repairAttempts.remove(entry);
+                    done.add(entry);
+                }
+            }
+        }
+        if (!done.isEmpty()) {
+            KeyValueStore store = getKeyValueStore();
+            String repairKey = REPAIR_KEY_PREFIX + blobProviderId;
+            for (;;) {
+                String value = store.getString(repairKey);
+                Set<String> repairs = parseRepairs(value);
+                repairs.removeAll(done);
+                if (store.compareAndSet(repairKey, value, repairs.isEmpty() ? null : String.join("\n", repairs))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a blob to a replica from the first other replica holding it.
+     */
+    protected void repair(Replica target, String key) throws IOException {
+        BlobProvider provider = getReplicaProvider(target);
+        BlobInfo blobInfo = new BlobInfo();
+        blobInfo.key = blobProviderId + ':' + key;
+        IOException error = new IOException("Blob " + key + " not found in the other replicas");
+        for (Replica replica : replicas) {
+            if (replica == target) {
+                continue;
+            }
+            try {
+                Blob blob = getReplicaProvider(replica).readBlob(getReplicaInfo(blobInfo, replica));
+                String written = provider.writeBlob(blob);
+                if (!key.equals(written)) {
+                    throw new IOException("Replica " + target.providerId + " stored blob " + key + " as " + written);
+                }
+                return;
+            } catch (IOException e) {
+                error.addSuppressed(e);
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * Gets a binary manager only providing the garbage collector of this provider, as this provider stores no binary
+     * itself.
+     */
+    @Override
+    public BinaryManager getBinaryManager() {
+        return binaryManager;
+    }
+
+    protected Object invokeBinaryManager(Object proxy, Method method, Object[] args) throws IOException {
+        switch (method.getName()) {
+        case "getGarbageCollector":
+            return garbageCollector;
+        case "getDigestAlgorithm":
+            BinaryManager replicaBinaryManager = getReplicaProvider(replicas.get(0)).getBinaryManager();
+            return replicaBinaryManager == null ? null : replicaBinaryManager.getDigestAlgorithm();
+        case "initialize":
+        case "close":
+            return null;
+        case "hashCode":
+            return Integer.valueOf(System.identityHashCode(proxy));
+        case "equals":
+            return Boolean.valueOf(proxy == args[0]);
+        case "toString":
+            return "BinaryManager of blob provider " + blobProviderId;
+        default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    protected KeyValueStore getKeyValueStore() {
+        String storeName = properties.get(PROP_REPAIR_KEY_VALUE_STORE);
+        if (storeName == null || storeName.trim().isEmpty()) {
+            storeName = MultiTenantBlobDispatcher.DEFAULT_RULES_KEY_VALUE_STORE;
+        }
+        return Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+    }
+
+    /**
+     * Garbage collector marking the blobs of this provider in the replicas whose garbage collection is in progress,
+     * as the replicas don't see the keys of this provider and would otherwise sweep its blobs. It sweeps nothing
+     * itself.
+     */
+    protected class ReplicaGarbageCollector implements BinaryGarbageCollector {
+
+        protected volatile boolean inProgress;
+
+        @Override
+        public String getId() {
+            return "replicated:" + blobProviderId;
+        }
+
+        @Override
+        public void start() {
+            inProgress = true;
+        }
+
+        @Override
+        public void mark(String digest) {
+            int colon = digest.indexOf(':');
+            String key = colon < 0 ? digest : digest.substring(colon + 1);
+            for (Replica replica : replicas) {
+                BlobProvider provider = lookup.apply(replica.providerId);
+                BinaryManager replicaBinaryManager = provider == null ? null : provider.getBinaryManager();
+                if (replicaBinaryManager == null) {
+                    continue;
+                }
+                BinaryGarbageCollector gc = replicaBinaryManager.getGarbageCollector();
+                // a replica not being garbage collected has nothing to keep
+                if (gc != null && gc.isInProgress()) {
+                    gc.mark(key);
+                }
+            }
+        }
+
+        @Override
+        public void stop(boolean delete) {
+            inProgress = false;
+        }
+
+        @Override
+        public BinaryManagerStatus getStatus() {
+            return new BinaryManagerStatus();
+        }
+
+        @Override
+        public boolean isInProgress() {
+            return inProgress;
+        }
+    }
+
+    /**
+     * Stream of the chunks of a blob being written, fed by the writing thread and read by a replica.
+     */
+    protected static class ReplicaStream extends InputStream {
+
+        protected static final byte[] EOF = new byte[0];
+
+        protected static final long POLL_MILLIS = 10;
+
+        protected final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+
+        protected byte[] chunk;
+
+        protected int pos;
+
+        /** Bytes taken from the queue by the replica. */
+        protected volatile long consumed;
+
+        /** Set when the replica stops reading, successfully or not. */
+        protected volatile boolean closed;
+
+        protected volatile IOException error;
+
+        protected boolean isOpen() {
+            return !closed;
+        }
+
+        /**
+         * Hands a chunk to the replica, waiting until the given time if its queue is full.
+         *
+         * @return {@code false} if the replica stopped reading or its queue is still full
+         */
+        protected boolean offer(byte[] chunk, long until) {
+            if (closed) {
+                return false;
+            }
+            try {
+                if (!chunks.offer(chunk, until - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort(new IOException(e));
+                return false;
+            }
+            return !closed;
+        }
+
+        /**
+         * Makes the replica fail on its next read.
+         */
+        protected void abort(IOException e) {
+            error = e;
+            closed = true;
+            chunks.clear();
+            chunks.offer(EOF);
+        }
+
+        protected boolean fill() throws IOException {
+            while (chunk == null || pos == chunk.length) {
+                if (chunk == EOF) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                pos = 0;
+                if (error != null) {
+                    throw error;
+                }
+                if (chunk != null) {
+                    consumed += chunk.length;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            // unblocks the writing thread
+            chunks.clear();
+        }
+    }
+
+    /**
+     * The blob handed to a replica: the metadata of the written blob, and its content streamed once. It keeps no
+     * reference to the written blob, which may be gone once the write is acknowledged.
+     */
+    protected static class ReplicaWriteBlob extends AbstractBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final long length;
+
+        protected final transient ReplicaStream stream;
+
+        protected boolean opened;
+
+        protected ReplicaWriteBlob(Blob blob, ReplicaStream stream) {
+            this.stream = stream;
+            length = blob.getLength();
+            setFilename(blob.getFilename());
+            setMimeType(blob.getMimeType());
+            setEncoding(blob.getEncoding());
+            setDigest(blob.getDigest());
+        }
+
+        @Override
+        public synchronized InputStream getStream() throws IOException {
+            if (opened) {
+                throw new IOException("The content of a replicated blob can only be read once");
+            }
+            opened = true;
+            return stream;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * A blob of this provider, read from the fastest healthy replica when its content is needed.
+     */
+    protected class ReplicatedBlob extends AbstractBlob implements ManagedBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final transient BlobInfo blobInfo;
+
+        protected ReplicatedBlob(BlobInfo blobInfo) {
+            this.blobInfo = blobInfo;
+            setFilename(blobInfo.filename);
+            setMimeType(blobInfo.mimeType);
+            setEncoding(blobInfo.encoding);
+            setDigest(blobInfo.digest);
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            return ReplicatedBlobProvider.this.getStream(blobInfo);
+        }
+
+        @Override
+        public long getLength() {
+            return blobInfo.length == null ? -1 : blobInfo.length.longValue();
+        }
+
+        @Override
+        public String getKey() {
+            return blobInfo.key;
+        }
+
+        @Override
+        public String getProviderId() {
+            return blobProviderId;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.blob.DefaultBlobDispatcher;
+import org.nuxeo.ecm.core.model.Document;
+
+/**
+ * Evaluates some dispatch rules with exactly the semantics of {@link DefaultBlobDispatcher}, but returns
+ * {@link #NO_MATCH} instead of a default provider when none of them matches.
+ * <p>
+ * Property values are obtained from the owning {@link MultiTenantBlobDispatcher}, so that {@code ecm:tenant} and its
+ * other extensions apply.
+ */
+public class RuleEvaluator extends DefaultBlobDispatcher {
+
+    /** Returned when no rule matches. Not a valid provider id. */
+    public static final String NO_MATCH = "\u0000no-match";
+
+    protected static final String DEFAULT = "default";
+
+    protected final MultiTenantBlobDispatcher dispatcher;
+
+    protected final Map<String, Clause> clausesByXPath = new HashMap<>();
+
+    /**
+     * Creates an evaluator for the given rules, in order, as a map of clauses to provider id. A {@code default} entry
+     * is ignored.
+     */
+    public RuleEvaluator(MultiTenantBlobDispatcher dispatcher, Map<String, String> rules) {
+        this.dispatcher = dispatcher;
+        Map<String, String> properties = new LinkedHashMap<>(rules);
+        properties.remove(DEFAULT);
+        properties.put(DEFAULT, NO_MATCH);
+        initialize(properties);
+        for (Rule rule : this.rules) {
+            for (Clause clause : rule.clauses) {
+                clausesByXPath.putIfAbsent(clause.xpath, clause);
+            }
+        }
+    }
+
+    /**
+     * Gets the provider of the first matching rule, or {@link #NO_MATCH}.
+     */
+    public String evaluate(Document doc, Blob blob, String blobXPath) {
+        return getProviderId(doc, blob, blobXPath);
+    }
+
+    /**
+     * Gets the value of a property tested by one of the rules, as seen by the clauses.
+     *
+     * @throws IllegalArgumentException if no rule tests this property
+     */
+    public Object getValue(Document doc, Blob blob, String blobXPath, String xpath) {
+        Clause clause = clausesByXPath.get(xpath);
+        if (clause == null) {
+            throw new IllegalArgumentException("No rule on: " + xpath);
+        }
+        return getValue(doc, blob, blobXPath, clause);
+    }
+
+    /**
+     * Checks whether a rule, by index, was split into clauses on the same properties and with the same equality values
+     * as the given ones.
+     */
+    public boolean isParsedAs(int i, List<CompiledRules.ParsedClause> parsed) {
+        if (i >= rules.size()) {
+            return false;
+        }
+        List<Clause> clauses = rules.get(i).clauses;
+        if (clauses.size() != parsed.size()) {
+            return false;
+        }
+        for (int j = 0; j < clauses.size(); j++) {
+            Clause clause = clauses.get(j);
+            CompiledRules.ParsedClause other = parsed.get(j);
+            if (!clause.xpath.equals(other.xpath)) {
+                return false;
+            }
+            if (other.op.equals(CompiledRules.EQ) && clause.value instanceof String
+                    && !clause.value.equals(other.value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected Object getValue(Document doc, Blob blob, String blobXPath, Clause clause) {
+        return dispatcher.getValue(doc, blob, blobXPath, clause);
+    }
+
+}
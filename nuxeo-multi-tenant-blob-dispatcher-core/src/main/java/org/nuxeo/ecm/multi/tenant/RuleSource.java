@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Where the dispatch rules are reloaded from: a JSON object of rules and options, in the same order and with the same
+ * syntax as the {@code blobdispatcher} contribution properties, for instance:
+ *
+ * <pre>
+ * {
+ *   "blob:mime-type=video/mp4": "videos",
+ *   "multitenant.tenantProvider.acme": "acme-bucket",
+ *   "default": "other"
+ * }
+ * </pre>
+ */
+public abstract class RuleSource {
+
+    protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static final TypeReference<LinkedHashMap<String, String>> TYPE = //
+            new TypeReference<LinkedHashMap<String, String>>() {
+            };
+
+    /** The content last read, to detect changes. */
+    protected String lastContent;
+
+    public static RuleSource fromFile(Path path) {
+        return new FileRuleSource(path);
+    }
+
+    public static RuleSource fromKeyValueStore(String storeName, String key) {
+        return new KeyValueRuleSource(storeName, key);
+    }
+
+    /**
+     * Reads the current content, or {@code null} if there is none.
+     */
+    protected abstract String read() throws IOException;
+
+    /**
+     * Reads the rules if they changed since the last call.
+     *
+     * @return the rules and options, or {@code null} if they didn't change or there are none
+     */
+    public Map<String, String> readIfChanged() throws IOException {
+        String content = read();
+        if (content == null || content.equals(lastContent)) {
+            return null;
+        }
+        Map<String, String> properties = parse(content);
+        lastContent = content;
+        return properties;
+    }
+
+    /**
+     * Parses rules and options given as a JSON object, keeping their order.
+     */
+    public static Map<String, String> parse(String json) throws IOException {
+        return MAPPER.readValue(json, TYPE);
+    }
+
+    protected static class FileRuleSource extends RuleSource {
+
+        protected final Path path;
+
+        protected FileTime lastModified;
+
+        protected FileRuleSource(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected String read() throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            FileTime modified = Files.getLastModifiedTime(path);
+            if (modified.equals(lastModified)) {
+                return lastContent;
+            }
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            lastModified = modified;
+            return content;
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    protected static class KeyValueRuleSource extends RuleSource {
+
+        protected final String storeName;
+
+        protected final String key;
+
+        protected KeyValueRuleSource(String storeName, String key) {
+            this.storeName = storeName;
+            this.key = key;
+        }
+
+        @Override
+        protected String read() {
+            return Framework.getService(KeyValueService.class).getKeyValueStore(storeName).getString(key);
+        }
+
+        @Override
+        public String toString() {
+            return "key-value store " + storeName + ", key " + key;
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+
+/**
+ * Dispatch target spreading blobs over several providers, written {@code prefix[first..last]suffix}, for instance
+ * {@code acme-shard[0..7]} for the providers {@code acme-shard0} to {@code acme-shard7}.
+ * <p>
+ * The shard of a blob is chosen by rendezvous hashing of the id of its document: each shard gets a score from the id
+ * and its provider id, and the highest score wins. The id is known before the blob is written, without reading its
+ * content, and is the same when the document is re-dispatched whatever the digest algorithm of the providers, so the
+ * blobs of a document all stay on one shard. The choice is stable, and when shards are added or removed only the blobs
+ * whose winning shard changed have to move: about {@code 1/n} of them when going to {@code n} shards, and never between
+ * two shards present before and after. Re-dispatching the documents, for instance with
+ * {@link RedispatchAction#submitTenant}, moves exactly these blobs.
+ */
+public class ShardTarget {
+
+    protected static final Pattern SHARD_PATTERN = Pattern.compile("(.*)\\[(\\d+)\\.\\.(\\d+)\\](.*)");
+
+    protected static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    protected static final long FNV_PRIME = 0x100000001b3L;
+
+    protected final String target;
+
+    protected final List<String> providerIds;
+
+    /** Hash of each provider id, mixed with the hash of the blob key. */
+    protected final long[] seeds;
+
+    protected ShardTarget(String target, List<String> providerIds) {
+        this.target = target;
+        this.providerIds = Collections.unmodifiableList(providerIds);
+        seeds = new long[providerIds.size()];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = hash(providerIds.get(i));
+        }
+    }
+
+    /**
+     * Parses a shard target.
+     *
+     * @return the shard target, or {@code null} if this is a plain provider id
+     * @throws IllegalArgumentException if the range of shards is empty
+     */
+    public static ShardTarget parse(String target) {
+        Matcher m = SHARD_PATTERN.matcher(target);
+        if (!m.matches()) {
+            return null;
+        }
+        int first;
+        int last;
+        try {
+            first = Integer.parseInt(m.group(2));
+            last = Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard range: " + target, e);
+        }
+        if (first > last) {
+            throw new IllegalArgumentException("Invalid shard range: " + target);
+        }
+        List<String> providerIds = new ArrayList<>();
+        for (int i = first; i <= last; i++) {
+            providerIds.add(m.group(1) + i + m.group(4));
+        }
+        return new ShardTarget(target, providerIds);
+    }
+
+    /**
+     * Gets the providers of all the shards.
+     */
+    public List<String> getProviderIds() {
+        return providerIds;
+    }
+
+    /**
+     * Gets the provider of the shard for the given key.
+     */
+    public String getProviderId(String key) {
+        long h = hash(key);
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < seeds.length; i++) {
+            long score = mix(h ^ seeds[i]);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return providerIds.get(best);
+    }
+
+    /**
+     * Gets the provider of the shard for a blob of a document.
+     */
+    public String getProviderId(Document doc, Blob blob) {
+        return getProviderId(getShardKey(doc, blob));
+    }
+
+    /**
+     * Gets the key on which a blob is sharded: the id of its document, or when it is written outside of a document its
+     * digest if it knows it already, else its filename. The content of the blob is never read.
+     */
+    public static String getShardKey(Document doc, Blob blob) {
+        if (doc != null) {
+            return doc.getUUID();
+        }
+        if (blob == null) {
+            return "";
+        }
+        String key = blob.getDigest();
+        if (key == null) {
+            key = blob.getFilename();
+        }
+        return key == null ? "" : key;
+    }
+
+    /** 64-bit FNV-1a, stable across JVMs. */
+    protected static long hash(String string) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < string.length(); i++) {
+            h = (h ^ string.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /** MurmurHash3 finalizer, so that close inputs give unrelated scores. */
+    protected static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    @Override
+    public String toString() {
+        return target;
+    }
+
+}
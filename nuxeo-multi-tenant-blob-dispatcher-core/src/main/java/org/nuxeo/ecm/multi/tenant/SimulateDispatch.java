@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+
+/**
+ * Replays a corpus of documents through candidate dispatch rules with the {@link DispatchSimulator}, and returns the
+ * report as JSON. Nothing is read from the repository nor written to any provider.
+ */
+@Operation(id = SimulateDispatch.ID, category = Constants.CAT_BLOB, label = "Simulate Multi-Tenant Dispatch", description = "Replays a JSON corpus of documents and blobs through candidate dispatch rules, compared with the rules in effect or a given baseline, and returns where the blobs would go and the dispatch latency. Administrators only.")
+public class SimulateDispatch {
+
+    public static final String ID = "MultiTenant.SimulateDispatch";
+
+    @Context
+    protected CoreSession session;
+
+    /** The candidate rules and options, as a JSON object. */
+    @Param(name = "rules")
+    protected String rules;
+
+    /** The rules and options to compare with, as a JSON object; defaults to the ones in effect. */
+    @Param(name = "baseline", required = false)
+    protected String baseline;
+
+    @OperationMethod
+    public Blob run(Blob corpus) throws IOException {
+        NuxeoPrincipal principal = session.getPrincipal();
+        if (!principal.isAdministrator()) {
+            throw new NuxeoException("Only administrators can simulate the dispatch", 403);
+        }
+        Map<String, String> candidate = parse("rules", rules);
+        Map<String, String> base = baseline == null ? RedispatchAction.getDispatcher().getProperties()
+                : parse("baseline", baseline);
+        DispatchSimulator simulator = new DispatchSimulator(candidate, base);
+        DispatchSimulator.Report report;
+        try (InputStream in = corpus.getStream()) {
+            report = simulator.simulate(in);
+        }
+        return Blobs.createJSONBlob(report.toJson());
+    }
+
+    protected static Map<String, String> parse(String name, String json) {
+        try {
+            return RuleSource.parse(json);
+        } catch (IOException | RuntimeException e) {
+            throw new NuxeoException("Invalid " + name + ": " + e.getMessage(), e, 400);
+        }
+    }
+
+}
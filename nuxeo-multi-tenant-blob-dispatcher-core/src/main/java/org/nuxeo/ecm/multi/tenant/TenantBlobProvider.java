@@ -0,0 +1,201 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.AbstractBlob;
+import org.nuxeo.ecm.core.blob.AbstractBlobProvider;
+import org.nuxeo.ecm.core.blob.BlobInfo;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobManager.UsageHint;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.blob.binary.BinaryManager;
+import org.nuxeo.ecm.multi.tenant.TenantProviderFactory.TenantProvider;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Blob provider of a tenant registered by a {@link TenantProviderFactory}, delegating to an instance of the configured
+ * provider class.
+ * <p>
+ * Its writes, and the streams of its blobs until they are closed, are uses of the provider, which is not closed as idle
+ * while one is in progress. A use starting on an instance closed in the meantime goes to the instance registered in
+ * its place.
+ */
+public class TenantBlobProvider extends AbstractBlobProvider {
+
+    /** The class of the provider delegated to. */
+    public static final String PROP_CLASS = "tenantProviderClass";
+
+    protected BlobProvider delegate;
+
+    protected volatile boolean closed;
+
+    @Override
+    public void initialize(String blobProviderId, Map<String, String> properties) throws IOException {
+        super.initialize(blobProviderId, properties);
+        Map<String, String> delegateProperties = new HashMap<>(properties);
+        delegate = newDelegate(delegateProperties.remove(PROP_CLASS));
+        delegate.initialize(blobProviderId, delegateProperties);
+    }
+
+    protected BlobProvider newDelegate(String className) throws IOException {
+        try {
+            return Class.forName(className).asSubclass(BlobProvider.class).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException | NullPointerException e) {
+            throw new IOException("Invalid class for blob provider " + blobProviderId + ": " + className, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (delegate != null) {
+            delegate.close();
+        }
+    }
+
+    @Override
+    public boolean supportsUserUpdate() {
+        return delegate.supportsUserUpdate();
+    }
+
+    @Override
+    public BinaryManager getBinaryManager() {
+        return delegate.getBinaryManager();
+    }
+
+    @Override
+    public URI getURI(ManagedBlob blob, UsageHint hint, HttpServletRequest servletRequest) throws IOException {
+        return delegate.getURI(blob, hint, servletRequest);
+    }
+
+    @Override
+    public String writeBlob(Blob blob) throws IOException {
+        TenantProvider use = TenantProviderFactory.acquire(blobProviderId);
+        try {
+            return getLiveInstance().delegate.writeBlob(blob);
+        } finally {
+            TenantProviderFactory.release(use);
+        }
+    }
+
+    @Override
+    public Blob readBlob(BlobInfo blobInfo) throws IOException {
+        return new TenantBlob(blobInfo);
+    }
+
+    /**
+     * Opens a stream on a blob, the provider being used until the stream is closed.
+     */
+    protected InputStream getStream(BlobInfo blobInfo) throws IOException {
+        TenantProvider use = TenantProviderFactory.acquire(blobProviderId);
+        InputStream stream;
+        try {
+            stream = getLiveInstance().delegate.readBlob(blobInfo).getStream();
+        } catch (IOException | RuntimeException e) {
+            TenantProviderFactory.release(use);
+            throw e;
+        }
+        if (stream == null) {
+            TenantProviderFactory.release(use);
+            return null;
+        }
+        return new FilterInputStream(stream) {
+
+            protected boolean released;
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!released) {
+                        released = true;
+                        TenantProviderFactory.release(use);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the instance to use once a use has started: this one, or the one registered in its place if this one was
+     * closed as idle before. No instance is closed while a use is in progress.
+     */
+    protected TenantBlobProvider getLiveInstance() throws IOException {
+        if (!closed) {
+            return this;
+        }
+        BlobProvider current = getCurrentInstance();
+        if (current == this || !(current instanceof TenantBlobProvider)) {
+            throw new IOException("Blob provider closed: " + blobProviderId);
+        }
+        return (TenantBlobProvider) current;
+    }
+
+    protected BlobProvider getCurrentInstance() {
+        return Framework.getService(BlobManager.class).getBlobProvider(blobProviderId);
+    }
+
+    /**
+     * A blob of this provider, read from the provider delegated to when its content is needed.
+     */
+    protected class TenantBlob extends AbstractBlob implements ManagedBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final transient BlobInfo blobInfo;
+
+        protected TenantBlob(BlobInfo blobInfo) {
+            this.blobInfo = blobInfo;
+            setFilename(blobInfo.filename);
+            setMimeType(blobInfo.mimeType);
+            setEncoding(blobInfo.encoding);
+            setDigest(blobInfo.digest);
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            return TenantBlobProvider.this.getStream(blobInfo);
+        }
+
+        @Override
+        public long getLength() {
+            return blobInfo.length == null ? -1 : blobInfo.length.longValue();
+        }
+
+        @Override
+        public String getKey() {
+            return blobInfo.key;
+        }
+
+        @Override
+        public String getProviderId() {
+            return blobProviderId;
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import javax.transaction.Synchronization;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Per-tenant limits on blob writes, so that a tenant running a massive import cannot take all the upload threads and
+ * storage connections from the others.
+ * <p>
+ * Two limits can be set, as a default for all tenants and overridden for some of them:
+ * <ul>
+ * <li>the number of concurrent saves writing blobs of a tenant: a permit is taken by the first blob written during a
+ * document save, and held until the end of its {@link DispatchContext} (or of the transaction, if the save fails before
+ * closing it); writes outside of a dispatch context are not limited this way;</li>
+ * <li>the number of bytes per second written for a tenant, with a token bucket spreading the writes evenly.</li>
+ * </ul>
+ * By default a write that cannot proceed immediately is rejected with a {@link NuxeoException} of status 429, so that
+ * a save never parks its thread while it holds database resources; the write rate accepts bursts of up to one second of
+ * writes. Waiting is opt-in: with a timeout, such a write waits for at most that long before being rejected, instead of
+ * queuing without bound. Waiting and rejected writes are reported in {@link DispatcherMetrics}.
+ */
+public class TenantBulkhead {
+
+    private static final Log log = LogFactory.getLog(TenantBulkhead.class);
+
+    protected static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /** The burst of writes accepted by the rate limit when writes don't wait. */
+    protected static final long RATE_BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    protected final int maxConcurrentWrites;
+
+    protected final Map<String, Integer> maxConcurrentWritesByTenant;
+
+    protected final long maxBytesPerSecond;
+
+    protected final Map<String, Long> maxBytesPerSecondByTenant;
+
+    protected final long timeoutNanos;
+
+    protected final DispatcherMetrics metrics;
+
+    protected final Map<Object, Limits> limits = new ConcurrentHashMap<>();
+
+    /**
+     * The limits of a tenant.
+     */
+    protected static class Limits {
+
+        /** The write permits, or {@code null} if unlimited. */
+        protected final Semaphore permits;
+
+        protected final long bytesPerSecond;
+
+        protected final ByteRateLimiter rateLimiter = new ByteRateLimiter();
+
+        protected Limits(int maxConcurrentWrites, long bytesPerSecond) {
+            permits = maxConcurrentWrites > 0 ? new Semaphore(maxConcurrentWrites, true) : null;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+    }
+
+    /**
+     * A write permit, released once.
+     */
+    protected static class Permit implements Runnable, Synchronization {
+
+        protected final Semaphore permits;
+
+        protected final AtomicBoolean released = new AtomicBoolean();
+
+        protected Permit(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // nothing
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            run();
+        }
+    }
+
+    /**
+     * Creates the bulkhead.
+     *
+     * @param maxConcurrentWrites the default maximum number of concurrent saves writing blobs of a tenant, 0 for no
+     *            limit
+     * @param maxConcurrentWritesByTenant the maximum for some tenants
+     * @param maxBytesPerSecond the default maximum write rate of a tenant, 0 for no limit
+     * @param maxBytesPerSecondByTenant the maximum for some tenants
+     * @param timeoutSeconds how long a write may wait before being rejected, 0 to reject it without waiting
+     */
+    public TenantBulkhead(int maxConcurrentWrites, Map<String, Integer> maxConcurrentWritesByTenant,
+            long maxBytesPerSecond, Map<String, Long> maxBytesPerSecondByTenant, int timeoutSeconds,
+            DispatcherMetrics metrics) {
+        this.maxConcurrentWrites = maxConcurrentWrites;
+        this.maxConcurrentWritesByTenant = maxConcurrentWritesByTenant;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxBytesPerSecondByTenant = maxBytesPerSecondByTenant;
+        timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Parses the per-tenant overrides of an option, given as {@code <option>.<tenantId>}.
+     */
+    protected static <T> Map<String, T> getOverrides(Map<String, String> options, String option,
+            Function<String, T> parser) {
+        Map<String, T> overrides = new HashMap<>();
+        String prefix = option + '.';
+        for (Entry<String, String> en : options.entrySet()) {
+            if (en.getKey().startsWith(prefix)) {
+                try {
+                    overrides.put(en.getKey().substring(prefix.length()), parser.apply(en.getValue().trim()));
+                } catch (NumberFormatException e) {
+                    log.error("Invalid value for dispatcher option " + en.getKey() + ": " + en.getValue());
+                }
+            }
+        }
+        return overrides;
+    }
+
+    protected Limits getLimits(Object tenant) {
+        return limits.computeIfAbsent(tenant, t -> {
+            String id = t.toString();
+            return new Limits(maxConcurrentWritesByTenant.getOrDefault(id, maxConcurrentWrites),
+                    maxBytesPerSecondByTenant.getOrDefault(id, maxBytesPerSecond));
+        });
+    }
+
+    /**
+     * Admits the write of a blob of a tenant, waiting if a timeout is set for a write permit and for the rate limit.
+     *
+     * @throws NuxeoException with status 429 if the write would have to wait, or to wait longer than the timeout
+     */
+    public void admit(Object tenant, long length) {
+        Limits tenantLimits = getLimits(tenant);
+        long deadline = System.nanoTime() + timeoutNanos;
+        if (tenantLimits.permits != null) {
+            acquirePermit(tenant, tenantLimits.permits);
+        }
+        if (timeoutNanos <= 0) {
+            if (!tenantLimits.rateLimiter.tryAcquire(length, tenantLimits.bytesPerSecond, RATE_BURST_NANOS)) {
+                reject(tenant, "write rate");
+            }
+            return;
+        }
+        long wait = tenantLimits.rateLimiter.reserve(length, tenantLimits.bytesPerSecond,
+                Math.max(0, deadline - System.nanoTime()));
+        if (wait < 0) {
+            reject(tenant, "write rate");
+        }
+        if (wait > 0) {
+            metrics.writeQueued();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException(e);
+            }
+        }
+    }
+
+    /**
+     * Takes a write permit for the current save, unless it already holds one.
+     */
+    protected void acquirePermit(Object tenant, Semaphore permits) {
+        DispatchContext context = DispatchContext.current();
+        if (context == null) {
+            // no save to hold the permit for
+            return;
+        }
+        Object key = new PermitKey(this, tenant);
+        if (context.holds(key)) {
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            if (timeoutNanos <= 0) {
+                reject(tenant, "concurrent writes");
+            }
+            metrics.writeQueued();
+            try {
+                if (!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                    reject(tenant, "concurrent writes");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new NuxeoException(e);
+            }
+        }
+        Permit permit = new Permit(permits);
+        context.hold(key, permit);
+        if (TransactionHelper.isTransactionActive()) {
+            // in case the save fails and the context is never closed
+            TransactionHelper.registerSynchronization(permit);
+        }
+    }
+
+    protected void reject(Object tenant, String limit) {
+        metrics.writeRejected(tenant);
+        throw new NuxeoException("Too many blob writes for tenant: " + tenant + ", limit on " + limit + " reached",
+                SC_TOO_MANY_REQUESTS);
+    }
+
+    /**
+     * Key of the permit of a tenant held in a {@link DispatchContext}.
+     */
+    protected static class PermitKey {
+
+        protected final TenantBulkhead bulkhead;
+
+        protected final Object tenant;
+
+        protected PermitKey(TenantBulkhead bulkhead, Object tenant) {
+            this.bulkhead = bulkhead;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(bulkhead) * 31 + tenant.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PermitKey)) {
+                return false;
+            }
+            PermitKey other = (PermitKey) obj;
+            return bulkhead == other.bulkhead && tenant.equals(other.tenant);
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the tenant resolved for a folder, shared by all the transactions using a dispatcher.
+ * <p>
+ * Entries are striped over several segments so that concurrent blob writes rarely contend on the same lock. The cache
+ * also remembers the tenant roots (documents holding the {@code TenantConfig} facet) it has seen, so that event
+ * listeners can cheaply tell whether a document change affects tenant resolution.
+ * <p>
+ * Subtrees known to have no tenant are cached as well, for a limited time so that a misconfiguration fixed on another
+ * cluster node is eventually seen. Invalidation is local to each node, so the tenants found expire too, after a longer
+ * time, so that a folder moved to another tenant from another cluster node is eventually seen as well.
+ * <p>
+ * Every invalidation bumps a generation number; values computed against an older generation are not stored, so that a
+ * resolution racing with an invalidation cannot reintroduce a stale entry.
+ */
+public class TenantCache {
+
+    protected static final int SEGMENTS = 16;
+
+    /** Returned by {@link #get} for a folder known to have no tenant. */
+    public static final Object NO_TENANT = new Object();
+
+    protected final Segment[] segments;
+
+    protected final Map<String, Object> tenantRoots = new ConcurrentHashMap<>();
+
+    protected final AtomicLong generation = new AtomicLong();
+
+    protected final long tenantTtlNanos;
+
+    protected final long noTenantTtlNanos;
+
+    /**
+     * Cached value expiring at a given time, {@link #NO_TENANT} for a folder known to have no tenant.
+     */
+    protected static final class Expiring {
+
+        protected final Object tenant;
+
+        protected final long expiration;
+
+        protected Expiring(Object tenant, long expiration) {
+            this.tenant = tenant;
+            this.expiration = expiration;
+        }
+    }
+
+    protected static class Segment extends LinkedHashMap<String, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final int maxSize;
+
+        protected Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Creates a cache holding at most {@code maxSize} entries. A size of 0 disables the cache.
+     */
+    public TenantCache(int maxSize) {
+        this(maxSize, 0);
+    }
+
+    /**
+     * Creates a cache holding at most {@code maxSize} entries, remembering the folders without tenant for
+     * {@code noTenantTtlSeconds}. A size of 0 disables the cache, a TTL of 0 disables the caching of folders without
+     * tenant.
+     */
+    public TenantCache(int maxSize, long noTenantTtlSeconds) {
+        this(maxSize, 0, noTenantTtlSeconds);
+    }
+
+    /**
+     * Creates a cache holding at most {@code maxSize} entries, remembering the tenant of a folder for
+     * {@code tenantTtlSeconds} and the folders without tenant for {@code noTenantTtlSeconds}. A size of 0 disables the
+     * cache, a tenant TTL of 0 keeps the tenants until they are evicted or invalidated, a no-tenant TTL of 0 disables
+     * the caching of folders without tenant.
+     */
+    public TenantCache(int maxSize, long tenantTtlSeconds, long noTenantTtlSeconds) {
+        tenantTtlNanos = TimeUnit.SECONDS.toNanos(tenantTtlSeconds);
+        noTenantTtlNanos = TimeUnit.SECONDS.toNanos(noTenantTtlSeconds);
+        if (maxSize <= 0) {
+            segments = new Segment[0];
+        } else {
+            int n = maxSize < SEGMENTS ? 1 : SEGMENTS;
+            segments = new Segment[n];
+            for (int i = 0; i < n; i++) {
+                segments[i] = new Segment(maxSize / n);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return segments.length > 0;
+    }
+
+    /**
+     * Gets the current generation, to be passed to the {@code put} methods once the value has been computed.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    protected Segment segment(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Gets the cached tenant for the given key, {@link #NO_TENANT} if it is known to have no tenant, or {@code null} if
+     * unknown.
+     */
+    public Object get(String key) {
+        if (key == null || segments.length == 0) {
+            return null;
+        }
+        Object tenant;
+        Segment segment = segment(key);
+        synchronized (segment) {
+            tenant = segment.get(key);
+        }
+        if (tenant instanceof Expiring) {
+            Expiring expiring = (Expiring) tenant;
+            return nanoTime() - expiring.expiration < 0 ? expiring.tenant : null;
+        }
+        return tenant;
+    }
+
+    /**
+     * Caches the fact that the given keys have no tenant, unless the cache was invalidated since {@code generation}
+     * was read.
+     */
+    public void putNoTenant(Collection<String> keys, long generation) {
+        if (noTenantTtlNanos <= 0) {
+            return;
+        }
+        Expiring noTenant = new Expiring(NO_TENANT, nanoTime() + noTenantTtlNanos);
+        for (String key : keys) {
+            if (key != null && segments.length > 0) {
+                Segment segment = segment(key);
+                synchronized (segment) {
+                    if (generation == this.generation.get()) {
+                        segment.put(key, noTenant);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Caches the tenant for the given key, unless the cache was invalidated since {@code generation} was read.
+     */
+    public void put(String key, Object tenant, long generation) {
+        if (tenant == null || segments.length == 0) {
+            return;
+        }
+        putValue(key, expiring(tenant), generation);
+    }
+
+    /**
+     * Caches the same tenant for several keys, typically all the ancestors visited while resolving it.
+     */
+    public void putAll(Collection<String> keys, Object tenant, long generation) {
+        if (tenant == null || segments.length == 0) {
+            return;
+        }
+        Object value = expiring(tenant);
+        for (String key : keys) {
+            putValue(key, value, generation);
+        }
+    }
+
+    protected Object expiring(Object tenant) {
+        return tenantTtlNanos <= 0 ? tenant : new Expiring(tenant, nanoTime() + tenantTtlNanos);
+    }
+
+    protected void putValue(String key, Object value, long generation) {
+        if (key == null) {
+            return;
+        }
+        Segment segment = segment(key);
+        synchronized (segment) {
+            if (generation == this.generation.get()) {
+                segment.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Records a document holding the tenant configuration.
+     */
+    public void putTenantRoot(String id, Object tenant, long generation) {
+        if (id == null || tenant == null || segments.length == 0) {
+            return;
+        }
+        if (generation == this.generation.get()) {
+            tenantRoots.put(id, tenant);
+        }
+    }
+
+    /**
+     * Checks whether a document, now holding the given tenant ({@code null} if it has no tenant configuration),
+     * differs from what this cache knows about it.
+     * <p>
+     * A document with a tenant configuration never seen by the cache is considered changed, as entries may have been
+     * resolved through it before it became a tenant root.
+     */
+    public boolean isTenantRootChanged(String id, Object tenant) {
+        if (segments.length == 0) {
+            return false;
+        }
+        if (tenant == null) {
+            return tenantRoots.containsKey(id);
+        }
+        return !tenant.equals(tenantRoots.get(id));
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Drops all the entries.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        tenantRoots.clear();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED_BY_COPY;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_MOVED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_REMOVED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_UPDATED;
+import static org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher.TENANT_FACET;
+import static org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher.TENANT_XPATH;
+
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+
+/**
+ * Invalidates the tenant caches of the {@link MultiTenantBlobDispatcher}s when a document change may affect tenant
+ * resolution: a {@code TenantConfig} facet added, removed or changed, or a folder moved or removed.
+ * <p>
+ * The event is flagged so that {@link TenantCachePostCommitInvalidationListener} invalidates again after commit,
+ * dropping any entry resolved concurrently from the previously committed state.
+ */
+public class TenantCacheInvalidationListener implements EventListener {
+
+    /** Event context property flagging an event that invalidated the tenant caches. */
+    public static final String INVALIDATE_PROPERTY = "multiTenantBlobDispatcherInvalidate";
+
+    @Override
+    public void handleEvent(Event event) {
+        EventContext context = event.getContext();
+        if (!(context instanceof DocumentEventContext)) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) context).getSourceDocument();
+        if (doc == null || !affectsTenants(event.getName(), doc)) {
+            return;
+        }
+        invalidate();
+        context.setProperty(INVALIDATE_PROPERTY, Boolean.TRUE);
+    }
+
+    protected boolean affectsTenants(String eventName, DocumentModel doc) {
+        switch (eventName) {
+        case DOCUMENT_MOVED:
+        case DOCUMENT_REMOVED:
+            return doc.isFolder();
+        case DOCUMENT_CREATED:
+        case DOCUMENT_CREATED_BY_COPY:
+            return doc.hasFacet(TENANT_FACET);
+        case DOCUMENT_UPDATED:
+            Object tenant = doc.hasFacet(TENANT_FACET) ? doc.getPropertyValue(TENANT_XPATH) : null;
+            for (MultiTenantBlobDispatcher dispatcher : MultiTenantBlobDispatcher.getInstances()) {
+                if (dispatcher.getTenantCache().isTenantRootChanged(doc.getId(), tenant)) {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    protected static void invalidate() {
+        for (MultiTenantBlobDispatcher dispatcher : MultiTenantBlobDispatcher.getInstances()) {
+            dispatcher.getTenantCache().invalidateAll();
+        }
+    }
+
+}
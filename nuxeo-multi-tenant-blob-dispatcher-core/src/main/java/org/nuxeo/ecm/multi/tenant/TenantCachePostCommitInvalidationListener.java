@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.multi.tenant.TenantCacheInvalidationListener.INVALIDATE_PROPERTY;
+
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventBundle;
+import org.nuxeo.ecm.core.event.PostCommitEventListener;
+
+/**
+ * Invalidates the tenant caches again once the transaction flagged by {@link TenantCacheInvalidationListener} is
+ * committed.
+ */
+public class TenantCachePostCommitInvalidationListener implements PostCommitEventListener {
+
+    @Override
+    public void handleEvent(EventBundle events) {
+        for (Event event : events) {
+            if (Boolean.TRUE.equals(event.getContext().getProperty(INVALIDATE_PROPERTY))) {
+                TenantCacheInvalidationListener.invalidate();
+                return;
+            }
+        }
+    }
+
+}
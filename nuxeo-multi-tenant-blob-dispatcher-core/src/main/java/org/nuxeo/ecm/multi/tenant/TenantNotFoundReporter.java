@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Aggregates the "tenant not found" failures into one warning per interval, with their count and a few sample
+ * documents, instead of logging each of them.
+ * <p>
+ * Reporting never blocks: failures are counted in a {@link LongAdder}, and the thread that first notices that the
+ * interval has elapsed logs the summary. Failures not followed by another one are logged by {@link #flushIfDue}, called
+ * periodically by the {@link DispatcherMaintenance}. The summary gives the actual time elapsed since the previous one.
+ */
+public class TenantNotFoundReporter {
+
+    private static final Log log = LogFactory.getLog(TenantNotFoundReporter.class);
+
+    protected static final int MAX_SAMPLES = 10;
+
+    protected final long intervalNanos;
+
+    protected final LongAdder count = new LongAdder();
+
+    protected final Queue<String> samples = new ConcurrentLinkedQueue<>();
+
+    protected final AtomicInteger sampleCount = new AtomicInteger();
+
+    protected final AtomicLong nextReport;
+
+    protected volatile long lastReport;
+
+    /**
+     * @param intervalSeconds the minimum interval between two warnings, 0 to log each failure
+     */
+    public TenantNotFoundReporter(long intervalSeconds) {
+        intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        long now = System.nanoTime();
+        nextReport = new AtomicLong(now);
+        lastReport = now;
+    }
+
+    /**
+     * Records a failure to find the tenant of a document.
+     *
+     * @param docId the document id
+     * @param usage what the tenant was needed for
+     */
+    public void report(String docId, String usage) {
+        if (intervalNanos <= 0) {
+            log.warn("Tenant configuration not found in parent path of document: " + docId + " for " + usage
+                    + ". Is multi-tenant properly configured?");
+            return;
+        }
+        count.increment();
+        if (sampleCount.get() < MAX_SAMPLES && sampleCount.incrementAndGet() <= MAX_SAMPLES) {
+            samples.add(docId + " (" + usage + ")");
+        }
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + intervalNanos)) {
+            flush(now);
+        }
+    }
+
+    /**
+     * Logs the failures recorded since the last summary if the interval has elapsed.
+     */
+    public void flushIfDue() {
+        if (intervalNanos <= 0 || count.sum() == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long next = nextReport.get();
+        if (now - next >= 0 && nextReport.compareAndSet(next, now + intervalNanos)) {
+            flush(now);
+        }
+    }
+
+    /**
+     * Logs the failures recorded since the last summary, if any.
+     */
+    public void flush() {
+        flush(System.nanoTime());
+    }
+
+    protected void flush(long now) {
+        long elapsed = now - lastReport;
+        lastReport = now;
+        long n = count.sumThenReset();
+        List<String> sample = new ArrayList<>();
+        for (String s; (s = samples.poll()) != null;) {
+            sample.add(s);
+        }
+        sampleCount.set(0);
+        if (n > 0) {
+            log.warn("Tenant configuration not found in parent path for " + n + " blob dispatch(es)"
+                    + " in the last " + TimeUnit.NANOSECONDS.toSeconds(elapsed) + "s"
+                    + ", for instance for documents: " + sample + ". Is multi-tenant properly configured?");
+        }
+    }
+
+}
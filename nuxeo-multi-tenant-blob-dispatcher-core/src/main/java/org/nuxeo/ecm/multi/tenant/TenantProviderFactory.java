@@ -0,0 +1,255 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.blob.BlobManagerComponent;
+import org.nuxeo.ecm.core.blob.BlobProvider;
+import org.nuxeo.ecm.core.blob.BlobProviderDescriptor;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Registers the blob providers of the tenants on first use, from a template, instead of declaring them all.
+ * <p>
+ * Only a descriptor is registered; the blob manager instantiates the provider when it is first used, for writing or
+ * reading. A provider neither written to nor read from during the idle timeout is closed, releasing its clients and
+ * connections, and its descriptor stays registered so that it is instantiated again on its next use.
+ * <p>
+ * The registered class is a {@link TenantBlobProvider}, delegating to the configured class, which counts the writes and
+ * the open streams of each provider with {@link #acquire} and {@link #release}. A provider is only closed when none is
+ * in progress, and its uses wait for the close to be done, both being made under the lock of the provider.
+ * <p>
+ * The dispatcher keeps the same factory when its rules are reloaded, so the providers already registered are neither
+ * registered again nor left behind. The idle providers are looked for by {@link #closeIdleIfDue}, called from the
+ * {@link DispatcherMaintenance} thread, at most once per minute.
+ */
+public class TenantProviderFactory {
+
+    private static final Log log = LogFactory.getLog(TenantProviderFactory.class);
+
+    protected static final long IDLE_CHECK_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    protected final Class<? extends BlobProvider> klass;
+
+    protected final Map<String, String> properties;
+
+    protected volatile long idleTimeoutNanos;
+
+    protected final Consumer<String> closeListener;
+
+    protected final Map<String, TenantProvider> providers = new ConcurrentHashMap<>();
+
+    protected final AtomicLong nextIdleCheck = new AtomicLong(System.nanoTime() + IDLE_CHECK_INTERVAL);
+
+    /** The providers registered by all the factories, by id, for their instances to count their uses. */
+    protected static final Map<String, TenantProvider> REGISTERED = new ConcurrentHashMap<>();
+
+    /**
+     * A registered provider. Its last use, open state and uses in progress are guarded by its lock.
+     */
+    protected static class TenantProvider {
+
+        protected final TenantProviderFactory factory;
+
+        protected final Object tenant;
+
+        protected final BlobProviderDescriptor descriptor;
+
+        protected long lastUsed;
+
+        protected boolean open = true;
+
+        protected int uses;
+
+        protected TenantProvider(TenantProviderFactory factory, Object tenant, BlobProviderDescriptor descriptor,
+                long lastUsed) {
+            this.factory = factory;
+            this.tenant = tenant;
+            this.descriptor = descriptor;
+            this.lastUsed = lastUsed;
+        }
+
+        protected synchronized void touch() {
+            lastUsed = factory.nanoTime();
+            open = true;
+        }
+    }
+
+    /**
+     * @param klass the blob provider class
+     * @param properties the blob provider properties, where {@value MultiTenantBlobDispatcher#TENANT_ID_PLACEHOLDER}
+     *            is replaced by the tenant id
+     * @param idleTimeoutSeconds the idle time after which a provider is closed, 0 to never close them
+     * @param closeListener called with the id of each provider closed, or {@code null}
+     */
+    public TenantProviderFactory(Class<? extends BlobProvider> klass, Map<String, String> properties,
+            long idleTimeoutSeconds, Consumer<String> closeListener) {
+        this.klass = klass;
+        this.properties = properties;
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.closeListener = closeListener;
+    }
+
+    /**
+     * Checks whether this factory produces the providers of the given class and properties.
+     */
+    public boolean produces(Class<? extends BlobProvider> klass, Map<String, String> properties) {
+        return this.klass == klass && Objects.equals(this.properties, properties);
+    }
+
+    public void setIdleTimeout(long idleTimeoutSeconds) {
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    /**
+     * Registers the provider of a tenant, unless already registered.
+     */
+    public void register(String providerId, Object tenant) {
+        providers.computeIfAbsent(providerId, id -> {
+            BlobProviderDescriptor descriptor = new BlobProviderDescriptor();
+            descriptor.name = id;
+            descriptor.klass = TenantBlobProvider.class;
+            descriptor.properties = new HashMap<>();
+            for (Entry<String, String> en : properties.entrySet()) {
+                descriptor.properties.put(en.getKey(),
+                        en.getValue().replace(MultiTenantBlobDispatcher.TENANT_ID_PLACEHOLDER, tenant.toString()));
+            }
+            descriptor.properties.put(TenantBlobProvider.PROP_CLASS, klass.getName());
+            TenantProvider provider = new TenantProvider(this, tenant, descriptor, nanoTime());
+            REGISTERED.put(id, provider);
+            getBlobManager().registerBlobProvider(descriptor);
+            log.debug("Registered blob provider: " + id);
+            return provider;
+        });
+    }
+
+    /**
+     * Checks whether a provider was registered by this factory.
+     */
+    public boolean isRegistered(String providerId) {
+        return providers.containsKey(providerId);
+    }
+
+    /**
+     * Registers again with this factory's class and properties the providers registered by a previous factory, whose
+     * configuration changed, so that none of them is left with the previous configuration.
+     */
+    public void takeOver(TenantProviderFactory previous) {
+        BlobManagerComponent blobManager = getBlobManager();
+        for (Entry<String, TenantProvider> en : previous.providers.entrySet()) {
+            // unregistering closes the instance
+            blobManager.unregisterBlobProvider(en.getValue().descriptor);
+            if (closeListener != null) {
+                closeListener.accept(en.getKey());
+            }
+            register(en.getKey(), en.getValue().tenant);
+        }
+        previous.providers.clear();
+    }
+
+    /**
+     * Records that a provider is used, for writing or reading.
+     */
+    public void touch(String providerId) {
+        TenantProvider provider = providers.get(providerId);
+        if (provider != null) {
+            provider.touch();
+        }
+    }
+
+    /**
+     * Starts a use of a provider, which is not closed as idle until the use is released. Waits for the provider to be
+     * closed if it is being closed.
+     *
+     * @return the provider to release, or {@code null} if not registered by a factory
+     */
+    public static TenantProvider acquire(String providerId) {
+        TenantProvider provider = REGISTERED.get(providerId);
+        if (provider != null) {
+            synchronized (provider) {
+                provider.touch();
+                provider.uses++;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Ends a use of a provider started by {@link #acquire}.
+     */
+    public static void release(TenantProvider provider) {
+        if (provider != null) {
+            synchronized (provider) {
+                provider.uses--;
+                provider.touch();
+            }
+        }
+    }
+
+    /**
+     * Closes the idle providers if they were not looked for during the last minute.
+     */
+    public void closeIdleIfDue() {
+        long now = nanoTime();
+        long next = nextIdleCheck.get();
+        if (idleTimeoutNanos > 0 && now - next >= 0 && nextIdleCheck.compareAndSet(next, now + IDLE_CHECK_INTERVAL)) {
+            closeIdle(now);
+        }
+    }
+
+    /**
+     * Closes the providers not used since the idle timeout and without use in progress, keeping their descriptor
+     * registered.
+     */
+    protected void closeIdle(long now) {
+        BlobManagerComponent blobManager = getBlobManager();
+        for (Entry<String, TenantProvider> en : providers.entrySet()) {
+            TenantProvider provider = en.getValue();
+            synchronized (provider) {
+                if (provider.open && provider.uses == 0 && now - provider.lastUsed > idleTimeoutNanos) {
+                    provider.open = false;
+                    // unregistering closes the instance
+                    blobManager.unregisterBlobProvider(provider.descriptor);
+                    if (closeListener != null) {
+                        closeListener.accept(en.getKey());
+                    }
+                    blobManager.registerBlobProvider(provider.descriptor);
+                    log.debug("Closed idle blob provider: " + en.getKey());
+                }
+            }
+        }
+    }
+
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    protected BlobManagerComponent getBlobManager() {
+        return (BlobManagerComponent) Framework.getService(BlobManager.class);
+    }
+
+}
@@ -0,0 +1,415 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher.TENANT_FACET;
+import static org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher.TENANT_XPATH;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.bulk.BulkService;
+import org.nuxeo.ecm.core.bulk.message.BulkCommand;
+import org.nuxeo.ecm.core.bulk.message.BulkStatus;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Denormalizes the tenant of a document into its {@value #XPATH} property, so that the dispatcher reads it without
+ * walking up the ancestors.
+ * <p>
+ * Documents are stamped by {@link TenantStampListener} when created, copied, moved or modified, and existing content is
+ * stamped by the {@value TenantStampAction#ACTION_NAME} bulk action. Stamping is active when one of the
+ * {@link MultiTenantBlobDispatcher}s has the {@value MultiTenantBlobDispatcher#OPTION_TENANT_STAMP} option.
+ * <p>
+ * When the tenant of a folder changes, its descendants keep their previous stamp until the bulk action stamping them
+ * again completes. Meanwhile their stamps are not trusted: the folder is recorded as pending in the key-value store
+ * {@value #PENDING_KEY_VALUE_STORE} before the transaction commits, the record being read every second by each node,
+ * and dropped once the bulk action is completed.
+ */
+public class TenantStamp {
+
+    private static final Log log = LogFactory.getLog(TenantStamp.class);
+
+    public static final String FACET = "BlobTenant";
+
+    public static final String XPATH = "blobtenant:tenantId";
+
+    /** Context data of a document saved without being stamped by the listener. */
+    public static final String DISABLE_TENANT_STAMP_LISTENER = "disableTenantStampListener";
+
+    /** Context data of a document saved without updating its Dublin Core properties. */
+    public static final String DISABLE_DUBLINCORE_LISTENER = "disableDublinCoreListener";
+
+    protected static final String PENDING_KEY_VALUE_STORE = "default";
+
+    protected static final String PENDING_KEY = "multitenant.stamp.pending";
+
+    /** Time after which a pending folder is dropped, should the completion of its bulk action never be seen. */
+    protected static final long PENDING_TTL = TimeUnit.DAYS.toMillis(1);
+
+    protected static final ThreadLocal<List<PendingFolder>> PENDING_FOLDERS = new ThreadLocal<>();
+
+    /** Folders whose descendants are being stamped again in the cluster, as last read from the key-value store. */
+    protected static volatile List<PendingFolder> pendingFolders = Collections.emptyList();
+
+    /** Folders whose descendants will be stamped again once a transaction of this node commits. */
+    protected static final Set<PendingFolder> LOCAL_PENDING_FOLDERS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * A folder whose descendants are being stamped again.
+     */
+    protected static class PendingFolder {
+
+        protected final String repositoryName;
+
+        protected final String folderId;
+
+        protected final String path;
+
+        protected final String commandId;
+
+        protected final long expiration;
+
+        protected PendingFolder(String repositoryName, String folderId, String path, String commandId,
+                long expiration) {
+            this.repositoryName = repositoryName;
+            this.folderId = folderId;
+            this.path = path.endsWith("/") ? path : path + '/';
+            this.commandId = commandId;
+            this.expiration = expiration;
+        }
+
+        protected static PendingFolder parse(String line) {
+            String[] parts = line.split("\t", -1);
+            return new PendingFolder(parts[0], parts[1], parts[2], StringUtils.defaultIfEmpty(parts[3], null),
+                    Long.parseLong(parts[4]));
+        }
+
+        protected boolean contains(String repositoryName, String path) {
+            return path != null && path.startsWith(this.path) && this.repositoryName.equals(repositoryName);
+        }
+
+        protected boolean isSameFolder(PendingFolder other) {
+            return repositoryName.equals(other.repositoryName) && folderId.equals(other.folderId);
+        }
+
+        protected PendingFolder withCommandId(String commandId) {
+            return new PendingFolder(repositoryName, folderId, path, commandId, expiration);
+        }
+
+        @Override
+        public String toString() {
+            return repositoryName + '\t' + folderId + '\t' + path + '\t' + StringUtils.defaultString(commandId)
+                    + '\t' + expiration;
+        }
+    }
+
+    private TenantStamp() {
+        // utility class
+    }
+
+    /**
+     * Checks whether the live dispatcher reads the tenant stamps.
+     */
+    public static boolean isEnabled() {
+        MultiTenantBlobDispatcher dispatcher = MultiTenantBlobDispatcher.getLatestInstance();
+        return dispatcher != null && dispatcher.isTenantStamp();
+    }
+
+    /**
+     * Checks whether the stamp of a document may be stale, because it is below a folder whose descendants are being
+     * stamped again.
+     */
+    public static boolean isStampPending(Document doc) {
+        return isStampPending(doc.getRepositoryName(), doc.getPath());
+    }
+
+    /**
+     * Checks whether the stamp of the document at the given path may be stale, because it is below a folder whose
+     * descendants are being stamped again.
+     */
+    public static boolean isStampPending(String repositoryName, String path) {
+        for (PendingFolder folder : pendingFolders) {
+            if (folder.contains(repositoryName, path)) {
+                return true;
+            }
+        }
+        if (!LOCAL_PENDING_FOLDERS.isEmpty()) {
+            for (PendingFolder folder : LOCAL_PENDING_FOLDERS) {
+                if (folder.contains(repositoryName, path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the tenant stamped on a document, or {@code null} if it is not stamped.
+     */
+    public static Object getStamp(DocumentModel doc) {
+        return doc.hasFacet(FACET) ? doc.getPropertyValue(XPATH) : null;
+    }
+
+    /**
+     * Stamps a document with its tenant, without saving it.
+     *
+     * @param trustStamps {@code true} to stop at the nearest stamped ancestor, {@code false} to always walk up to the
+     *            nearest tenant configuration
+     * @param tenants cache of the tenant of the folders already resolved, or {@code null}
+     * @return {@code true} if the stamp changed
+     */
+    public static boolean stamp(CoreSession session, DocumentModel doc, boolean trustStamps,
+            Map<DocumentRef, Object> tenants) {
+        Object tenant = doc.hasFacet(TENANT_FACET) ? doc.getPropertyValue(TENANT_XPATH)
+                : resolveParentTenant(session, doc.getParentRef(), trustStamps, tenants);
+        if (Objects.equals(tenant, getStamp(doc))) {
+            return false;
+        }
+        if (!doc.hasFacet(FACET)) {
+            doc.addFacet(FACET);
+        }
+        doc.setPropertyValue(XPATH, tenant == null ? null : tenant.toString());
+        return true;
+    }
+
+    /**
+     * Resolves the tenant of a folder from its own tenant configuration or the one of its nearest ancestor, reading
+     * them in a privileged session as the ancestors may not be readable by the current user.
+     */
+    protected static Object resolveParentTenant(CoreSession session, DocumentRef parentRef, boolean trustStamps,
+            Map<DocumentRef, Object> tenants) {
+        if (parentRef == null) {
+            return null;
+        }
+        if (tenants != null && tenants.containsKey(parentRef)) {
+            return tenants.get(parentRef);
+        }
+        Object tenant = CoreInstance.doPrivileged(session.getRepositoryName(), s -> {
+            for (DocumentRef ref = parentRef; ref != null;) {
+                DocumentModel folder = s.getDocument(ref);
+                if (folder.hasFacet(TENANT_FACET)) {
+                    return folder.getPropertyValue(TENANT_XPATH);
+                }
+                Object stamp = trustStamps && !isStampPending(s.getRepositoryName(), folder.getPathAsString())
+                        ? getStamp(folder) : null;
+                if (stamp != null) {
+                    return stamp;
+                }
+                ref = folder.getParentRef();
+            }
+            return null;
+        });
+        if (tenants != null) {
+            tenants.put(parentRef, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Stamps again the descendants of a folder whose tenant changed, once the current transaction commits. Until this
+     * is completed, the stamps below the folder are not trusted.
+     */
+    public static void stampDescendantsAfterCommit(String repositoryName, String folderId, String folderPath) {
+        PendingFolder folder = new PendingFolder(repositoryName, folderId, folderPath, null,
+                System.currentTimeMillis() + PENDING_TTL);
+        if (!TransactionHelper.isTransactionActive()) {
+            String commandId = stampDescendants(repositoryName, Collections.singleton(folderId));
+            updatePendingFolders(list -> add(list, Collections.singletonList(folder.withCommandId(commandId))));
+            return;
+        }
+        LOCAL_PENDING_FOLDERS.add(folder);
+        List<PendingFolder> pending = PENDING_FOLDERS.get();
+        if (pending == null) {
+            List<PendingFolder> folders = new ArrayList<>();
+            PENDING_FOLDERS.set(folders);
+            TransactionHelper.registerSynchronization(new Synchronization() {
+
+                @Override
+                public void beforeCompletion() {
+                    // make the pending folders known to the cluster before the move is visible
+                    updatePendingFolders(list -> add(list, folders));
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (PENDING_FOLDERS.get() == folders) {
+                        PENDING_FOLDERS.remove();
+                    }
+                    try {
+                        if (status == Status.STATUS_COMMITTED) {
+                            submitPendingFolders(folders);
+                        } else {
+                            updatePendingFolders(list -> remove(list, folders));
+                        }
+                    } finally {
+                        LOCAL_PENDING_FOLDERS.removeAll(folders);
+                    }
+                }
+            });
+            pending = folders;
+        }
+        pending.add(folder);
+    }
+
+    protected static void submitPendingFolders(List<PendingFolder> folders) {
+        Map<String, List<PendingFolder>> byRepository = folders.stream().collect(
+                Collectors.groupingBy(f -> f.repositoryName, LinkedHashMap::new, Collectors.toList()));
+        List<PendingFolder> submitted = new ArrayList<>();
+        for (List<PendingFolder> list : byRepository.values()) {
+            String commandId = stampDescendants(list.get(0).repositoryName,
+                    list.stream().map(f -> f.folderId).collect(Collectors.toList()));
+            list.forEach(f -> submitted.add(f.withCommandId(commandId)));
+        }
+        updatePendingFolders(list -> add(list, submitted));
+    }
+
+    /**
+     * Reads the folders whose descendants are being stamped again in the cluster, and drops those whose bulk action is
+     * completed. Called every second by the {@link DispatcherMaintenance}.
+     */
+    public static void refreshPendingFolders() {
+        List<PendingFolder> folders = parsePendingFolders(getKeyValueStore().getString(PENDING_KEY));
+        List<PendingFolder> done = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        BulkService bulkService = null;
+        for (PendingFolder folder : folders) {
+            if (folder.expiration < now) {
+                done.add(folder);
+            } else if (folder.commandId != null) {
+                if (bulkService == null) {
+                    bulkService = Framework.getService(BulkService.class);
+                }
+                BulkStatus.State state = bulkService.getStatus(folder.commandId).getState();
+                if (state == BulkStatus.State.COMPLETED || state == BulkStatus.State.ABORTED
+                        || state == BulkStatus.State.UNKNOWN) {
+                    done.add(folder);
+                }
+            }
+        }
+        if (!done.isEmpty()) {
+            folders = updatePendingFolders(list -> remove(list, done));
+        }
+        pendingFolders = folders;
+    }
+
+    protected static List<PendingFolder> add(List<PendingFolder> list, List<PendingFolder> folders) {
+        List<PendingFolder> result = remove(list, folders);
+        result.addAll(folders);
+        return result;
+    }
+
+    protected static List<PendingFolder> remove(List<PendingFolder> list, List<PendingFolder> folders) {
+        List<PendingFolder> result = new ArrayList<>(list);
+        result.removeIf(f -> folders.stream().anyMatch(f::isSameFolder));
+        return result;
+    }
+
+    /**
+     * Updates the pending folders of the key-value store.
+     *
+     * @return the updated folders
+     */
+    protected static List<PendingFolder> updatePendingFolders(UnaryOperator<List<PendingFolder>> update) {
+        try {
+            KeyValueStore store = getKeyValueStore();
+            for (;;) {
+                String value = store.getString(PENDING_KEY);
+                List<PendingFolder> folders = update.apply(parsePendingFolders(value));
+                String newValue = folders.isEmpty() ? null
+                        : folders.stream().map(PendingFolder::toString).collect(Collectors.joining("\n"));
+                if (Objects.equals(value, newValue) || store.compareAndSet(PENDING_KEY, value, newValue)) {
+                    return folders;
+                }
+            }
+        } catch (RuntimeException e) {
+            // never fail the transaction: stamps are only trusted less long
+            log.error("Cannot record the folders whose descendants are stamped again", e);
+            return pendingFolders;
+        }
+    }
+
+    protected static List<PendingFolder> parsePendingFolders(String value) {
+        if (StringUtils.isEmpty(value)) {
+            return Collections.emptyList();
+        }
+        List<PendingFolder> folders = new ArrayList<>();
+        for (String line : value.split("\n")) {
+            folders.add(PendingFolder.parse(line));
+        }
+        return folders;
+    }
+
+    protected static KeyValueStore getKeyValueStore() {
+        return Framework.getService(KeyValueService.class).getKeyValueStore(PENDING_KEY_VALUE_STORE);
+    }
+
+    /**
+     * Submits the stamping of the descendants of some folders.
+     *
+     * @return the bulk command id
+     */
+    public static String stampDescendants(String repositoryName, Collection<String> folderIds) {
+        StringBuilder query = new StringBuilder("SELECT * FROM Document WHERE ecm:isProxy = 0 AND (");
+        int i = 0;
+        for (String folderId : folderIds) {
+            if (i++ > 0) {
+                query.append(" OR ");
+            }
+            query.append("ecm:ancestorId = ").append(NXQL.escapeString(folderId));
+        }
+        query.append(')');
+        return backfill(repositoryName, query.toString());
+    }
+
+    /**
+     * Submits the stamping of the documents matching a query.
+     *
+     * @return the bulk command id
+     */
+    public static String backfill(String repositoryName, String query) {
+        BulkCommand command = new BulkCommand.Builder(TenantStampAction.ACTION_NAME, query).repository(
+                repositoryName).user(SecurityConstants.SYSTEM_USERNAME).build();
+        return Framework.getService(BulkService.class).submit(command);
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.bulk.BulkServiceImpl.STATUS_STREAM;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.INPUT_1;
+import static org.nuxeo.lib.stream.computation.AbstractComputation.OUTPUT_1;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.bulk.action.computation.AbstractBulkComputation;
+import org.nuxeo.ecm.core.versioning.VersioningService;
+import org.nuxeo.lib.stream.computation.Topology;
+import org.nuxeo.runtime.stream.StreamProcessorTopology;
+
+/**
+ * Bulk action stamping documents with their tenant, see {@link TenantStamp}.
+ * <p>
+ * The tenant is always resolved from the nearest tenant configuration, not from the stamps of the ancestors which may
+ * be concurrently stamped again. Documents already correctly stamped are not saved, so the action can be run again
+ * safely.
+ */
+public class TenantStampAction implements StreamProcessorTopology {
+
+    public static final String ACTION_NAME = "multiTenantStampTenant";
+
+    @Override
+    public Topology getTopology(Map<String, String> options) {
+        return Topology.builder()
+                       .addComputation(TenantStampComputation::new,
+                               Arrays.asList(INPUT_1 + ":" + ACTION_NAME, OUTPUT_1 + ":" + STATUS_STREAM))
+                       .build();
+    }
+
+    public static class TenantStampComputation extends AbstractBulkComputation {
+
+        public TenantStampComputation() {
+            super(ACTION_NAME);
+        }
+
+        @Override
+        protected void compute(CoreSession session, List<String> ids, Map<String, Serializable> properties) {
+            CoreInstance.doPrivileged(session.getRepositoryName(), s -> {
+                Map<DocumentRef, Object> tenants = new HashMap<>();
+                for (DocumentModel doc : loadDocuments(s, ids)) {
+                    if (doc.isProxy() || doc.isVersion()) {
+                        continue;
+                    }
+                    if (TenantStamp.stamp(s, doc, false, tenants)) {
+                        doc.putContextData(VersioningService.DISABLE_AUTO_CHECKOUT, Boolean.TRUE);
+                        doc.putContextData(TenantStamp.DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+                        doc.putContextData(TenantStamp.DISABLE_TENANT_STAMP_LISTENER, Boolean.TRUE);
+                        s.saveDocument(doc);
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+}
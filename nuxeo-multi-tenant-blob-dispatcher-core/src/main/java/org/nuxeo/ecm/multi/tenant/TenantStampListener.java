@@ -0,0 +1,85 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_CREATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED_BY_COPY;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_MOVED;
+
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.versioning.VersioningService;
+
+/**
+ * Stamps documents with their tenant, see {@link TenantStamp}.
+ * <p>
+ * New documents are stamped before being created, from the stamp of their parent. Copied and moved documents are
+ * stamped again, as well as modified folders, in case their tenant configuration changed; when the tenant of a folder
+ * changes, its descendants are stamped again by a bulk action after commit, and their stamps are not trusted until then.
+ * Copied and moved documents are saved again without checkout nor change of their modification date. Documents
+ * modified before the stamping was enabled are stamped on their next modification.
+ */
+public class TenantStampListener implements EventListener {
+
+    @Override
+    public void handleEvent(Event event) {
+        EventContext context = event.getContext();
+        if (!(context instanceof DocumentEventContext) || !TenantStamp.isEnabled()) {
+            return;
+        }
+        DocumentModel doc = ((DocumentEventContext) context).getSourceDocument();
+        CoreSession session = context.getCoreSession();
+        if (doc == null || session == null || doc.isProxy() || doc.isVersion()
+                || Boolean.TRUE.equals(doc.getContextData(TenantStamp.DISABLE_TENANT_STAMP_LISTENER))) {
+            return;
+        }
+        switch (event.getName()) {
+        case ABOUT_TO_CREATE:
+            TenantStamp.stamp(session, doc, true, null);
+            break;
+        case BEFORE_DOC_UPDATE:
+            if (doc.isFolder() || !doc.hasFacet(TenantStamp.FACET)) {
+                if (TenantStamp.stamp(session, doc, true, null) && doc.isFolder()) {
+                    TenantStamp.stampDescendantsAfterCommit(doc.getRepositoryName(), doc.getId(),
+                            doc.getPathAsString());
+                }
+            }
+            break;
+        case DOCUMENT_CREATED_BY_COPY:
+        case DOCUMENT_MOVED:
+            if (TenantStamp.stamp(session, doc, true, null)) {
+                // the document was not changed by the user
+                doc.putContextData(VersioningService.DISABLE_AUTO_CHECKOUT, Boolean.TRUE);
+                doc.putContextData(TenantStamp.DISABLE_DUBLINCORE_LISTENER, Boolean.TRUE);
+                doc.putContextData(TenantStamp.DISABLE_TENANT_STAMP_LISTENER, Boolean.TRUE);
+                session.saveDocument(doc);
+                if (doc.isFolder()) {
+                    TenantStamp.stampDescendantsAfterCommit(doc.getRepositoryName(), doc.getId(),
+                            doc.getPathAsString());
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+}
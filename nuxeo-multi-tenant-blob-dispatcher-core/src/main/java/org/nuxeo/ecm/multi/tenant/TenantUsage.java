@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueService;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Running count of the blobs and bytes of each tenant in each provider, kept by a {@link MultiTenantBlobDispatcher}.
+ * <p>
+ * The blobs of a document are counted by the {@link TenantUsageListener} when it is created, modified or removed, and
+ * by the {@link RedispatchAction} when they move. The changes made in a transaction are only counted once it commits,
+ * so a rollback leaves the counts unchanged.
+ * <p>
+ * The changes are added to {@link LongAdder}s, striped internally, so concurrent transactions of the same tenant don't
+ * contend. The counts accumulated since the last flush are added to counters of a key-value store shared by the
+ * cluster by the {@link DispatcherMaintenance} thread, every flush interval and when the runtime stops. The totals
+ * therefore survive restarts and aggregate the changes of all the nodes, and lag behind by at most the flush interval
+ * of each node.
+ * <p>
+ * The pairs of tenant and provider ever counted are listed in the {@value #INDEX_KEY} key, so that the totals can be
+ * read without scanning the store.
+ */
+public class TenantUsage {
+
+    protected static final String KEY_PREFIX = "multitenant.usage.";
+
+    protected static final String INDEX_KEY = KEY_PREFIX + "index";
+
+    /** Tenant of the blobs of documents without tenant. */
+    public static final String NO_TENANT = "";
+
+    public static final String BLOBS = "blobs";
+
+    public static final String BYTES = "bytes";
+
+    protected static final char SEPARATOR = '\t';
+
+    protected final String storeName;
+
+    protected final long flushIntervalNanos;
+
+    /** Counts not yet flushed, by tenant and provider. */
+    protected final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /** Pairs of tenant and provider known to be in the index. */
+    protected final Set<String> indexed = ConcurrentHashMap.newKeySet();
+
+    protected final AtomicLong nextFlush;
+
+    /** Changes of the current transaction, counted when it commits. */
+    protected final ThreadLocal<Map<String, long[]>> transactionChanges = new ThreadLocal<>();
+
+    protected static class Counter {
+
+        protected final LongAdder blobs = new LongAdder();
+
+        protected final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * @param storeName the key-value store holding the totals
+     * @param flushIntervalSeconds the maximum time before changes are added to the totals
+     */
+    public TenantUsage(String storeName, long flushIntervalSeconds) {
+        this.storeName = storeName;
+        flushIntervalNanos = flushIntervalSeconds * 1_000_000_000L;
+        nextFlush = new AtomicLong(System.nanoTime() + flushIntervalNanos);
+    }
+
+    protected static String pair(Object tenant, String providerId) {
+        return (tenant == null ? NO_TENANT : tenant.toString()) + SEPARATOR + providerId;
+    }
+
+    /**
+     * Records a blob written to a provider, once the current transaction commits.
+     */
+    public void blobWritten(Object tenant, String providerId, long length) {
+        change(tenant, providerId, 1, length);
+    }
+
+    /**
+     * Records a blob no longer referenced from a provider, once the current transaction commits.
+     */
+    public void blobRemoved(Object tenant, String providerId, long length) {
+        change(tenant, providerId, -1, -length);
+    }
+
+    protected void change(Object tenant, String providerId, long blobs, long bytes) {
+        if (providerId == null) {
+            return;
+        }
+        String pair = pair(tenant, providerId);
+        if (!TransactionHelper.isTransactionActive()) {
+            add(pair, blobs, bytes);
+            return;
+        }
+        Map<String, long[]> changes = transactionChanges.get();
+        if (changes == null) {
+            Map<String, long[]> newChanges = new HashMap<>();
+            transactionChanges.set(newChanges);
+            TransactionHelper.registerSynchronization(new Synchronization() {
+
+                @Override
+                public void beforeCompletion() {
+                    // nothing
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (transactionChanges.get() == newChanges) {
+                        transactionChanges.remove();
+                    }
+                    if (status == Status.STATUS_COMMITTED) {
+                        newChanges.forEach((p, change) -> add(p, change[0], change[1]));
+                    }
+                }
+            });
+            changes = newChanges;
+        }
+        long[] change = changes.computeIfAbsent(pair, k -> new long[2]);
+        change[0] += blobs;
+        change[1] += bytes;
+    }
+
+    protected void add(String pair, long blobs, long bytes) {
+        Counter counter = counters.computeIfAbsent(pair, k -> new Counter());
+        counter.blobs.add(blobs);
+        counter.bytes.add(bytes);
+    }
+
+    /**
+     * Adds the counts to the totals if the flush interval elapsed.
+     */
+    public void flushIfDue() {
+        long now = System.nanoTime();
+        long next = nextFlush.get();
+        if (now - next >= 0 && nextFlush.compareAndSet(next, now + flushIntervalNanos)) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the counts accumulated since the last flush to the totals of the key-value store.
+     */
+    public void flush() {
+        if (counters.isEmpty()) {
+            return;
+        }
+        KeyValueStore store = getKeyValueStore();
+        for (Map.Entry<String, Counter> en : counters.entrySet()) {
+            String pair = en.getKey();
+            Counter counter = en.getValue();
+            long blobs = counter.blobs.sumThenReset();
+            long bytes = counter.bytes.sumThenReset();
+            if (blobs == 0 && bytes == 0) {
+                continue;
+            }
+            try {
+                addToIndex(store, pair);
+                store.addAndGet(KEY_PREFIX + BLOBS + '.' + pair, blobs);
+                store.addAndGet(KEY_PREFIX + BYTES + '.' + pair, bytes);
+            } catch (RuntimeException e) {
+                // counted again at the next flush
+                counter.blobs.add(blobs);
+                counter.bytes.add(bytes);
+                throw e;
+            }
+        }
+    }
+
+    protected void addToIndex(KeyValueStore store, String pair) {
+        if (indexed.contains(pair)) {
+            return;
+        }
+        for (;;) {
+            String index = store.getString(INDEX_KEY);
+            Set<String> pairs = parseIndex(index);
+            if (pairs.contains(pair)
+                    || store.compareAndSet(INDEX_KEY, index, index == null ? pair : index + '\n' + pair)) {
+                indexed.add(pair);
+                return;
+            }
+        }
+    }
+
+    protected static Set<String> parseIndex(String index) {
+        if (index == null || index.isEmpty()) {
+            return Collections.emptySet();
+        }
+        return new LinkedHashSet<>(Arrays.asList(index.split("\n")));
+    }
+
+    /**
+     * Gets the totals of all the nodes, after flushing the counts of this node.
+     *
+     * @param tenant the tenant to get, or {@code null} for all of them
+     * @return the number of {@value #BLOBS} and {@value #BYTES} by provider, by tenant
+     */
+    public Map<String, Map<String, Map<String, Long>>> getUsage(String tenant) {
+        flush();
+        KeyValueStore store = getKeyValueStore();
+        Map<String, Map<String, Map<String, Long>>> usage = new TreeMap<>();
+        for (String pair : parseIndex(store.getString(INDEX_KEY))) {
+            int i = pair.indexOf(SEPARATOR);
+            String pairTenant = pair.substring(0, i);
+            if (tenant != null && !tenant.equals(pairTenant)) {
+                continue;
+            }
+            Map<String, Long> counts = new TreeMap<>();
+            counts.put(BLOBS, getLong(store, KEY_PREFIX + BLOBS + '.' + pair));
+            counts.put(BYTES, getLong(store, KEY_PREFIX + BYTES + '.' + pair));
+            usage.computeIfAbsent(pairTenant, k -> new TreeMap<>()).put(pair.substring(i + 1), counts);
+        }
+        return usage;
+    }
+
+    protected static Long getLong(KeyValueStore store, String key) {
+        Long value = store.getLong(key);
+        return value == null ? Long.valueOf(0) : value;
+    }
+
+    protected KeyValueStore getKeyValueStore() {
+        return Framework.getService(KeyValueService.class).getKeyValueStore(storeName);
+    }
+
+}
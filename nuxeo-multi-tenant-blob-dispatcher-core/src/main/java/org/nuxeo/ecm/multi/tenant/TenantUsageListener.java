@@ -0,0 +1,187 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.ABOUT_TO_REMOVE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.BEFORE_DOC_UPDATE;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_CREATED_BY_COPY;
+import static org.nuxeo.ecm.core.api.event.DocumentEventTypes.DOCUMENT_UPDATED;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.nuxeo.ecm.core.api.AbstractSession;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentNotFoundException;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.blob.ManagedBlob;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventContext;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.model.Session;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+
+/**
+ * Counts the blobs of documents in the usage of their tenant, see {@link TenantUsage}: the blobs of a created or
+ * copied document, and of the descendants of a copied folder, are added; the blobs of a document about to be removed,
+ * and of its descendants, are removed; a modified document has its replaced and removed blobs removed and its new
+ * blobs added, by comparing its blobs before and after the modification. The counts only change once the transaction
+ * commits. Versions and proxies are skipped, as they share the blobs of their live document.
+ */
+public class TenantUsageListener implements EventListener {
+
+    /** Context data holding the blobs of a document before its modification. */
+    protected static final String PREVIOUS_BLOBS = "multiTenantUsagePreviousBlobs";
+
+    protected static final char SEPARATOR = '\t';
+
+    @Override
+    public void handleEvent(Event event) {
+        EventContext context = event.getContext();
+        if (!(context instanceof DocumentEventContext)) {
+            return;
+        }
+        MultiTenantBlobDispatcher dispatcher = MultiTenantBlobDispatcher.getLatestInstance();
+        DocumentModel doc = ((DocumentEventContext) context).getSourceDocument();
+        CoreSession session = context.getCoreSession();
+        if (dispatcher == null || dispatcher.getUsage() == null || doc == null || session == null || doc.isProxy()
+                || doc.isVersion()) {
+            return;
+        }
+        Session storage = ((AbstractSession) session).getSession();
+        switch (event.getName()) {
+        case BEFORE_DOC_UPDATE:
+            Document previous = getDocument(storage, doc.getId());
+            if (previous != null) {
+                doc.putContextData(PREVIOUS_BLOBS, getBlobs(previous));
+            }
+            break;
+        case DOCUMENT_UPDATED:
+            @SuppressWarnings("unchecked")
+            List<String> previousBlobs = (List<String>) doc.getContextData(PREVIOUS_BLOBS);
+            if (previousBlobs == null) {
+                // not a modification of the stored document
+                return;
+            }
+            doc.putContextData(PREVIOUS_BLOBS, null);
+            count(dispatcher, getDocument(storage, doc.getId()), previousBlobs, false);
+            break;
+        case DOCUMENT_CREATED:
+            count(dispatcher, getDocument(storage, doc.getId()), Collections.emptyList(), false);
+            break;
+        case DOCUMENT_CREATED_BY_COPY:
+            for (String id : getIds(session, doc)) {
+                count(dispatcher, getDocument(storage, id), Collections.emptyList(), false);
+            }
+            break;
+        case ABOUT_TO_REMOVE:
+            for (String id : getIds(session, doc)) {
+                count(dispatcher, getDocument(storage, id), Collections.emptyList(), true);
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Gets the id of a document and of its live descendants.
+     */
+    protected static List<String> getIds(CoreSession session, DocumentModel doc) {
+        List<String> ids = new ArrayList<>();
+        ids.add(doc.getId());
+        if (doc.isFolder()) {
+            String query = "SELECT ecm:uuid FROM Document WHERE ecm:ancestorId = " + NXQL.escapeString(doc.getId())
+                    + " AND ecm:isProxy = 0 AND ecm:isVersion = 0";
+            try (IterableQueryResult result = session.queryAndFetch(query, NXQL.NXQL)) {
+                result.forEach(row -> ids.add((String) row.get(NXQL.ECM_UUID)));
+            }
+        }
+        return ids;
+    }
+
+    protected static Document getDocument(Session storage, String id) {
+        try {
+            return storage.getDocumentByUUID(id);
+        } catch (DocumentNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the stored blobs of a document, as provider, key and length separated by tabs.
+     */
+    protected static ArrayList<String> getBlobs(Document document) {
+        ArrayList<String> blobs = new ArrayList<>();
+        document.visitBlobs(accessor -> {
+            Blob blob = accessor.getBlob();
+            if (blob instanceof ManagedBlob) {
+                ManagedBlob managed = (ManagedBlob) blob;
+                blobs.add(managed.getProviderId() + SEPARATOR + managed.getKey() + SEPARATOR
+                        + Math.max(blob.getLength(), 0));
+            }
+        });
+        return blobs;
+    }
+
+    /**
+     * Counts the difference between the previous blobs of a document and its current ones, or removes its current
+     * ones.
+     */
+    protected static void count(MultiTenantBlobDispatcher dispatcher, Document document, List<String> previousBlobs,
+            boolean removed) {
+        if (document == null) {
+            return;
+        }
+        List<String> blobs = getBlobs(document);
+        List<String> removedBlobs;
+        List<String> addedBlobs;
+        if (removed) {
+            removedBlobs = blobs;
+            addedBlobs = Collections.emptyList();
+        } else {
+            // a blob kept by the modification is in both lists
+            removedBlobs = new ArrayList<>(previousBlobs);
+            addedBlobs = new ArrayList<>();
+            for (String blob : blobs) {
+                if (!removedBlobs.remove(blob)) {
+                    addedBlobs.add(blob);
+                }
+            }
+        }
+        for (String blob : removedBlobs) {
+            String[] parts = split(blob);
+            dispatcher.countRemoval(document, parts[0], Long.parseLong(parts[2]));
+        }
+        for (String blob : addedBlobs) {
+            String[] parts = split(blob);
+            dispatcher.countWrite(document, parts[0], Long.parseLong(parts[2]));
+        }
+    }
+
+    protected static String[] split(String blob) {
+        int i = blob.indexOf(SEPARATOR);
+        int j = blob.lastIndexOf(SEPARATOR);
+        return new String[] { blob.substring(0, i), blob.substring(i + 1, j), blob.substring(j + 1) };
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.blob.BlobManager;
+import org.nuxeo.ecm.core.management.api.ProbeStatus;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Warms up the dispatchers configured with {@value MultiTenantBlobDispatcher#OPTION_WARMUP} in the background once the
+ * runtime is started, so that the first writes after a restart don't all walk up the ancestors of their documents.
+ * <p>
+ * All the documents holding the {@code TenantConfig} facet are read with one query per repository, and their tenant is
+ * put in the tenant cache of the dispatchers. The providers named by the rules and tenant mappings are checked to
+ * exist. Until this is done, and while a provider is missing, the {@link TenantWarmupProbe} health check fails, so
+ * that the node is not reported ready. The missing providers are checked again each time the health check runs, and a
+ * failed warm-up is retried every minute, so the node becomes ready once the problem is fixed, without restart.
+ */
+public class TenantWarmup extends DefaultComponent {
+
+    private static final Log log = LogFactory.getLog(TenantWarmup.class);
+
+    protected static final String TENANT_ROOTS_QUERY = "SELECT ecm:uuid, ecm:path, "
+            + MultiTenantBlobDispatcher.TENANT_XPATH + " FROM Document WHERE ecm:mixinType = '"
+            + MultiTenantBlobDispatcher.TENANT_FACET + "' AND ecm:isProxy = 0";
+
+    /** Dispatchers initialized before the runtime started, warmed up when it starts. */
+    protected static final List<MultiTenantBlobDispatcher> WAITING = new ArrayList<>();
+
+    protected static final AtomicInteger PENDING = new AtomicInteger();
+
+    protected static final long RETRY_DELAY_SECONDS = 60;
+
+    /** Dispatchers warmed up, whose providers are checked by the health check. */
+    protected static final Set<MultiTenantBlobDispatcher> WARMED_UP = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    /** The failure of the dispatchers whose warm-up failed, until it is retried successfully. */
+    protected static final Map<MultiTenantBlobDispatcher, String> FAILURES = Collections.synchronizedMap(
+            new WeakHashMap<>());
+
+    protected static ScheduledExecutorService executor;
+
+    /**
+     * Warms up a dispatcher in the background, as soon as the runtime is started.
+     */
+    public static synchronized void schedule(MultiTenantBlobDispatcher dispatcher) {
+        PENDING.incrementAndGet();
+        if (executor == null) {
+            WAITING.add(dispatcher);
+        } else {
+            submit(dispatcher, 0, true);
+        }
+    }
+
+    /**
+     * Runs the warm-up of a dispatcher after a delay.
+     *
+     * @param first {@code true} for the first attempt, which is counted as pending
+     */
+    protected static void submit(MultiTenantBlobDispatcher dispatcher, long delaySeconds, boolean first) {
+        executor.schedule(() -> {
+            try {
+                warmUp(dispatcher);
+                FAILURES.remove(dispatcher);
+                WARMED_UP.add(dispatcher);
+            } catch (RuntimeException e) {
+                log.error("Cannot warm up multi-tenant blob dispatcher, retrying in " + RETRY_DELAY_SECONDS + "s", e);
+                FAILURES.put(dispatcher, "Warm-up failed: " + e);
+                retry(dispatcher);
+            } finally {
+                if (first) {
+                    PENDING.decrementAndGet();
+                }
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    protected static synchronized void retry(MultiTenantBlobDispatcher dispatcher) {
+        if (executor != null) {
+            submit(dispatcher, RETRY_DELAY_SECONDS, false);
+        }
+    }
+
+    @Override
+    public int getApplicationStartedOrder() {
+        // after the repositories and blob providers
+        return 1000;
+    }
+
+    @Override
+    public void start(ComponentContext context) {
+        synchronized (TenantWarmup.class) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "multi-tenant-blob-dispatcher-warmup");
+                thread.setDaemon(true);
+                return thread;
+            });
+            WAITING.forEach(dispatcher -> submit(dispatcher, 0, true));
+            WAITING.clear();
+        }
+    }
+
+    @Override
+    public void stop(ComponentContext context) throws InterruptedException {
+        ScheduledExecutorService stopped;
+        synchronized (TenantWarmup.class) {
+            stopped = executor;
+            executor = null;
+        }
+        if (stopped != null) {
+            stopped.shutdownNow();
+            stopped.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Fills the tenant cache of a dispatcher from all the tenant roots, and checks its providers.
+     */
+    protected static void warmUp(MultiTenantBlobDispatcher dispatcher) {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        for (String repositoryName : Framework.getService(RepositoryManager.class).getRepositoryNames()) {
+            count += TransactionHelper.runInTransaction(
+                    () -> CoreInstance.doPrivileged(repositoryName, session -> {
+                        int n = 0;
+                        // read before the query, so that an invalidation during it is not overwritten
+                        long generation = dispatcher.getTenantCache().getGeneration();
+                        try (IterableQueryResult result = session.queryAndFetch(TENANT_ROOTS_QUERY, NXQL.NXQL)) {
+                            for (Map<String, Serializable> row : result) {
+                                Serializable tenant = row.get(MultiTenantBlobDispatcher.TENANT_XPATH);
+                                if (tenant != null) {
+                                    dispatcher.warmUpTenantRoot((String) row.get(NXQL.ECM_UUID),
+                                            (String) row.get(NXQL.ECM_PATH), tenant, generation);
+                                    n++;
+                                }
+                            }
+                        }
+                        return Integer.valueOf(n);
+                    })).intValue();
+        }
+        List<String> missing = getMissingProviderIds(dispatcher);
+        if (!missing.isEmpty()) {
+            log.error("Missing blob providers used by the multi-tenant blob dispatcher: " + missing);
+        }
+        log.info("Warmed up multi-tenant blob dispatcher with " + count + " tenant roots in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Gets the providers named by the rules and tenant mappings of a dispatcher that are not declared. The providers
+     * created on first use by a {@link TenantProviderFactory} are not checked.
+     */
+    protected static List<String> getMissingProviderIds(MultiTenantBlobDispatcher dispatcher) {
+        MultiTenantBlobDispatcher.RuleSet rs = dispatcher.ruleSet;
+        List<String> providerIds = new ArrayList<>();
+        if (rs.ruleProviderIds != null) {
+            providerIds.addAll(rs.ruleProviderIds);
+        }
+        for (String providerId : rs.tenantProviderIds) {
+            if (rs.tenantProviderFactory == null || !rs.isTenantProviderId(providerId)) {
+                providerIds.add(providerId);
+            }
+        }
+        BlobManager blobManager = Framework.getService(BlobManager.class);
+        List<String> missing = new ArrayList<>();
+        for (String providerId : providerIds) {
+            if (blobManager.getBlobProvider(providerId) == null) {
+                missing.add(providerId);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Gets the status of the warm-up: failed while in progress, if it failed, or while a provider is missing.
+     */
+    public static ProbeStatus getStatus() {
+        int pending = PENDING.get();
+        if (pending > 0) {
+            return ProbeStatus.newFailure("Warming up " + pending + " multi-tenant blob dispatcher(s)");
+        }
+        List<String> problems;
+        synchronized (FAILURES) {
+            problems = new ArrayList<>(FAILURES.values());
+        }
+        List<MultiTenantBlobDispatcher> warmedUp;
+        synchronized (WARMED_UP) {
+            warmedUp = new ArrayList<>(WARMED_UP);
+        }
+        for (MultiTenantBlobDispatcher dispatcher : warmedUp) {
+            List<String> missing = getMissingProviderIds(dispatcher);
+            if (!missing.isEmpty()) {
+                problems.add("Missing blob providers: " + missing);
+            }
+        }
+        if (!problems.isEmpty()) {
+            return ProbeStatus.newFailure(String.join(", ", problems));
+        }
+        return ProbeStatus.newSuccess("Multi-tenant blob dispatchers warmed up");
+    }
+
+}
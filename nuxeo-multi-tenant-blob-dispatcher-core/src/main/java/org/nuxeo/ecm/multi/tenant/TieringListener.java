@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.multi.tenant;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.event.EventListener;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.kv.KeyValueStore;
+
+/**
+ * Starts the tiering of the last initialized dispatcher, if configured with cold providers, on the scheduled
+ * {@value #TIERING_EVENT} event.
+ * <p>
+ * The schedule fires on all the nodes of a cluster: each node writes out its pending reads, and a key in the key-value
+ * store makes only the first one submit the tiering, see {@link RedispatchAction#submitTiering}. The submission is
+ * delayed by the flush interval of the {@link BlobAccessTracker}, so that the reads of the nodes that did not get the
+ * event yet are in the store too.
+ */
+public class TieringListener implements EventListener {
+
+    private static final Log log = LogFactory.getLog(TieringListener.class);
+
+    public static final String TIERING_EVENT = "multiTenantTiering";
+
+    protected static final String LAST_RUN_KEY = "multitenant.tiering.lastRun";
+
+    /** Time during which another node doesn't run the tiering again. */
+    protected static final long RUN_TTL = TimeUnit.HOURS.toSeconds(1);
+
+    /** Time after the flush interval for the nodes to write their reads. */
+    protected static final long FLUSH_MARGIN_SECONDS = 30;
+
+    @Override
+    public void handleEvent(Event event) {
+        if (!TIERING_EVENT.equals(event.getName())) {
+            return;
+        }
+        for (MultiTenantBlobDispatcher dispatcher : MultiTenantBlobDispatcher.getInstances()) {
+            BlobAccessTracker tracker = dispatcher.getAccessTracker();
+            if (tracker != null) {
+                tracker.flush();
+            }
+        }
+        MultiTenantBlobDispatcher tiered = MultiTenantBlobDispatcher.getLatestInstance();
+        if (tiered == null || tiered.getAccessTracker() == null) {
+            // no tiering configured
+            return;
+        }
+        KeyValueStore store = tiered.getAccessTracker().getKeyValueStore();
+        if (!store.compareAndSet(LAST_RUN_KEY, null, String.valueOf(System.currentTimeMillis()), RUN_TTL)) {
+            log.debug("Tiering already started by another node");
+            return;
+        }
+        MultiTenantBlobDispatcher dispatcher = tiered;
+        Runnable submit = () -> submitTiering(dispatcher, store);
+        if (!DispatcherMaintenance.schedule(submit, BlobAccessTracker.FLUSH_INTERVAL_SECONDS + FLUSH_MARGIN_SECONDS,
+                TimeUnit.SECONDS)) {
+            submit.run();
+        }
+    }
+
+    protected static void submitTiering(MultiTenantBlobDispatcher dispatcher, KeyValueStore store) {
+        int days = dispatcher.getMinColdAfterDays();
+        for (String repositoryName : Framework.getService(RepositoryManager.class).getRepositoryNames()) {
+            List<String> commandIds = RedispatchAction.submitTiering(dispatcher, repositoryName, days, store);
+            log.info("Started tiering of repository " + repositoryName + " for the documents not modified for " + days
+                    + " days: " + commandIds);
+        }
+    }
+
+}
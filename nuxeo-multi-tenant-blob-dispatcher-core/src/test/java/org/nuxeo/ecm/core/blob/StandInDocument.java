@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.nuxeo.ecm.core.model.Document;
+
+/**
+ * In-memory stand-in for a {@link Document}, implementing only what blob dispatch uses, with a configurable latency
+ * for {@link Document#getParent} to emulate reading the parent from storage.
+ */
+public class StandInDocument implements InvocationHandler {
+
+    protected final String id;
+
+    protected final String path;
+
+    protected final Document parent;
+
+    protected final long parentLatencyNanos;
+
+    protected final Set<String> facets = new HashSet<>();
+
+    protected final Map<String, Object> values = new HashMap<>();
+
+    protected StandInDocument(String id, String path, Document parent, long parentLatencyNanos) {
+        this.id = id;
+        this.path = path;
+        this.parent = parent;
+        this.parentLatencyNanos = parentLatencyNanos;
+    }
+
+    /**
+     * Creates a document.
+     *
+     * @param parent the parent, or {@code null} for the root
+     * @param name the name
+     * @param parentLatencyNanos the time spent in each call to {@code getParent}
+     * @param values the property values, including {@code tenantconfig:tenantId} for a tenant root
+     */
+    public static Document create(Document parent, String name, long parentLatencyNanos, Map<String, Object> values) {
+        String path = parent == null ? "/" : parent.getPath().equals("/") ? "/" + name : parent.getPath() + "/" + name;
+        StandInDocument handler = new StandInDocument(path, path, parent, parentLatencyNanos);
+        handler.values.putAll(values);
+        if (values.containsKey("tenantconfig:tenantId")) {
+            handler.facets.add("TenantConfig");
+        }
+        return (Document) Proxy.newProxyInstance(Document.class.getClassLoader(), new Class<?>[] { Document.class },
+                handler);
+    }
+
+    protected static void spin(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy wait, sleeping is too coarse for microsecond latencies
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+        case "getUUID":
+            return id;
+        case "getPath":
+            return path;
+        case "getParent":
+            spin(parentLatencyNanos);
+            return parent;
+        case "getRepositoryName":
+            return "default";
+        case "hasFacet":
+            return facets.contains(args[0]);
+        case "getValue":
+            return values.get(args[0]);
+        case "isRecord":
+            return Boolean.FALSE;
+        case "hashCode":
+            return System.identityHashCode(proxy);
+        case "equals":
+            return proxy == args[0];
+        case "toString":
+            return path;
+        default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+}
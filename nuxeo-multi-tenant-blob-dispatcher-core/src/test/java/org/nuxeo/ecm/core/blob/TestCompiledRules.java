@@ -0,0 +1,233 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.GlobMatcher;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.ecm.multi.tenant.PrefixTrie;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+public class TestCompiledRules {
+
+    protected static final String[] FORMATS = { null, "video", "audio", "image", "vid", "videos" };
+
+    protected static final String[] MIME_TYPES = { null, "video/mp4", "video/ogg", "image/png", "text/plain" };
+
+    protected static final String[] XPATHS = { "content", "files/0/file", "files/12/file", "other" };
+
+    protected static final Long[] LENGTHS = { 0L, 10L, 1000L, 100000L };
+
+    protected static MultiTenantBlobDispatcher dispatcher(boolean compile) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("dc:format=video,blob:length>500", "p1");
+        properties.put("blob:mime-type=video/mp4", "p2");
+        properties.put("dc:format=audio", "p3");
+        properties.put("dc:format~vid*", "p4");
+        properties.put("blob:xpath~files/*/file,dc:format=image", "p5");
+        properties.put("dc:format=image", "p6");
+        properties.put("dc:format!=audio,blob:mime-type~image/*", "p7");
+        properties.put("blob:length<100", "p8");
+        properties.put("dc:format=null", "p9");
+        properties.put("multitenant.compileRules", String.valueOf(compile));
+        properties.put("default", "other");
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        dispatcher.initialize(properties);
+        return dispatcher;
+    }
+
+    @Test
+    public void testSameResultAsInterpretedRules() {
+        MultiTenantBlobDispatcher compiled = dispatcher(true);
+        MultiTenantBlobDispatcher interpreted = dispatcher(false);
+        int checks = 0;
+        for (String format : FORMATS) {
+            for (String mimeType : MIME_TYPES) {
+                for (String xpath : XPATHS) {
+                    for (Long length : LENGTHS) {
+                        Document doc = mock(Document.class);
+                        when(doc.getValue("dc:format")).thenReturn(format);
+                        Blob blob = mock(Blob.class);
+                        when(blob.getMimeType()).thenReturn(mimeType);
+                        when(blob.getLength()).thenReturn(length);
+                        String message = format + " " + mimeType + " " + xpath + " " + length;
+                        assertEquals(message, interpreted.getProviderId(doc, blob, xpath),
+                                compiled.getProviderId(doc, blob, xpath));
+                        checks++;
+                    }
+                }
+            }
+        }
+        assertEquals(FORMATS.length * MIME_TYPES.length * XPATHS.length * LENGTHS.length, checks);
+    }
+
+    @Test
+    public void testSameResultForAllOperators() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("prop=a<=b", "p1");
+        properties.put("prop=x!=y", "p2");
+        properties.put("prop<=a=b", "p3");
+        properties.put("prop~*>=*", "p4");
+        properties.put("prop~first*second", "p5");
+        properties.put("prop~line?two", "p6");
+        properties.put("prop!=stop,prop~s*", "p7");
+        properties.put("prop^z.*", "p8");
+        properties.put("prop<b", "p9");
+        properties.put("prop>=y", "p10");
+        properties.put("prop>x~", "p11");
+        properties.put("prop=null", "p12");
+        properties.put("default", "other");
+        MultiTenantBlobDispatcher compiled = new MultiTenantBlobDispatcher();
+        compiled.initialize(properties);
+        MultiTenantBlobDispatcher interpreted = new MultiTenantBlobDispatcher();
+        properties.put("multitenant.compileRules", "false");
+        interpreted.initialize(properties);
+
+        String[] values = { null, "a<=b", "x!=y", "a=b", "1>=2", ">=", "first second", "first\nsecond",
+                "first\r\nsecond", "line two", "line\ntwo", "s", "stop", "stops", "z", "z\nz", "a", "b", "c", "x", "x~",
+                "y", "zz" };
+        for (String value : values) {
+            Document doc = mock(Document.class);
+            when(doc.getValue("prop")).thenReturn(value);
+            Blob blob = mock(Blob.class);
+            assertEquals(value, interpreted.getProviderId(doc, blob, "content"),
+                    compiled.getProviderId(doc, blob, "content"));
+        }
+    }
+
+    @Test
+    public void testGlobMatcher() {
+        GlobMatcher matcher = new GlobMatcher("/fo?/bar*");
+        assertTrue(matcher.matches("/foo/bar"));
+        assertTrue(matcher.matches("/fox/bar/gee"));
+        assertFalse(matcher.matches("foo/bar"));
+        assertFalse(matcher.matches("/foo/baz"));
+
+        matcher = new GlobMatcher("files/*/file");
+        assertEquals("files/", matcher.getLiteralPrefix());
+        assertTrue(matcher.matches("files/0/file"));
+        assertTrue(matcher.matches("files//file"));
+        assertFalse(matcher.matches("files/file"));
+        assertFalse(matcher.matches("files/0/file/x"));
+
+        matcher = new GlobMatcher("*a*b*");
+        assertTrue(matcher.matches("ab"));
+        assertTrue(matcher.matches("xxaxxbxx"));
+        assertFalse(matcher.matches("ba"));
+
+        matcher = new GlobMatcher("exact");
+        assertTrue(matcher.matches("exact"));
+        assertFalse(matcher.matches("exactly"));
+        assertFalse(matcher.isPrefixGlob());
+
+        assertTrue(new GlobMatcher("/tenants/acme/*").isPrefixGlob());
+        assertFalse(new GlobMatcher("/tenants/*/docs/*").isPrefixGlob());
+        assertFalse(new GlobMatcher("/tenants/acm?/*").isPrefixGlob());
+    }
+
+    @Test
+    public void testPrefixTrie() {
+        PrefixTrie trie = new PrefixTrie();
+        assertTrue(trie.isEmpty());
+        trie.add("/tenants/acme/", 1);
+        trie.add("/tenants/", 2);
+        trie.add("/tenants/acme/", 3);
+        trie.add("", 4);
+        trie.add("/tenants/globex/", 5);
+        assertFalse(trie.isEmpty());
+
+        List<Integer> found = new ArrayList<>();
+        trie.forEachPrefixOf("/tenants/acme/docs", found::add);
+        assertEquals(Arrays.asList(4, 2, 1, 3), found);
+
+        found.clear();
+        trie.forEachPrefixOf("/tenants/", found::add);
+        assertEquals(Arrays.asList(4, 2), found);
+
+        found.clear();
+        trie.forEachPrefixOf("/other", found::add);
+        assertEquals(Arrays.asList(4), found);
+    }
+
+    @Test
+    public void testManySubtreeGlobs() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            properties.put("dc:source~/tenants/t" + i + "/*", "p" + i);
+        }
+        properties.put("dc:source~/tenants/*/shared/*", "shared");
+        properties.put("dc:source~/tenants/t?/*", "short");
+        MultiTenantBlobDispatcher compiled = new MultiTenantBlobDispatcher();
+        properties.put("default", "other");
+        compiled.initialize(properties);
+        MultiTenantBlobDispatcher interpreted = new MultiTenantBlobDispatcher();
+        properties.put("multitenant.compileRules", "false");
+        interpreted.initialize(properties);
+
+        String[] paths = { "/tenants/t1/doc", "/tenants/t12/doc", "/tenants/t999/a/b", "/tenants/t1000/doc",
+                "/tenants/x/shared/doc", "/tenants/t1", "/tenants/t5/shared/doc", "/other", "" };
+        for (String path : paths) {
+            Document doc = mock(Document.class);
+            when(doc.getValue("dc:source")).thenReturn(path);
+            Blob blob = mock(Blob.class);
+            assertEquals(path, interpreted.getProviderId(doc, blob, "content"),
+                    compiled.getProviderId(doc, blob, "content"));
+        }
+    }
+
+    @Test
+    public void testIndexedTenantResolvedOnlyWhenNeeded() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("blob:mime-type=video/mp4", "videos");
+        properties.put("ecm:tenant=acme", "acme");
+        properties.put("ecm:tenant=globex", "globex");
+        properties.put("default", "other");
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        dispatcher.initialize(properties);
+
+        Document doc = mock(Document.class);
+        Blob video = mock(Blob.class);
+        when(video.getMimeType()).thenReturn("video/mp4");
+        assertEquals("videos", dispatcher.getProviderId(doc, video, "content"));
+        // matched before the first rule on the indexed ecm:tenant, which was not resolved
+        verify(doc, never()).getParent();
+
+        Blob text = mock(Blob.class);
+        when(text.getMimeType()).thenReturn("text/plain");
+        assertEquals("other", dispatcher.getProviderId(doc, text, "content"));
+        verify(doc, atLeastOnce()).getParent();
+    }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     Florent Guillaume
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+/**
+ * Concurrent ingest into many tenants, each with its own in-memory provider, checking that no blob ends up in the
+ * provider of another tenant while the tenant cache is evicted and invalidated under load.
+ * <p>
+ * The size of the run is set by system properties, for instance:
+ *
+ * <pre>
+ * mvn test -Dtest=TestDispatcherStress -Dmultitenant.stress.tenants=1000 -Dmultitenant.stress.uploads=2000000
+ * </pre>
+ */
+@RunWith(FeaturesRunner.class)
+public class TestDispatcherStress {
+
+    private static final Log log = LogFactory.getLog(TestDispatcherStress.class);
+
+    protected static final int TENANTS = Integer.getInteger("multitenant.stress.tenants", 300).intValue();
+
+    protected static final int DOCUMENTS_PER_TENANT = Integer.getInteger("multitenant.stress.documents", 20).intValue();
+
+    protected static final int MAX_DEPTH = Integer.getInteger("multitenant.stress.depth", 12).intValue();
+
+    protected static final int THREADS = Integer.getInteger("multitenant.stress.threads", 16).intValue();
+
+    protected static final int UPLOADS = Integer.getInteger("multitenant.stress.uploads", 100_000).intValue();
+
+    /** Smaller than the number of folders, so that entries are evicted during the run. */
+    protected static final int TENANT_CACHE_SIZE = Integer.getInteger("multitenant.stress.cacheSize", 2000).intValue();
+
+    protected static final String DEFAULT = "default";
+
+    /**
+     * Stand-in provider keeping blobs in memory, by digest.
+     */
+    protected static class MemoryBlobProvider extends AbstractBlobProvider {
+
+        protected final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+
+        @Override
+        public void close() {
+            blobs.clear();
+        }
+
+        @Override
+        public String writeBlob(Blob blob) throws IOException {
+            byte[] bytes;
+            try (InputStream in = blob.getStream()) {
+                bytes = IOUtils.toByteArray(in);
+            }
+            String digest = DigestUtils.md5Hex(bytes);
+            blobs.put(digest, bytes);
+            return digest;
+        }
+
+        @Override
+        public Blob readBlob(BlobInfo blobInfo) throws IOException {
+            byte[] bytes = blobs.get(blobInfo.key.substring(blobInfo.key.indexOf(':') + 1));
+            if (bytes == null) {
+                throw new IOException("Missing blob: " + blobInfo.key);
+            }
+            return Blobs.createBlob(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * A document to upload to, with the provider its blobs must go to.
+     */
+    protected static class Target {
+
+        protected final Document doc;
+
+        protected final String providerId;
+
+        protected Target(Document doc, String providerId) {
+            this.doc = doc;
+            this.providerId = providerId;
+        }
+    }
+
+    protected static String providerId(int tenant) {
+        return "provider" + tenant;
+    }
+
+    /**
+     * Creates the documents of a tenant at random depths below its root, sharing some intermediate folders.
+     */
+    protected static void createDocuments(Document root, String providerId, Random random, List<Target> targets) {
+        List<Document> folders = new ArrayList<>(Collections.singletonList(root));
+        for (int d = 0; d < DOCUMENTS_PER_TENANT; d++) {
+            Document parent = folders.get(random.nextInt(folders.size()));
+            int depth = 1 + random.nextInt(MAX_DEPTH);
+            for (int level = 1; level < depth; level++) {
+                parent = StandInDocument.create(parent, "folder" + d + "-" + level, 0, Collections.emptyMap());
+                folders.add(parent);
+            }
+            Map<String, Object> values = new HashMap<>();
+            values.put("dc:title", "doc" + d);
+            targets.add(new Target(StandInDocument.create(parent, "doc" + d, 0, values), providerId));
+        }
+    }
+
+    @Test
+    public void testConcurrentIngest() throws Exception {
+        Map<String, String> properties = new LinkedHashMap<>();
+        Map<String, MemoryBlobProvider> providers = new HashMap<>();
+        for (int i = 0; i < TENANTS; i++) {
+            properties.put("ecm:tenant=tenant" + i, providerId(i));
+            providers.put(providerId(i), new MemoryBlobProvider());
+        }
+        properties.put(MultiTenantBlobDispatcher.OPTION_TENANT_CACHE_SIZE, String.valueOf(TENANT_CACHE_SIZE));
+        properties.put(DEFAULT, DEFAULT);
+        providers.put(DEFAULT, new MemoryBlobProvider());
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        dispatcher.initialize(properties);
+
+        Random random = new Random(1234);
+        Document root = StandInDocument.create(null, "", 0, Collections.emptyMap());
+        List<Target> targets = new ArrayList<>();
+        for (int i = 0; i < TENANTS; i++) {
+            // tenant roots at various depths
+            Document parent = root;
+            for (int level = random.nextInt(3); level > 0; level--) {
+                parent = StandInDocument.create(parent, "container" + i + "-" + level, 0, Collections.emptyMap());
+            }
+            Document tenantRoot = StandInDocument.create(parent, "tenant" + i, 0,
+                    Collections.singletonMap("tenantconfig:tenantId", "tenant" + i));
+            createDocuments(tenantRoot, providerId(i), random, targets);
+        }
+        // documents outside of any tenant
+        createDocuments(StandInDocument.create(root, "shared", 0, Collections.emptyMap()), DEFAULT, random, targets);
+        Target[] docs = targets.toArray(new Target[0]);
+
+        AtomicLong next = new AtomicLong();
+        AtomicLong misrouted = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random r = new Random(seed);
+                long[] latencies = new long[UPLOADS / THREADS + 1];
+                int n = 0;
+                start.await();
+                for (long u; (u = next.getAndIncrement()) < UPLOADS;) {
+                    Target target = docs[r.nextInt(docs.length)];
+                    Blob blob = Blobs.createBlob(target.providerId + " " + u, "text/plain");
+                    long begin = System.nanoTime();
+                    String providerId = dispatcher.getProviderId(target.doc, blob, "file:content");
+                    long latency = System.nanoTime() - begin;
+                    if (n == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, n * 2);
+                    }
+                    latencies[n++] = latency;
+                    MemoryBlobProvider provider = providers.get(providerId);
+                    if (provider == null || !target.providerId.equals(providerId)) {
+                        misrouted.incrementAndGet();
+                    }
+                    if (provider != null) {
+                        provider.writeBlob(blob);
+                    }
+                }
+                return Arrays.copyOf(latencies, n);
+            }));
+        }
+        // tenant configuration changes elsewhere in the cluster
+        Future<?> invalidations = executor.submit(() -> {
+            start.await();
+            while (next.get() < UPLOADS) {
+                Thread.sleep(50);
+                dispatcher.getTenantCache().invalidateAll();
+            }
+            return null;
+        });
+
+        long begin = System.nanoTime();
+        start.countDown();
+        List<long[]> results = new ArrayList<>();
+        for (Future<long[]> future : futures) {
+            results.add(future.get(10, TimeUnit.MINUTES));
+        }
+        long elapsed = System.nanoTime() - begin;
+        invalidations.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        long[] latencies = results.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        // the content of each blob starts with the provider it belongs to
+        long stored = 0;
+        for (Map.Entry<String, MemoryBlobProvider> en : providers.entrySet()) {
+            for (byte[] bytes : en.getValue().blobs.values()) {
+                String content = new String(bytes, StandardCharsets.UTF_8);
+                if (!content.startsWith(en.getKey() + " ")) {
+                    misrouted.incrementAndGet();
+                }
+                stored++;
+            }
+        }
+        log.info(String.format("%d uploads to %d documents of %d tenants on %d threads: %.0f dispatches/s, "
+                + "p50 %.1f us, p99 %.1f us, max %.1f us, %d misrouted",
+                latencies.length, docs.length, TENANTS, THREADS, latencies.length * 1e9 / elapsed,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1), misrouted.get()));
+
+        assertEquals(UPLOADS, latencies.length);
+        assertEquals(UPLOADS, stored);
+        assertEquals(0, misrouted.get());
+    }
+
+    /**
+     * Gets a percentile of sorted latencies, in microseconds.
+     */
+    protected static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1000d;
+    }
+
+}
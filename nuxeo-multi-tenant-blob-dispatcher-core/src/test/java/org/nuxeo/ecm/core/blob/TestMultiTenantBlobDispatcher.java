@@ -19,24 +19,74 @@
 package org.nuxeo.ecm.core.blob;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.blob.TestReplicatedBlobProvider.LocalBlobProvider;
 import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.core.model.Document.BlobAccessor;
+import org.nuxeo.ecm.multi.tenant.BlobProviderCache;
+import org.nuxeo.ecm.multi.tenant.DispatchContext;
+import org.nuxeo.ecm.multi.tenant.DispatchRequest;
+import org.nuxeo.ecm.multi.tenant.DispatchSimulator;
+import org.nuxeo.ecm.multi.tenant.DispatcherMetrics;
 import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.ecm.multi.tenant.RedispatchAction;
+import org.nuxeo.ecm.multi.tenant.RedispatchWork;
+import org.nuxeo.ecm.multi.tenant.ShardTarget;
+import org.nuxeo.ecm.multi.tenant.TenantBlobProvider;
+import org.nuxeo.ecm.multi.tenant.TenantCache;
+import org.nuxeo.ecm.multi.tenant.TenantProviderFactory;
+import org.nuxeo.ecm.multi.tenant.TenantStamp;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
 @RunWith(FeaturesRunner.class)
 public class TestMultiTenantBlobDispatcher {
 
@@ -538,4 +588,938 @@ public class TestMultiTenantBlobDispatcher {
         assertEquals(CUSTOM, dispatcher.getProviderId(doc, null, null));
     }
 
-}
\ No newline at end of file
+    protected static Document folder(String id, Document parent) {
+        Document folder = mock(Document.class);
+        when(folder.getUUID()).thenReturn(id);
+        when(folder.getParent()).thenReturn(parent);
+        return folder;
+    }
+
+    protected static Document tenantRoot(String id, String tenant) {
+        Document root = folder(id, null);
+        when(root.hasFacet("TenantConfig")).thenReturn(true);
+        when(root.getValue("tenantconfig:tenantId")).thenReturn(tenant);
+        return root;
+    }
+
+    @Test
+    public void testMultiTenantCachesAncestors() {
+        MultiTenantBlobDispatcher dispatcher = dispatcherWith("ecm:tenant=test");
+        Document root = tenantRoot("root", "test");
+        Document folder = folder("folder", folder("sub", root));
+
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc1", folder), null, null));
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc2", folder), null, null));
+        // second resolution stopped at the cached parent
+        verify(folder, times(1)).getParent();
+        verify(root, times(1)).getValue("tenantconfig:tenantId");
+    }
+
+    @Test
+    public void testMultiTenantCacheInvalidation() {
+        MultiTenantBlobDispatcher dispatcher = dispatcherWith("ecm:tenant=test");
+        Document root = tenantRoot("root", "test");
+        Document folder = folder("folder", root);
+
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc1", folder), null, null));
+        assertEquals(false, dispatcher.getTenantCache().isTenantRootChanged("root", "test"));
+        assertEquals(true, dispatcher.getTenantCache().isTenantRootChanged("root", "other"));
+        assertEquals(true, dispatcher.getTenantCache().isTenantRootChanged("root", null));
+
+        when(root.getValue("tenantconfig:tenantId")).thenReturn("other");
+        dispatcher.getTenantCache().invalidateAll();
+        assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc2", folder), null, null));
+    }
+
+    @Test
+    public void testMultiTenantCacheDisabled() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("multitenant.tenantCacheSize", "0");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document folder = folder("folder", tenantRoot("root", "test"));
+
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc1", folder), null, null));
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc2", folder), null, null));
+        verify(folder, times(2)).getParent();
+    }
+
+    @Test
+    public void testMultiTenantCachesNoTenant() {
+        MultiTenantBlobDispatcher dispatcher = dispatcherWith("ecm:tenant=test");
+        Document root = folder("root", null);
+        Document folder = folder("folder", root);
+
+        assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc1", folder), null, null));
+        assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc2", folder), null, null));
+        // second resolution stopped at the parent known to have no tenant
+        verify(folder, times(1)).getParent();
+
+        // a new tenant root invalidates the folders known to have no tenant
+        when(root.hasFacet("TenantConfig")).thenReturn(true);
+        when(root.getValue("tenantconfig:tenantId")).thenReturn("test");
+        assertEquals(true, dispatcher.getTenantCache().isTenantRootChanged("root", "test"));
+        dispatcher.getTenantCache().invalidateAll();
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc3", folder), null, null));
+    }
+
+    @Test
+    public void testTenantCacheExpiration() {
+        long[] now = { 0 };
+        TenantCache cache = new TenantCache(100, 600, 60) {
+            @Override
+            protected long nanoTime() {
+                return now[0];
+            }
+        };
+        cache.put("folder", "acme", cache.getGeneration());
+        cache.putNoTenant(Collections.singletonList("outside"), cache.getGeneration());
+        assertEquals("acme", cache.get("folder"));
+        assertEquals(TenantCache.NO_TENANT, cache.get("outside"));
+
+        now[0] = TimeUnit.SECONDS.toNanos(61);
+        assertEquals("acme", cache.get("folder"));
+        assertNull(cache.get("outside"));
+
+        // a folder moved to another tenant from another node is eventually seen
+        now[0] = TimeUnit.SECONDS.toNanos(601);
+        assertNull(cache.get("folder"));
+    }
+
+    @Test
+    public void testMultiTenantResolutionByPath() {
+        List<List<String>> queries = new ArrayList<>();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected Map<String, Object> fetchTenantRoots(String repositoryName, List<String> paths,
+                    long generation) {
+                queries.add(paths);
+                return Collections.singletonMap("/tenants/test", "test");
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("multitenant.tenantResolution", "path");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+
+        Document doc1 = mock(Document.class);
+        when(doc1.getPath()).thenReturn("/tenants/test/a/b/doc1");
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc1, null, null));
+        assertEquals(1, queries.size());
+        assertEquals(Arrays.asList("/tenants/test/a/b", "/tenants/test/a", "/tenants/test", "/tenants", "/"),
+                queries.get(0));
+
+        Document doc2 = mock(Document.class);
+        when(doc2.getPath()).thenReturn("/tenants/test/a/b/doc2");
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc2, null, null));
+        // resolved from the cached parent path, no parent ever loaded
+        assertEquals(1, queries.size());
+        verify(doc2, times(0)).getParent();
+    }
+
+    @Test
+    public void testMultiTenantProviderMapping() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("blob:mime-type=video/mp4", CUSTOM);
+        properties.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        properties.put("multitenant.tenantProvider.big", "big-bucket");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Blob blob = mock(Blob.class);
+
+        Document doc = folder("doc", tenantRoot("root", "foo"));
+        assertEquals("tenant-foo", dispatcher.getProviderId(doc, blob, null));
+        doc = folder("doc", tenantRoot("root2", "big"));
+        assertEquals("big-bucket", dispatcher.getProviderId(doc, blob, null));
+        // rules take precedence over the tenant mapping
+        when(blob.getMimeType()).thenReturn("video/mp4");
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc, blob, null));
+        // no tenant
+        assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc", null), null, null));
+
+        assertEquals(true, dispatcher.getBlobProviderIds().contains("tenant-bar"));
+        assertEquals(true, dispatcher.getBlobProviderIds().contains("big-bucket"));
+        assertEquals(false, dispatcher.getBlobProviderIds().contains("tenant-"));
+        assertEquals(false, dispatcher.getBlobProviderIds().contains("other"));
+    }
+
+    @Test
+    public void testDispatcherMetrics() {
+        MetricRegistry registry = new MetricRegistry();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected DispatcherMetrics newMetrics() {
+                return new DispatcherMetrics(registry);
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document folder = folder("folder", folder("sub", tenantRoot("root", "test")));
+
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc1", folder), null, null));
+        assertEquals(CUSTOM, dispatcher.getProviderId(folder("doc2", folder), null, null));
+        assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc3", folder("outside", null)), null, null));
+
+        String prefix = DispatcherMetrics.PREFIX + ".";
+        assertEquals(3, registry.timer(prefix + "dispatch").getCount());
+        assertEquals(2, registry.counter(prefix + "provider." + CUSTOM).getCount());
+        assertEquals(1, registry.counter(prefix + "provider." + DEFAULT).getCount());
+        // the first resolution walked up to the root, the second stopped at the cached parent
+        Histogram depth = registry.histogram(prefix + "tenant.depth");
+        assertEquals(2, depth.getCount());
+        assertEquals(3, depth.getSnapshot().getMax());
+        assertEquals(1, depth.getSnapshot().getMin());
+        assertEquals(1, registry.counter(prefix + "tenant.notfound").getCount());
+
+        dispatcher.getMetrics().blobRedispatched(1000);
+        dispatcher.getMetrics().blobRedispatched(-1);
+        assertEquals(2, registry.counter(prefix + "redispatch.blobs").getCount());
+        assertEquals(1000, registry.counter(prefix + "redispatch.bytes").getCount());
+    }
+
+    @Test
+    public void testDispatchContextMemoizesDocumentValues() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("prop=foo,blob:mime-type=video/mp4", CUSTOM);
+        properties.put("ecm:tenant=test", "tenant");
+        properties.put("multitenant.tenantCacheSize", "0");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document folder = folder("folder", tenantRoot("root", "test"));
+        Document doc = folder("doc", folder);
+        when(doc.getValue("prop")).thenReturn("foo");
+        Blob video = mock(Blob.class);
+        when(video.getMimeType()).thenReturn("video/mp4");
+        Blob text = mock(Blob.class);
+        when(text.getMimeType()).thenReturn("text/plain");
+
+        DispatchContext.begin();
+        try {
+            assertEquals(CUSTOM, dispatcher.getProviderId(doc, video, "file:content"));
+            assertEquals("tenant", dispatcher.getProviderId(doc, text, "files/0/file"));
+            assertEquals("tenant", dispatcher.getProviderId(doc, text, "files/1/file"));
+        } finally {
+            DispatchContext.end();
+        }
+        verify(doc, times(1)).getValue("prop");
+        verify(folder, times(1)).getParent();
+
+        // without context, values are computed again
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc, video, "file:content"));
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc, video, "file:content"));
+        verify(doc, times(3)).getValue("prop");
+        assertEquals("tenant", dispatcher.getProviderId(doc, text, "files/2/file"));
+        verify(folder, times(2)).getParent();
+    }
+
+    protected static ManagedBlob managedBlob(String providerId, String key) {
+        ManagedBlob blob = mock(ManagedBlob.class);
+        when(blob.getProviderId()).thenReturn(providerId);
+        when(blob.getKey()).thenReturn(providerId + ":" + key);
+        return blob;
+    }
+
+    protected static BlobAccessor blobAccessor(String xpath, Blob blob) {
+        BlobAccessor accessor = mock(BlobAccessor.class);
+        when(accessor.getXPath()).thenReturn(xpath);
+        when(accessor.getBlob()).thenReturn(blob);
+        return accessor;
+    }
+
+    protected static void visitBlobs(Document doc, BlobAccessor... accessors) {
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<BlobAccessor> visitor = (Consumer<BlobAccessor>) invocation.getArguments()[0];
+            for (BlobAccessor accessor : accessors) {
+                visitor.accept(accessor);
+            }
+            return null;
+        }).when(doc).visitBlobs(any());
+    }
+
+    @Test
+    public void testRedispatchAction() {
+        MetricRegistry registry = new MetricRegistry();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected DispatcherMetrics newMetrics() {
+                return new DispatcherMetrics(registry);
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document doc = folder("doc", tenantRoot("root", "test"));
+        ManagedBlob misplaced = managedBlob(DEFAULT, "abc");
+        when(misplaced.getLength()).thenReturn(100L);
+        BlobAccessor moved = blobAccessor("file:content", misplaced);
+        BlobAccessor kept = blobAccessor("files/0/file", managedBlob(CUSTOM, "def"));
+        BlobAccessor notStored = blobAccessor("files/1/file", mock(Blob.class));
+        visitBlobs(doc, moved, kept, notStored);
+
+        RedispatchAction.redispatch(dispatcher, doc, 0);
+        // only the blob in the wrong provider is written again
+        verify(moved).setBlob(misplaced);
+        verify(kept, never()).setBlob(any());
+        verify(notStored, never()).setBlob(any());
+        assertEquals(1, registry.counter(DispatcherMetrics.PREFIX + ".redispatch.blobs").getCount());
+        assertEquals(100, registry.counter(DispatcherMetrics.PREFIX + ".redispatch.bytes").getCount());
+        // the context opened for the document is closed
+        assertNull(DispatchContext.current());
+
+        // once moved, running again changes nothing
+        BlobAccessor done = blobAccessor("file:content", managedBlob(CUSTOM, "abc"));
+        visitBlobs(doc, done, kept);
+        RedispatchAction.redispatch(dispatcher, doc, 0);
+        verify(done, never()).setBlob(any());
+        assertEquals(1, registry.counter(DispatcherMetrics.PREFIX + ".redispatch.blobs").getCount());
+    }
+
+    @Test
+    public void testRedispatchWork() {
+        List<String> scheduled = new ArrayList<>();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected void scheduleRedispatch(Document doc) {
+                scheduled.add(doc.getUUID());
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("dc:format=video", CUSTOM);
+        properties.put("multitenant.asyncRedispatch", "true");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document doc = folder("doc", null);
+
+        // a change not tested by the rules schedules nothing
+        dispatcher.notifyChanges(doc, Collections.singleton("dc:title"));
+        assertTrue(scheduled.isEmpty());
+        dispatcher.notifyChanges(doc, new HashSet<>(Arrays.asList("dc:title", "dc:format")));
+        assertEquals(Collections.singletonList("doc"), scheduled);
+        // the blobs are not moved during the save
+        verify(doc, never()).visitBlobs(any());
+
+        // the works of a document share their id, so that a pending one is not scheduled again
+        RedispatchWork work = new RedispatchWork("test", "doc");
+        assertEquals(work.getId(), new RedispatchWork("test", "doc").getId());
+        assertFalse(work.getId().equals(new RedispatchWork("test", "other").getId()));
+        assertFalse(work.getId().equals(new RedispatchWork("other", "doc").getId()));
+        assertEquals(RedispatchWork.CATEGORY, work.getCategory());
+    }
+
+    @Test
+    public void testNestedDispatchContext() {
+        MultiTenantBlobDispatcher dispatcher = dispatcherWith("prop=foo");
+        Document doc = mock(Document.class);
+        when(doc.getValue("prop")).thenReturn("foo");
+
+        DispatchContext.begin();
+        try {
+            assertEquals(CUSTOM, dispatcher.getProviderId(doc, null, null));
+            when(doc.getValue("prop")).thenReturn("bar");
+            DispatchContext.begin();
+            try {
+                // a nested save computes its values afresh
+                assertEquals(DEFAULT, dispatcher.getProviderId(doc, null, null));
+            } finally {
+                DispatchContext.end();
+            }
+            // the outer context is restored with its values
+            assertEquals(CUSTOM, dispatcher.getProviderId(doc, null, null));
+            DispatchContext.current().forget(doc);
+            assertEquals(DEFAULT, dispatcher.getProviderId(doc, null, null));
+        } finally {
+            DispatchContext.end();
+        }
+        assertNull(DispatchContext.current());
+
+        // a nested save reuses the write permit of the outer one
+        dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantMaxConcurrentWrites.acme", "1");
+        properties.put("multitenant.tenantWriteTimeout", "0");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document root = tenantRoot("root", "acme");
+        Blob blob = mock(Blob.class);
+        DispatchContext.begin();
+        try {
+            assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc1", root), blob, null));
+            DispatchContext.begin();
+            try {
+                assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc2", root), blob, null));
+            } finally {
+                DispatchContext.end();
+            }
+            assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc3", root), blob, null));
+        } finally {
+            DispatchContext.end();
+        }
+    }
+
+    @Test
+    public void testReload() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("blob:mime-type=video/mp4", CUSTOM);
+        properties.put("multitenant.tenantProvider.foo", "foo-bucket");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Blob blob = mock(Blob.class);
+        when(blob.getMimeType()).thenReturn("video/mp4");
+        Document doc = folder("doc", tenantRoot("root", "foo"));
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc, blob, null));
+        assertEquals(true, dispatcher.getBlobProviderIds().contains("foo-bucket"));
+
+        Map<String, String> reloaded = new LinkedHashMap<>();
+        reloaded.put("blob:mime-type=video/mp4", "videos");
+        reloaded.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        reloaded.put("default", "other");
+        dispatcher.reload(reloaded);
+        assertEquals("videos", dispatcher.getProviderId(doc, blob, null));
+        assertEquals("tenant-foo", dispatcher.getProviderId(doc, mock(Blob.class), null));
+        assertEquals("other", dispatcher.getProviderId(folder("doc", null), mock(Blob.class), null));
+        assertEquals(false, dispatcher.getBlobProviderIds().contains(CUSTOM));
+        assertEquals(false, dispatcher.getBlobProviderIds().contains("foo-bucket"));
+        assertEquals(true, dispatcher.getBlobProviderIds().contains("videos"));
+
+        // invalid rules are rejected, the current ones are kept
+        try {
+            dispatcher.reload(Collections.singletonMap("blob:mime-type=video/mp4", CUSTOM));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("videos", dispatcher.getProviderId(doc, blob, null));
+    }
+
+    @Test
+    public void testReloadInBackground() throws IOException {
+        Path rules = Files.createTempFile("rules", ".json");
+        try {
+            Files.write(rules, "{\"default\": \"reloaded\"}".getBytes(StandardCharsets.UTF_8));
+            MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("multitenant.rulesFile", rules.toString());
+            properties.put("default", DEFAULT);
+            dispatcher.initialize(properties);
+
+            // a dispatch does not read the rule source
+            assertEquals(DEFAULT, dispatcher.getProviderId(folder("doc", null), null, null));
+            dispatcher.runMaintenance();
+            assertEquals("reloaded", dispatcher.getProviderId(folder("doc", null), null, null));
+
+            // not read again before the reload interval
+            Files.write(rules, "{\"default\": \"other\"}".getBytes(StandardCharsets.UTF_8));
+            dispatcher.runMaintenance();
+            assertEquals("reloaded", dispatcher.getProviderId(folder("doc", null), null, null));
+        } finally {
+            Files.deleteIfExists(rules);
+        }
+    }
+
+    @Test
+    public void testShardTarget() throws IOException {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=acme", "acme-shard[0..7]");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document root = tenantRoot("root", "acme");
+
+        Map<String, Integer> counts = new HashMap<>();
+        Map<String, String> placement = new HashMap<>();
+        for (int i = 0; i < 8000; i++) {
+            String id = "doc" + i;
+            Document doc = folder(id, root);
+            Blob blob = mock(Blob.class);
+            String providerId = dispatcher.getProviderId(doc, blob, null);
+            // stable, and the same for the other blobs of the document
+            assertEquals(providerId, dispatcher.getProviderId(doc, mock(Blob.class), null));
+            counts.merge(providerId, 1, Integer::sum);
+            placement.put(id, providerId);
+        }
+        // the content is never read
+        Blob unread = mock(Blob.class);
+        dispatcher.getProviderId(folder("doc", root), unread, null);
+        assertEquals("", ShardTarget.getShardKey(null, unread));
+        verify(unread, never()).getStream();
+        assertEquals(8, counts.size());
+        for (int i = 0; i < 8; i++) {
+            int count = counts.get("acme-shard" + i).intValue();
+            assertTrue(String.valueOf(count), count > 800 && count < 1200);
+        }
+        assertTrue(dispatcher.getBlobProviderIds().contains("acme-shard7"));
+        assertFalse(dispatcher.getBlobProviderIds().contains("acme-shard[0..7]"));
+        assertFalse(dispatcher.getBlobProviderIds().contains("acme-shard8"));
+
+        // adding shards only moves blobs to the new shards
+        ShardTarget grown = ShardTarget.parse("acme-shard[0..9]");
+        int moved = 0;
+        for (Entry<String, String> en : placement.entrySet()) {
+            String providerId = grown.getProviderId(en.getKey());
+            if (!providerId.equals(en.getValue())) {
+                assertTrue(providerId, providerId.equals("acme-shard8") || providerId.equals("acme-shard9"));
+                moved++;
+            }
+        }
+        assertTrue(String.valueOf(moved), moved > 1200 && moved < 2000);
+    }
+
+    @Test
+    public void testBatchDispatch() {
+        List<List<String>> fetches = new ArrayList<>();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected Map<String, Object> fetchTenantRoots(String repositoryName, List<String> paths,
+                    long generation) {
+                fetches.add(new ArrayList<>(paths));
+                Map<String, Object> tenants = new HashMap<>();
+                if (paths.contains("/tenants/acme")) {
+                    tenants.put("/tenants/acme", "acme");
+                }
+                if (paths.contains("/tenants/globex")) {
+                    tenants.put("/tenants/globex", "globex");
+                }
+                return tenants;
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=acme", "acme-bucket");
+        properties.put("multitenant.tenantProvider.globex", "globex-bucket");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+
+        Document acmeFolder = folder("acme-folder", null);
+        Document globexFolder = folder("globex-folder", null);
+        List<DispatchRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Document parent = i % 2 == 0 ? acmeFolder : globexFolder;
+            String path = (i % 2 == 0 ? "/tenants/acme/folder/doc" : "/tenants/globex/folder/doc") + i;
+            Document doc = folder("doc" + i, parent);
+            when(doc.getPath()).thenReturn(path);
+            when(doc.getRepositoryName()).thenReturn("test");
+            requests.add(new DispatchRequest(doc, mock(Blob.class), "file:content"));
+        }
+        List<String> providerIds = dispatcher.getProviderIds(requests);
+        assertEquals(100, providerIds.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? "acme-bucket" : "globex-bucket", providerIds.get(i));
+        }
+        // all the ancestors fetched at once, and the parents cached
+        assertEquals(1, fetches.size());
+        assertEquals("acme", dispatcher.getTenantCache().get("acme-folder"));
+        assertEquals("globex", dispatcher.getTenantCache().get("globex-folder"));
+        verify(acmeFolder, never()).getParent();
+    }
+
+    @Test
+    public void testWarmUpTenantRoot() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        assertFalse(dispatcher.getBlobProviderIds().stream().anyMatch("tenant-acme"::equals));
+
+        dispatcher.warmUpTenantRoot("root", "/tenants/acme", "acme", dispatcher.getTenantCache().getGeneration());
+        // the provider is known before any write
+        assertTrue(dispatcher.getBlobProviderIds().stream().anyMatch("tenant-acme"::equals));
+        // the root is not read again
+        Document root = folder("root", null);
+        assertEquals("tenant-acme", dispatcher.getProviderId(folder("doc", root), mock(Blob.class), null));
+        verify(root, never()).hasFacet("TenantConfig");
+
+        // a root queried before an invalidation is not cached
+        long generation = dispatcher.getTenantCache().getGeneration();
+        dispatcher.getTenantCache().invalidateAll();
+        dispatcher.warmUpTenantRoot("root2", "/tenants/globex", "globex", generation);
+        Document root2 = tenantRoot("root2", "initech");
+        assertEquals("tenant-initech", dispatcher.getProviderId(folder("doc2", root2), mock(Blob.class), null));
+    }
+
+    @Test
+    public void testDispatchSimulator() throws Exception {
+        Map<String, String> candidate = new LinkedHashMap<>();
+        candidate.put("dc:format=video", "videos");
+        candidate.put("ecm:tenant=acme", "acme");
+        candidate.put("default", DEFAULT);
+        Map<String, String> baseline = Collections.singletonMap("default", DEFAULT);
+        String corpus = String.join("\n", //
+                "{\"id\": \"doc1\", \"properties\": {\"dc:format\": \"video\"}," //
+                        + " \"ancestors\": [{\"id\": \"folder\"}, {\"id\": \"acme\", \"tenant\": \"acme\"}]," //
+                        + " \"blobs\": [{\"xpath\": \"file:content\", \"length\": 10}]}",
+                "{\"id\": \"doc2\", \"ancestors\": [{\"id\": \"folder\"}, {\"id\": \"acme\", \"tenant\": \"acme\"}]," //
+                        + " \"blobs\": [{\"xpath\": \"file:content\"}, {\"xpath\": \"files:files/0/file\"}]}",
+                "{\"id\": \"doc3\", \"blobs\": [{\"name\": \"a.txt\"}]}");
+        int instances = MultiTenantBlobDispatcher.getInstances().size();
+        MultiTenantBlobDispatcher latest = MultiTenantBlobDispatcher.getLatestInstance();
+        DispatchSimulator simulator = new DispatchSimulator(candidate, baseline);
+        DispatchSimulator.Report report = simulator.simulate(
+                new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(3, report.getDocuments());
+        assertEquals(4, report.getBlobs());
+        assertEquals(Long.valueOf(1), report.getProviders().get("videos"));
+        assertEquals(Long.valueOf(2), report.getProviders().get("acme"));
+        assertEquals(Long.valueOf(1), report.getProviders().get(DEFAULT));
+        assertEquals(Long.valueOf(1), report.getRules().get("dc:format=video"));
+        assertEquals(Long.valueOf(2), report.getRules().get("ecm:tenant=acme"));
+        assertEquals(Long.valueOf(1), report.getRules().get(DEFAULT));
+        assertEquals(3, report.getChanged());
+        assertEquals(Long.valueOf(2), report.getChanges().get("default -> acme"));
+        assertEquals(Long.valueOf(1), report.getChanges().get("default -> videos"));
+        // the simulated dispatchers are not live ones
+        assertEquals(instances, MultiTenantBlobDispatcher.getInstances().size());
+        assertSame(latest, MultiTenantBlobDispatcher.getLatestInstance());
+        assertTrue(report.toJson().contains("\"p99\""));
+
+        // shards and tenant mappings, with blobs whose digest is unknown
+        candidate = new LinkedHashMap<>();
+        candidate.put("ecm:tenant=acme", "acme-shard[0..1]");
+        candidate.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        candidate.put("default", DEFAULT);
+        corpus = String.join("\n", //
+                "{\"id\": \"doc1\", \"ancestors\": [{\"id\": \"acme\", \"tenant\": \"acme\"}]," //
+                        + " \"blobs\": [{\"name\": \"a.mp4\", \"mimeType\": \"video/mp4\"}]}",
+                "{\"id\": \"doc2\", \"ancestors\": [{\"id\": \"globex\", \"tenant\": \"globex\"}]," //
+                        + " \"blobs\": [{\"name\": \"b.txt\"}]}",
+                "{\"id\": \"doc3\", \"blobs\": [{\"name\": \"c.txt\"}]}");
+        report = new DispatchSimulator(candidate, null).simulate(
+                new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, report.getBlobs());
+        assertEquals(Long.valueOf(1), report.getRules().get("ecm:tenant=acme"));
+        assertEquals(Long.valueOf(1), report.getRules().get(DispatchSimulator.TENANT_MAPPING));
+        assertEquals(Long.valueOf(1), report.getRules().get(DEFAULT));
+        assertEquals(Long.valueOf(1), report.getProviders().get("tenant-globex"));
+        assertTrue(report.getProviders().keySet().stream().anyMatch(id -> id.startsWith("acme-shard")));
+    }
+
+    /**
+     * Tenant provider factory registering into a mocked blob manager, with a clock set by the test.
+     */
+    protected static class MockTenantProviderFactory extends TenantProviderFactory {
+
+        protected final BlobManagerComponent blobManager = mock(BlobManagerComponent.class);
+
+        protected volatile long now;
+
+        protected MockTenantProviderFactory(Class<? extends BlobProvider> klass, Map<String, String> properties,
+                long idleTimeoutSeconds, Consumer<String> closeListener) {
+            super(klass, properties, idleTimeoutSeconds, closeListener);
+        }
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        @Override
+        protected BlobManagerComponent getBlobManager() {
+            return blobManager;
+        }
+
+        @Override
+        public void closeIdle(long now) {
+            super.closeIdle(now);
+        }
+    }
+
+    @Test
+    public void testTenantProviderFactory() {
+        List<String> closed = new ArrayList<>();
+        MockTenantProviderFactory factory = new MockTenantProviderFactory(LocalBlobProvider.class,
+                Collections.singletonMap("path", "/tmp/${tenantId}"), 60, closed::add);
+        factory.register("tenant-acme", "acme");
+        factory.register("tenant-acme", "acme");
+        factory.register("tenant-globex", "globex");
+        // registered once, with the tenant id in its properties
+        ArgumentCaptor<BlobProviderDescriptor> registered = ArgumentCaptor.forClass(BlobProviderDescriptor.class);
+        verify(factory.blobManager, times(2)).registerBlobProvider(registered.capture());
+        assertEquals("tenant-acme", registered.getAllValues().get(0).name);
+        assertEquals("/tmp/acme", registered.getAllValues().get(0).properties.get("path"));
+        assertTrue(factory.isRegistered("tenant-globex"));
+
+        // only the provider not used during the idle timeout is closed, and stays registered
+        factory.now = TimeUnit.SECONDS.toNanos(50);
+        factory.touch("tenant-acme");
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(70));
+        assertEquals(Collections.singletonList("tenant-globex"), closed);
+        verify(factory.blobManager, times(1)).unregisterBlobProvider(any());
+        verify(factory.blobManager, times(3)).registerBlobProvider(any());
+        // not closed twice
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(80));
+        assertEquals(1, closed.size());
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(111));
+        assertEquals(Arrays.asList("tenant-globex", "tenant-acme"), closed);
+    }
+
+    @Test
+    public void testTenantProviderFactoryInUse() throws Exception {
+        List<String> closed = new ArrayList<>();
+        MockTenantProviderFactory factory = new MockTenantProviderFactory(LocalBlobProvider.class,
+                Collections.emptyMap(), 60, closed::add);
+        AtomicReference<TenantBlobProvider> current = new AtomicReference<>();
+        List<LocalBlobProvider> delegates = new ArrayList<>();
+        CountDownLatch writing = new CountDownLatch(1);
+        // the mocked blob manager instantiates the provider when registered and closes it when unregistered
+        doAnswer(invocation -> {
+            BlobProviderDescriptor descriptor = (BlobProviderDescriptor) invocation.getArguments()[0];
+            TenantBlobProvider provider = new TenantBlobProvider() {
+                @Override
+                protected BlobProvider newDelegate(String className) throws IOException {
+                    LocalBlobProvider delegate = new LocalBlobProvider() {
+                        @Override
+                        public String writeBlob(Blob blob) throws IOException {
+                            writing.countDown();
+                            return super.writeBlob(blob);
+                        }
+                    };
+                    delegates.add(delegate);
+                    return delegate;
+                }
+
+                @Override
+                protected BlobProvider getCurrentInstance() {
+                    return current.get();
+                }
+            };
+            provider.initialize(descriptor.name, descriptor.properties);
+            current.set(provider);
+            return null;
+        }).when(factory.blobManager).registerBlobProvider(any());
+        doAnswer(invocation -> {
+            current.get().close();
+            return null;
+        }).when(factory.blobManager).unregisterBlobProvider(any());
+        factory.register("tenant-busy", "busy");
+        TenantBlobProvider provider = current.get();
+
+        // a provider is not closed while a write is in progress
+        delegates.get(0).gate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> write = executor.submit(() -> provider.writeBlob(Blobs.createBlob("foo")));
+            writing.await();
+            factory.closeIdle(TimeUnit.SECONDS.toNanos(100));
+            assertTrue(closed.isEmpty());
+            delegates.get(0).gate.countDown();
+            String key = write.get();
+            factory.closeIdle(TimeUnit.SECONDS.toNanos(100));
+            assertEquals(Collections.singletonList("tenant-busy"), closed);
+
+            // nor while a stream is open, the use going to the instance registered in place of the closed one
+            key = provider.writeBlob(Blobs.createBlob("bar"));
+            assertEquals(2, delegates.size());
+            BlobInfo blobInfo = new BlobInfo();
+            blobInfo.key = key;
+            try (InputStream stream = provider.readBlob(blobInfo).getStream()) {
+                factory.closeIdle(TimeUnit.SECONDS.toNanos(200));
+                assertEquals(1, closed.size());
+                assertEquals("bar", IOUtils.toString(stream, StandardCharsets.UTF_8));
+            }
+            factory.closeIdle(TimeUnit.SECONDS.toNanos(200));
+            assertEquals(Arrays.asList("tenant-busy", "tenant-busy"), closed);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTenantProviderFactoryReads() {
+        List<MockTenantProviderFactory> factories = new ArrayList<>();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected TenantProviderFactory newTenantProviderFactory(Class<? extends BlobProvider> klass,
+                    Map<String, String> properties, long idleTimeoutSeconds) {
+                MockTenantProviderFactory factory = new MockTenantProviderFactory(klass, properties,
+                        idleTimeoutSeconds, this::providerClosed);
+                factories.add(factory);
+                return factory;
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        properties.put("multitenant.tenantProviderClass", LocalBlobProvider.class.getName());
+        properties.put("multitenant.tenantProviderProperty.path", "/tmp/${tenantId}");
+        properties.put("multitenant.tenantProviderIdleTimeout", "60");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        assertEquals(1, factories.size());
+        MockTenantProviderFactory factory = factories.get(0);
+        Document acme = folder("doc", tenantRoot("root", "acme"));
+        assertEquals("tenant-acme", dispatcher.getProviderId(acme, mock(Blob.class), null));
+        assertEquals("tenant-globex",
+                dispatcher.getProviderId(folder("doc2", tenantRoot("root2", "globex")), mock(Blob.class), null));
+
+        // a provider only read from is kept open, whether looked up by the blob manager or downloaded from
+        factory.now = TimeUnit.SECONDS.toNanos(50);
+        assertTrue(dispatcher.getBlobProviderIds().contains("tenant-acme"));
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(100));
+        verify(factory.blobManager, times(1)).unregisterBlobProvider(any());
+        factory.now = TimeUnit.SECONDS.toNanos(150);
+        dispatcher.recordAccess("tenant-acme:0123abcd");
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(200));
+        verify(factory.blobManager, times(1)).unregisterBlobProvider(any());
+
+        // reloading the rules keeps the factory and its registrations
+        Map<String, String> reloaded = new LinkedHashMap<>(properties);
+        reloaded.put("blob:mime-type=video/mp4", CUSTOM);
+        dispatcher.reload(reloaded);
+        assertEquals(1, factories.size());
+        assertEquals("tenant-acme", dispatcher.getProviderId(acme, mock(Blob.class), null));
+        verify(factory.blobManager, times(3)).registerBlobProvider(any());
+
+        // a changed configuration registers the same providers again with it
+        reloaded.put("multitenant.tenantProviderProperty.path", "/data/${tenantId}");
+        dispatcher.reload(reloaded);
+        assertEquals(2, factories.size());
+        MockTenantProviderFactory newFactory = factories.get(1);
+        verify(newFactory.blobManager, times(2)).unregisterBlobProvider(any());
+        ArgumentCaptor<BlobProviderDescriptor> registered = ArgumentCaptor.forClass(BlobProviderDescriptor.class);
+        verify(newFactory.blobManager, times(2)).registerBlobProvider(registered.capture());
+        assertEquals("/data/acme", registered.getAllValues().stream()
+                                             .filter(descriptor -> descriptor.name.equals("tenant-acme"))
+                                             .findFirst()
+                                             .get().properties.get("path"));
+        assertEquals("tenant-acme", dispatcher.getProviderId(acme, mock(Blob.class), null));
+        verify(newFactory.blobManager, times(2)).registerBlobProvider(any());
+    }
+
+    @Test
+    public void testLookupBlobProvider() {
+        BlobManager blobManager = mock(BlobManager.class);
+        when(blobManager.getBlobProvider("tenant-acme")).thenReturn(mock(BlobProvider.class));
+        List<MockTenantProviderFactory> factories = new ArrayList<>();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected TenantProviderFactory newTenantProviderFactory(Class<? extends BlobProvider> klass,
+                    Map<String, String> properties, long idleTimeoutSeconds) {
+                MockTenantProviderFactory factory = new MockTenantProviderFactory(klass, properties,
+                        idleTimeoutSeconds, this::providerClosed);
+                factories.add(factory);
+                return factory;
+            }
+
+            @Override
+            protected BlobManager getBlobManager() {
+                return blobManager;
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantProvider", "tenant-${tenantId}");
+        properties.put("multitenant.tenantProviderClass", LocalBlobProvider.class.getName());
+        properties.put("multitenant.tenantProviderProperty.path", "/tmp/${tenantId}");
+        properties.put("multitenant.tenantProviderIdleTimeout", "60");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        MockTenantProviderFactory factory = factories.get(0);
+        assertEquals("tenant-acme",
+                dispatcher.getProviderId(folder("doc", tenantRoot("root", "acme")), mock(Blob.class), null));
+
+        // replicated providers find their replicas through the provider cache of the last initialized dispatcher
+        BlobProvider acme = MultiTenantBlobDispatcher.lookupBlobProvider("tenant-acme");
+        assertEquals(blobManager.getBlobProvider("tenant-acme"), acme);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(acme, MultiTenantBlobDispatcher.lookupBlobProvider("tenant-acme"));
+        }
+        verify(blobManager, times(2)).getBlobProvider("tenant-acme"); // including the one of this test
+        assertNull(dispatcher.getBlobProviderInstance("unknown"));
+
+        // a provider read from is kept open
+        factory.now = TimeUnit.SECONDS.toNanos(50);
+        dispatcher.getBlobProviderInstance("tenant-acme");
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(100));
+        verify(factory.blobManager, never()).unregisterBlobProvider(any());
+
+        // a provider closed after its idle timeout is looked up again
+        factory.closeIdle(TimeUnit.SECONDS.toNanos(200));
+        verify(factory.blobManager, times(1)).unregisterBlobProvider(any());
+        assertEquals(acme, dispatcher.getBlobProviderInstance("tenant-acme"));
+        verify(blobManager, times(3)).getBlobProvider("tenant-acme");
+
+        // and so is every provider after a reload
+        dispatcher.reload(properties);
+        assertEquals(acme, dispatcher.getBlobProviderInstance("tenant-acme"));
+        assertEquals(acme, dispatcher.getBlobProviderInstance("tenant-acme"));
+        verify(blobManager, times(4)).getBlobProvider("tenant-acme");
+    }
+
+    @Test
+    public void testLatestInstance() {
+        MultiTenantBlobDispatcher stamped = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantStamp", "true");
+        properties.put("default", DEFAULT);
+        stamped.initialize(properties);
+        assertSame(stamped, MultiTenantBlobDispatcher.getLatestInstance());
+        assertTrue(TenantStamp.isEnabled());
+
+        // a dispatcher replaced by a hot reload is ignored, even before being garbage collected
+        MultiTenantBlobDispatcher replacement = new MultiTenantBlobDispatcher();
+        replacement.initialize(Collections.singletonMap("default", DEFAULT));
+        assertTrue(MultiTenantBlobDispatcher.getInstances().contains(stamped));
+        assertSame(replacement, MultiTenantBlobDispatcher.getLatestInstance());
+        assertFalse(TenantStamp.isEnabled());
+    }
+
+    @Test
+    public void testBlobProviderCache() {
+        Map<String, BlobProvider> providers = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            providers.put("tenant-" + i, mock(BlobProvider.class));
+        }
+        List<String> loaded = new ArrayList<>();
+        BlobProviderCache cache = new BlobProviderCache(id -> {
+            loaded.add(id);
+            return providers.get(id);
+        });
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(providers.get("tenant-" + i), cache.getBlobProviderForKey("tenant-" + i + ":0123abcd"));
+        }
+        assertEquals(1000, cache.size());
+        // hits do not load again
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(providers.get("tenant-" + i), cache.getBlobProviderForKey("tenant-" + i + ":4567ef"));
+            assertEquals(providers.get("tenant-" + i), cache.getBlobProvider("tenant-" + i));
+        }
+        assertEquals(1000, loaded.size());
+        // keys without prefix or unknown providers
+        assertEquals(null, cache.getBlobProviderForKey("0123abcd"));
+        assertEquals(null, cache.getBlobProviderForKey("unknown:0123abcd"));
+        assertEquals(1000, cache.size());
+
+        // a closed provider is loaded again
+        BlobProvider reopened = mock(BlobProvider.class);
+        providers.put("tenant-7", reopened);
+        cache.invalidate("tenant-7");
+        assertEquals(999, cache.size());
+        assertEquals(reopened, cache.getBlobProviderForKey("tenant-7:0123abcd"));
+        assertEquals(providers.get("tenant-8"), cache.getBlobProviderForKey("tenant-8:0123abcd"));
+        assertEquals(1000, cache.size());
+
+        // a provider loaded while the cache is invalidated is not kept
+        BlobProviderCache[] racing = new BlobProviderCache[1];
+        racing[0] = new BlobProviderCache(id -> {
+            BlobProvider provider = providers.get(id);
+            if (id.equals("tenant-1")) {
+                // closed while being loaded
+                racing[0].invalidateAll();
+            }
+            return provider;
+        });
+        assertEquals(providers.get("tenant-1"), racing[0].getBlobProviderForKey("tenant-1:0123abcd"));
+        assertEquals(0, racing[0].size());
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+}
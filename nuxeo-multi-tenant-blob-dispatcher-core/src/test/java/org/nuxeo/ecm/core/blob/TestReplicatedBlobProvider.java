@@ -0,0 +1,330 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.DEFAULT;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.folder;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.tenantRoot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.Blobs;
+import org.nuxeo.ecm.core.blob.binary.BinaryGarbageCollector;
+import org.nuxeo.ecm.core.blob.binary.BinaryManager;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.ecm.multi.tenant.ReplicaTarget;
+import org.nuxeo.ecm.multi.tenant.ReplicatedBlobProvider;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+public class TestReplicatedBlobProvider {
+
+    /**
+     * Stand-in provider storing blobs as files named by their MD5 in a directory, possibly blocked or failing.
+     */
+    protected static class LocalBlobProvider extends AbstractBlobProvider {
+
+        protected final Path dir;
+
+        /** Blocks the writes until opened. */
+        protected volatile CountDownLatch gate;
+
+        protected volatile boolean failing;
+
+        protected LocalBlobProvider() throws IOException {
+            dir = Files.createTempDirectory("replica");
+        }
+
+        @Override
+        public void close() {
+            FileUtils.deleteQuietly(dir.toFile());
+        }
+
+        @Override
+        public String writeBlob(Blob blob) throws IOException {
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (failing) {
+                throw new IOException("Replica down");
+            }
+            Path tmp = Files.createTempFile(dir, "upload", null);
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            try (InputStream in = blob.getStream(); OutputStream out = Files.newOutputStream(tmp)) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    md5.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+            String digest = Hex.encodeHexString(md5.digest());
+            Files.move(tmp, dir.resolve(digest), StandardCopyOption.REPLACE_EXISTING);
+            return digest;
+        }
+
+        @Override
+        public Blob readBlob(BlobInfo blobInfo) throws IOException {
+            if (failing) {
+                throw new IOException("Replica down");
+            }
+            Path file = dir.resolve(blobInfo.key.substring(blobInfo.key.indexOf(':') + 1));
+            if (!Files.exists(file)) {
+                throw new IOException("Missing blob: " + blobInfo.key);
+            }
+            return Blobs.createBlob(file.toFile());
+        }
+
+        protected boolean has(String digest) {
+            return Files.exists(dir.resolve(digest));
+        }
+    }
+
+    @Test
+    public void testReplicaTarget() {
+        assertEquals(null, ReplicaTarget.parse("acme"));
+        assertEquals(Arrays.asList("acme-local", "acme-s3"), ReplicaTarget.parse("acme-local+acme-s3").getProviderIds());
+        try {
+            ReplicaTarget.parse("acme-local+");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=acme", "acme-local+acme-s3");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document doc = folder("doc", tenantRoot("root", "acme"));
+        // the blobs are written and read through the replicated provider
+        assertEquals("acme-local+acme-s3", dispatcher.getProviderId(doc, mock(Blob.class), null));
+        assertTrue(dispatcher.getBlobProviderIds().contains("acme-local+acme-s3"));
+    }
+
+    @Test
+    public void testReplicatedBlobProvider() throws Exception {
+        Map<String, LocalBlobProvider> replicas = new HashMap<>();
+        for (String id : Arrays.asList("local", "remote", "slow", "down")) {
+            replicas.put(id, new LocalBlobProvider());
+        }
+        replicas.get("down").failing = true;
+        KeyValueStore store = new MemKeyValueStore();
+        ReplicatedBlobProvider provider = new ReplicatedBlobProvider(replicas::get) {
+            @Override
+            protected KeyValueStore getKeyValueStore() {
+                return store;
+            }
+        };
+        Map<String, String> properties = new HashMap<>();
+        properties.put(ReplicatedBlobProvider.PROP_REPLICAS, "local,remote,slow,down");
+        properties.put(ReplicatedBlobProvider.PROP_QUORUM, "2");
+        provider.initialize("local+remote+slow+down", properties);
+        try {
+            // a blob smaller than the queues of the replicas, so that none falls behind
+            byte[] content = new byte[200_000];
+            new Random(1).nextBytes(content);
+            String digest = DigestUtils.md5Hex(content);
+
+            // acknowledged by the quorum, while a replica is blocked and another one is down
+            CountDownLatch gate = new CountDownLatch(1);
+            replicas.get("slow").gate = gate;
+            String key = provider.writeBlob(Blobs.createBlob(content));
+            assertEquals(digest, key);
+            assertTrue(replicas.get("local").has(digest));
+            assertTrue(replicas.get("remote").has(digest));
+            assertFalse(replicas.get("slow").has(digest));
+
+            // the blocked replica finishes in the background, from the content queued for it
+            gate.countDown();
+            for (int i = 0; i < 600 && !replicas.get("slow").has(digest); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(replicas.get("slow").has(digest));
+            assertFalse(replicas.get("down").has(digest));
+            provider.flush();
+            assertEquals(Collections.singleton("down " + digest), provider.getRepairs());
+
+            // a replica failing after the write was acknowledged is recorded too
+            byte[] content2 = new byte[200_000];
+            new Random(2).nextBytes(content2);
+            String digest2 = DigestUtils.md5Hex(content2);
+            gate = new CountDownLatch(1);
+            replicas.get("slow").gate = gate;
+            assertEquals(digest2, provider.writeBlob(Blobs.createBlob(content2)));
+            replicas.get("slow").failing = true;
+            gate.countDown();
+            Set<String> missing = new HashSet<>(
+                    Arrays.asList("down " + digest, "down " + digest2, "slow " + digest2));
+            for (int i = 0; i < 600 && !provider.getRepairs().equals(missing); i++) {
+                Thread.sleep(100);
+                provider.flush();
+            }
+            assertEquals(missing, provider.getRepairs());
+
+            // repaired from the other replicas, the replica still down on the next repair
+            replicas.get("slow").gate = null;
+            replicas.get("slow").failing = false;
+            provider.repair();
+            assertTrue(replicas.get("slow").has(digest2));
+            assertEquals(new HashSet<>(Arrays.asList("down " + digest, "down " + digest2)), provider.getRepairs());
+            replicas.get("down").failing = false;
+            provider.repair();
+            assertTrue(replicas.get("down").has(digest));
+            assertTrue(replicas.get("down").has(digest2));
+            assertTrue(provider.getRepairs().isEmpty());
+
+            // read back, then from another replica when one fails
+            BlobInfo blobInfo = new BlobInfo();
+            blobInfo.key = "local+remote+slow+down:" + key;
+            blobInfo.length = Long.valueOf(content.length);
+            Blob blob = provider.readBlob(blobInfo);
+            assertEquals("local+remote+slow+down", ((ManagedBlob) blob).getProviderId());
+            assertTrue(Arrays.equals(content, blob.getByteArray()));
+            replicas.get("local").failing = true;
+            replicas.get("remote").failing = true;
+            assertTrue(Arrays.equals(content, provider.readBlob(blobInfo).getByteArray()));
+
+            // the quorum cannot be reached
+            replicas.get("down").failing = true;
+            try {
+                provider.writeBlob(Blobs.createBlob("foo"));
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("quorum is 2"));
+            }
+            // nothing to repair for a write that failed
+            provider.flush();
+            assertTrue(provider.getRepairs().isEmpty());
+        } finally {
+            provider.close();
+            replicas.values().forEach(LocalBlobProvider::close);
+        }
+    }
+
+    @Test
+    public void testSlowReplicaWithFullQuorum() throws Exception {
+        Map<String, LocalBlobProvider> replicas = new HashMap<>();
+        for (String id : Arrays.asList("local", "slow")) {
+            replicas.put(id, new LocalBlobProvider());
+        }
+        KeyValueStore store = new MemKeyValueStore();
+        ReplicatedBlobProvider provider = new ReplicatedBlobProvider(replicas::get) {
+            @Override
+            protected KeyValueStore getKeyValueStore() {
+                return store;
+            }
+        };
+        // the default quorum, all the replicas
+        provider.initialize("local+slow", Collections.singletonMap(ReplicatedBlobProvider.PROP_REPLICAS, "local,slow"));
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            // a blob larger than the queues of the replicas, 16 chunks of 64 kB, so that the slow one falls behind
+            byte[] content = new byte[3 * 1024 * 1024];
+            new Random(3).nextBytes(content);
+            String digest = DigestUtils.md5Hex(content);
+
+            // the replica falling behind is waited for, as the quorum cannot be reached without it
+            CountDownLatch gate = new CountDownLatch(1);
+            replicas.get("slow").gate = gate;
+            scheduler.schedule(gate::countDown, 500, TimeUnit.MILLISECONDS);
+            assertEquals(digest, provider.writeBlob(Blobs.createBlob(content)));
+            assertTrue(replicas.get("local").has(digest));
+            assertTrue(replicas.get("slow").has(digest));
+            provider.flush();
+            assertTrue(provider.getRepairs().isEmpty());
+        } finally {
+            scheduler.shutdownNow();
+            provider.close();
+            replicas.values().forEach(LocalBlobProvider::close);
+        }
+    }
+
+    @Test
+    public void testReplicaGarbageCollection() throws Exception {
+        Map<String, BlobProvider> replicas = new HashMap<>();
+        Map<String, BinaryGarbageCollector> gcs = new HashMap<>();
+        for (String id : Arrays.asList("local", "remote")) {
+            BinaryGarbageCollector gc = mock(BinaryGarbageCollector.class);
+            BinaryManager binaryManager = mock(BinaryManager.class);
+            when(binaryManager.getGarbageCollector()).thenReturn(gc);
+            BlobProvider replica = mock(BlobProvider.class);
+            when(replica.getBinaryManager()).thenReturn(binaryManager);
+            replicas.put(id, replica);
+            gcs.put(id, gc);
+        }
+        when(gcs.get("local").isInProgress()).thenReturn(Boolean.TRUE);
+        ReplicatedBlobProvider provider = new ReplicatedBlobProvider(replicas::get);
+        provider.initialize("local+remote",
+                Collections.singletonMap(ReplicatedBlobProvider.PROP_REPLICAS, "local,remote"));
+        try {
+            BinaryGarbageCollector gc = provider.getBinaryManager().getGarbageCollector();
+            gc.start();
+            assertTrue(gc.isInProgress());
+            gc.mark("0123abcd");
+            gc.stop(true);
+            assertFalse(gc.isInProgress());
+            // the blob is kept by the replica being garbage collected
+            verify(gcs.get("local")).mark("0123abcd");
+            verify(gcs.get("remote"), never()).mark(anyString());
+        } finally {
+            provider.close();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.DEFAULT;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.folder;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.tenantRoot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoException;
+import org.nuxeo.ecm.core.api.event.DocumentEventTypes;
+import org.nuxeo.ecm.core.event.Event;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.DispatchContext;
+import org.nuxeo.ecm.multi.tenant.DispatchContextListener;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+@RunWith(FeaturesRunner.class)
+public class TestTenantBulkhead {
+
+    @Test
+    public void testTenantBulkhead() throws Exception {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantMaxConcurrentWrites.acme", "1");
+        properties.put("multitenant.tenantMaxBytesPerSecond.globex", "1000");
+        properties.put("multitenant.tenantMaxBytesPerSecond.initech", "1000");
+        // by default writes are rejected without waiting
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document acme = folder("doc", tenantRoot("root", "acme"));
+        Document globex = folder("doc2", tenantRoot("root2", "globex"));
+        Blob blob = mock(Blob.class);
+        when(blob.getLength()).thenReturn(1000L);
+        Callable<String> otherSave = () -> {
+            DispatchContext.begin();
+            try {
+                return dispatcher.getProviderId(acme, blob, null);
+            } catch (NuxeoException e) {
+                return String.valueOf(e.getStatusCode());
+            } finally {
+                DispatchContext.end();
+            }
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            DispatchContext.begin();
+            try {
+                // the permit is held for the whole save
+                assertEquals(DEFAULT, dispatcher.getProviderId(acme, blob, null));
+                assertEquals(DEFAULT, dispatcher.getProviderId(acme, blob, null));
+                assertEquals("429", executor.submit(otherSave).get());
+            } finally {
+                DispatchContext.end();
+            }
+            assertEquals(DEFAULT, executor.submit(otherSave).get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // rate limit
+        assertEquals(DEFAULT, dispatcher.getProviderId(globex, blob, null));
+        try {
+            dispatcher.getProviderId(globex, blob, null);
+            fail();
+        } catch (NuxeoException e) {
+            assertEquals(429, e.getStatusCode());
+        }
+        // choosing the provider is not limited
+        assertEquals(DEFAULT, dispatcher.chooseProviderId(globex, blob, null));
+        // small writes within one second of the rate are accepted at once
+        Document initech = folder("doc3", tenantRoot("root3", "initech"));
+        Blob small = mock(Blob.class);
+        when(small.getLength()).thenReturn(100L);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(DEFAULT, dispatcher.getProviderId(initech, small, null));
+        }
+    }
+
+    @Test
+    public void testFailedSaveOutsideTransaction() throws Exception {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("multitenant.tenantMaxConcurrentWrites.acme", "1");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document acme = folder("doc", tenantRoot("root", "acme"));
+        Blob blob = mock(Blob.class);
+        DispatchContextListener listener = new DispatchContextListener();
+        Event aboutToCreate = mock(Event.class);
+        when(aboutToCreate.getName()).thenReturn(DocumentEventTypes.ABOUT_TO_CREATE);
+        Event created = mock(Event.class);
+        when(created.getName()).thenReturn(DocumentEventTypes.DOCUMENT_CREATED);
+        assertFalse(TransactionHelper.isTransactionActive());
+
+        // a save failing after its blobs were written, so that the context is never closed
+        listener.handleEvent(aboutToCreate);
+        try {
+            assertEquals(DEFAULT, dispatcher.getProviderId(acme, blob, null));
+            throw new NuxeoException("Save failed");
+        } catch (NuxeoException e) {
+            assertEquals("Save failed", e.getMessage());
+        }
+        // nothing is left on the thread
+        assertNull(DispatchContext.current());
+
+        // and the saves of the tenant on other threads are not rejected
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(DEFAULT, executor.submit(() -> {
+                listener.handleEvent(aboutToCreate);
+                try {
+                    return dispatcher.getProviderId(acme, blob, null);
+                } finally {
+                    listener.handleEvent(created);
+                }
+            }).get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.CUSTOM;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.DEFAULT;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.folder;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.tenantRoot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+public class TestTenantStamp {
+
+    @Test
+    public void testMultiTenantTenantStamp() {
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher();
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("multitenant.tenantStamp", "true");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        Document folder = folder("folder", tenantRoot("root", "test"));
+
+        Document stamped = folder("doc1", folder);
+        when(stamped.hasFacet("BlobTenant")).thenReturn(true);
+        when(stamped.getValue("blobtenant:tenantId")).thenReturn("test");
+        assertEquals(CUSTOM, dispatcher.getProviderId(stamped, null, null));
+        verify(stamped, never()).getParent();
+
+        // not stamped yet, resolved through the ancestors
+        Document notStamped = folder("doc2", folder);
+        assertEquals(CUSTOM, dispatcher.getProviderId(notStamped, null, null));
+        verify(notStamped, times(1)).getParent();
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.CUSTOM;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.DEFAULT;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.folder;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.tenantRoot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.ecm.multi.tenant.TenantUsage;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+public class TestTenantUsage {
+
+    @Test
+    public void testTenantUsage() throws Exception {
+        KeyValueStore store = new MemKeyValueStore();
+        // two cluster nodes
+        TenantUsage[] nodes = new TenantUsage[2];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new TenantUsage("usage", 3600) {
+                @Override
+                protected KeyValueStore getKeyValueStore() {
+                    return store;
+                }
+            };
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Void>> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            TenantUsage node = nodes[t % 2];
+            writers.add(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    node.blobWritten("acme", "acme-s3", 10);
+                    node.blobWritten(i % 2 == 0 ? "globex" : null, "default", 1);
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : executor.invokeAll(writers)) {
+            future.get();
+        }
+        executor.shutdown();
+        nodes[1].blobRemoved("acme", "acme-s3", 10);
+        nodes[1].flush();
+
+        Map<String, Map<String, Map<String, Long>>> usage = nodes[0].getUsage(null);
+        assertEquals(Arrays.asList(TenantUsage.NO_TENANT, "acme", "globex"), new ArrayList<>(usage.keySet()));
+        assertEquals(Long.valueOf(7999), usage.get("acme").get("acme-s3").get(TenantUsage.BLOBS));
+        assertEquals(Long.valueOf(79990), usage.get("acme").get("acme-s3").get(TenantUsage.BYTES));
+        assertEquals(Long.valueOf(4000), usage.get("globex").get("default").get(TenantUsage.BYTES));
+        assertEquals(Long.valueOf(4000), usage.get(TenantUsage.NO_TENANT).get("default").get(TenantUsage.BLOBS));
+        assertEquals(Collections.singleton("globex"), nodes[1].getUsage("globex").keySet());
+    }
+
+    @Test
+    public void testTenantUsageCounts() {
+        KeyValueStore store = new MemKeyValueStore();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected TenantUsage newUsage(String storeName, long flushIntervalSeconds) {
+                return new TenantUsage(storeName, flushIntervalSeconds) {
+                    @Override
+                    protected KeyValueStore getKeyValueStore() {
+                        return store;
+                    }
+                };
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=test", CUSTOM);
+        properties.put("default", DEFAULT);
+        properties.put("multitenant.usage", "true");
+        properties.put("multitenant.usageFlushInterval", "3600");
+        dispatcher.initialize(properties);
+        Document doc = folder("doc", tenantRoot("root", "test"));
+        Blob blob = mock(Blob.class);
+        when(blob.getLength()).thenReturn(100L);
+
+        // choosing a provider doesn't count the blob, as the write may still fail or be rolled back
+        assertEquals(CUSTOM, dispatcher.getProviderId(doc, blob, "file:content"));
+        dispatcher.flush();
+        assertNull(store.getString("multitenant.usage.index"));
+
+        // without transaction, changes are counted at once, and written to the store when flushed
+        dispatcher.countWrite(doc, CUSTOM, 100);
+        dispatcher.countWrite(doc, CUSTOM, 50);
+        dispatcher.countRemoval(doc, CUSTOM, 100);
+        assertNull(store.getString("multitenant.usage.index"));
+        dispatcher.flush();
+        assertEquals(Long.valueOf(1), store.getLong("multitenant.usage.blobs.test\t" + CUSTOM));
+        assertEquals(Long.valueOf(50), store.getLong("multitenant.usage.bytes.test\t" + CUSTOM));
+        Map<String, Long> counts = dispatcher.getUsage().getUsage("test").get("test").get(CUSTOM);
+        assertEquals(Long.valueOf(1), counts.get(TenantUsage.BLOBS));
+        assertEquals(Long.valueOf(50), counts.get(TenantUsage.BYTES));
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright 2020 Nuxeo (http://nuxeo.com/) and others.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.ecm.core.blob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.CAL1;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.CAL3;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.DEFAULT;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.folder;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.managedBlob;
+import static org.nuxeo.ecm.core.blob.TestMultiTenantBlobDispatcher.tenantRoot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.model.Document;
+import org.nuxeo.ecm.multi.tenant.BlobAccessTracker;
+import org.nuxeo.ecm.multi.tenant.DispatchContext;
+import org.nuxeo.ecm.multi.tenant.MultiTenantBlobDispatcher;
+import org.nuxeo.runtime.kv.KeyValueStore;
+import org.nuxeo.runtime.kv.MemKeyValueStore;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+public class TestTiering {
+
+    @Test
+    public void testTiering() {
+        KeyValueStore store = new MemKeyValueStore();
+        MultiTenantBlobDispatcher dispatcher = new MultiTenantBlobDispatcher() {
+            @Override
+            protected BlobAccessTracker newAccessTracker(String storeName) {
+                return new MemBlobAccessTracker(store);
+            }
+        };
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("ecm:tenant=acme", "acme-hot");
+        properties.put("multitenant.coldProvider.acme-hot", "acme-cold");
+        properties.put("multitenant.coldAfterDays.acme-hot", "30");
+        properties.put("default", DEFAULT);
+        dispatcher.initialize(properties);
+        assertEquals(30, dispatcher.getMinColdAfterDays());
+        Document root = tenantRoot("root", "acme");
+        Document doc = folder("doc", root);
+        when(doc.getValue("dc:modified")).thenReturn(CAL1);
+        Document modified = folder("modified", root);
+        when(modified.getValue("dc:modified")).thenReturn(CAL3);
+        Blob blob = mock(Blob.class);
+        ManagedBlob hot = managedBlob("acme-hot", "1");
+        ManagedBlob read = managedBlob("acme-hot", "2");
+        ManagedBlob cold = managedBlob("acme-cold", "3");
+
+        // outside of a tiering run, blobs go to the hot provider and cold blobs stay cold
+        assertEquals("acme-hot", dispatcher.getProviderId(doc, blob, null));
+        assertEquals("acme-hot", dispatcher.getProviderId(doc, hot, null));
+        assertEquals("acme-cold", dispatcher.getProviderId(doc, cold, null));
+
+        dispatcher.recordAccess(read.getKey());
+        // a read written out by another node
+        ManagedBlob readElsewhere = managedBlob("acme-hot", "4");
+        BlobAccessTracker otherNode = new MemBlobAccessTracker(store);
+        otherNode.recordAccess(readElsewhere.getKey(), 3600);
+        assertNull(store.getString("multitenant.access.acme-hot:4"));
+        otherNode.flush();
+        assertNotNull(store.getString("multitenant.access.acme-hot:4"));
+        DispatchContext.begin();
+        try {
+            DispatchContext.current().setTiering(true);
+            assertEquals("acme-cold", dispatcher.getProviderId(doc, hot, null));
+            // read or modified recently
+            assertEquals("acme-hot", dispatcher.getProviderId(doc, read, null));
+            assertEquals("acme-hot", dispatcher.getProviderId(doc, readElsewhere, null));
+            assertEquals("acme-hot", dispatcher.getProviderId(modified, hot, null));
+            // not stored yet
+            assertEquals("acme-hot", dispatcher.getProviderId(doc, blob, null));
+        } finally {
+            DispatchContext.end();
+        }
+        // the pending reads are written out when the runtime stops
+        assertNull(store.getString("multitenant.access.acme-hot:2"));
+        dispatcher.flush();
+        assertNotNull(store.getString("multitenant.access.acme-hot:2"));
+
+        // only the tenants dispatched to a hot provider are tiered
+        assertTrue(dispatcher.isTiered(root));
+        assertFalse(dispatcher.isTiered(tenantRoot("root2", "globex")));
+        assertFalse(dispatcher.isTieredByBlob());
+        Map<String, String> reloaded = new LinkedHashMap<>();
+        reloaded.put("blob:mime-type=video/mp4", "acme-hot");
+        reloaded.put("ecm:tenant=acme", "acme-hot");
+        reloaded.put("default", DEFAULT);
+        dispatcher.reload(reloaded);
+        assertTrue(dispatcher.isTieredByBlob());
+    }
+
+    /**
+     * Tracker of the blob reads writing to a given key-value store.
+     */
+    protected static class MemBlobAccessTracker extends BlobAccessTracker {
+
+        protected final KeyValueStore store;
+
+        protected MemBlobAccessTracker(KeyValueStore store) {
+            super("access");
+            this.store = store;
+        }
+
+        @Override
+        protected KeyValueStore getKeyValueStore() {
+            return store;
+        }
+    }
+
+}